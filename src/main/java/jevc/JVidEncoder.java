@@ -7,6 +7,7 @@ import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Objects;
 
 public class JVidEncoder {
@@ -15,7 +16,9 @@ public class JVidEncoder {
         String input = "";
         String output = "";
         int fps  = 30;
+        int maxGopSize = Globals.GOP_SIZE;
         String parralelization = "";
+        String preset = "medium";
         boolean compressToMjpeg = false;
         boolean enableBenchmarking = false;
         String export = "";
@@ -41,6 +44,16 @@ public class JVidEncoder {
                         fps = Integer.parseInt(args[i+1]);
                         i++;
                     }
+                    case 'g' -> {
+                        checkArgument(args[i], args[i+1]);
+                        maxGopSize = Integer.parseInt(args[i+1]);
+                        i++;
+                    }
+                    case 's' -> {
+                        checkArgument(args[i], args[i+1]);
+                        preset = args[i+1];
+                        i++;
+                    }
                     case 'p' -> {
                         checkArgument(args[i], args[i+1]);
                         parralelization = args[i+1];
@@ -51,10 +64,17 @@ public class JVidEncoder {
                         export = args[i+1];
                         i++;
                     }
+                    case 'r' -> {
+                        checkArgument(args[i], args[i+1]);
+                        Globals.RESTART_INTERVAL = Integer.parseInt(args[i+1]);
+                        i++;
+                    }
                     case 'm' -> compressToMjpeg = true;
                     case 'b' -> enableBenchmarking = true;
                     case 'q' -> isQuiet = true;
                     case 'd' -> isDebug = true;
+                    case 't' -> Globals.OPTIMIZED_HUFFMAN_TABLES = true;
+                    case 'a' -> Globals.ARITHMETIC_CODING = true;
                     case 'h' -> printHelp();
                 }
             }
@@ -70,8 +90,15 @@ public class JVidEncoder {
             System.exit(-1);
         }
 
+        if (maxGopSize < 1) {
+            System.out.println("The GOP length -g must be at least 1");
+            System.exit(-1);
+        }
+
         File[] files = null;
         Globals.FRAMERATE = fps;
+        Globals.GOP_SIZE = maxGopSize;
+        applyPreset(preset);
 
         try {
             files = new File(input).listFiles(
@@ -84,6 +111,8 @@ public class JVidEncoder {
         }
 
         if (!Objects.isNull(files)) {
+            // frames are encoded in file name order
+            Arrays.sort(files);
             BufferedImage resolution = ImageIO.read(files[0]);
             Globals.MAX_HEIGHT = resolution.getHeight();
             Globals.MAX_WIDTH = resolution.getWidth();
@@ -108,22 +137,50 @@ public class JVidEncoder {
         System.out.println("  -i input: Input folder with PNG files");
         System.out.println("  -o output: Output folder and file name");
         System.out.println("  -f fps: Framerate");
+        System.out.println("  -g frames: Maximum GOP length, GOPs also end at scene changes");
+        System.out.println("  -s preset: Speed preset");
+        System.out.println("  Presets:");
+        System.out.println("    ultrafast: Small motion search window, motion search compares every other row");
+        System.out.println("    medium: Default");
+        System.out.println("    slow: Rate-distortion optimized mode decision and Huffman tables, smaller output");
         System.out.println("  -p types: Use parallelization");
         System.out.println("  Parallelization options:");
         System.out.println("    f: Per-Frame");
         System.out.println("    g: Per-GOP");
         System.out.println("    o: Frame Operation");
         System.out.println("    c: Combination");
+        System.out.println("  -t: Huffman tables optimized per frame");
+        System.out.println("  -a: Arithmetic coding instead of Huffman coding");
+        System.out.println("  -r rows: MCU rows per restart interval of I frames, 0 for none (default 1)");
         System.out.println("  -m: Compress to MJPEG");
         System.out.println("  -b: Enable benchmarking");
         System.out.println("  -e export: Export benchmark");
         System.out.println("  -d: Create debug frames");
         System.out.println("  -q: Quiet mode");
         System.out.println("  -h: Help");
-        System.out.println("Example: jevc -i inputFolder -o outputFolder/output.jvd -f 30 -p c -b -e ./benchmark.txt -q");
+        System.out.println("Example: jevc -i inputFolder -o outputFolder/output.jvd -f 30 -g 10 -p c -b -e ./benchmark.txt -q");
         System.exit(0);
     }
 
+    private static void applyPreset(String preset) {
+        switch (preset) {
+            case "ultrafast" -> {
+                Globals.MOTION_SEARCH_RADIUS = 1;
+                Globals.SUBSAMPLED_MATCHING = true;
+            }
+            case "medium" -> { }
+            case "slow" -> {
+                Globals.RD_MODE_DECISION = true;
+                Globals.OPTIMIZED_HUFFMAN_TABLES = true;
+            }
+            default -> {
+                System.out.println("Unknown preset " + preset);
+                System.exit(-1);
+            }
+        }
+        Globals.PRESET = preset;
+    }
+
     private static void checkArgument(String arg, String nextArg) {
         if (nextArg.charAt(0) == '-') {
             System.out.println("Missing argument " + arg);
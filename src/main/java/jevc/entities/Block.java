@@ -5,6 +5,7 @@ public class Block {
     private final char type; // 'Y', 'U', 'V'
     private int posX;
     private int posY;
+    private int refIndex; // index of the reference frame this block was taken from
     private int[][] data;
 
     public Block(int[][] data, char type, int posX, int posY) {
@@ -26,7 +27,9 @@ public class Block {
         for (int i=0; i<BLOCKSIZE; i++) {
             System.arraycopy(data[i], 0, newData[i], 0, BLOCKSIZE);
         }
-        return new Block(newData, type, posX, posY);
+        Block copy = new Block(newData, type, posX, posY);
+        copy.setRefIndex(refIndex);
+        return copy;
     }
 
     public void print() {
@@ -59,6 +62,10 @@ public class Block {
 
     public int getPosY() { return posY; }
 
+    public void setRefIndex(int refIndex) { this.refIndex = refIndex; }
+
+    public int getRefIndex() { return refIndex; }
+
     public void add(Block block) {
         for (int i=0; i<BLOCKSIZE; i++) {
             for (int j = 0; j < BLOCKSIZE; j++) {
@@ -6,8 +6,17 @@ public class Globals {
     public static int FRAMERATE = 10;
     public static int BITRATE = 7000;
     public static int FRAMECOUNT = 0;
-    public static int SAMPLING = 0;
-    public static int GOP_SIZE = 10;
+    public static int SAMPLING = YCbCrImage.YUV411Sampling; // 4:2:0, a 16x16 macroblock has 4 luma blocks and 1 block per chroma component
+    public static int GOP_SIZE = 10; // maximum GOP length, scene changes start a new GOP earlier
+    public static int MAX_REFERENCE_FRAMES = 3;
+    public static int MOTION_PRECISION = 4; // 1 - full-pel, 2 - half-pel, 4 - quarter-pel
+    public static int MOTION_SEARCH_RADIUS = 3; // coarse motion search area in blocks around the macroblock, 3 => 7x7 blocks
+    public static boolean SUBSAMPLED_MATCHING = false; // ultrafast preset, motion search only compares every other row
+    public static boolean RD_MODE_DECISION = false; // slow preset, macroblock modes minimize distortion + lambda * bits
+    public static boolean OPTIMIZED_HUFFMAN_TABLES = false; // -t or slow preset, every frame may carry Huffman tables fitted to it
+    public static boolean ARITHMETIC_CODING = false; // -a, context-adaptive arithmetic coding instead of Huffman and Exp-Golomb codes
+    public static int RESTART_INTERVAL = 1; // -r, MCU rows per restart segment of Huffman coded I frames, 0 - no restart markers
+    public static String PRESET = "medium"; // reported by the benchmark
     public static int MAX_GOPS_AT_ONCE = 4;
     public static int MAX_COMBO_GOPS_AT_ONCE = 2;
     public static int MAX_COMBO_FRAMES_AT_ONCE = 2;
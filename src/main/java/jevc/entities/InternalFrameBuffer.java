@@ -1,43 +1,68 @@
 package jevc.entities;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
+/*
+ * Growable byte array holding the bitstream of a frame until it is written to the output file.
+ * Every buffer is filled by a single thread, so unlike ByteArrayOutputStream it does not
+ * synchronize its writes.
+ */
 public class InternalFrameBuffer {
-    ByteArrayOutputStream buffer;
+    private byte[] buffer;
+    private int size;
 
     public InternalFrameBuffer() {
-        this.buffer = new ByteArrayOutputStream();
+        this.buffer = new byte[4096];
+        this.size = 0;
     }
 
     public void write(int value) {
-        this.buffer.write(value);
+        ensureCapacity(1);
+        buffer[size++] = (byte) value;
     }
 
     public void write(byte value) {
-        this.buffer.write(value);
+        ensureCapacity(1);
+        buffer[size++] = value;
     }
 
     public void write(byte[] value) {
-        this.buffer.writeBytes(value);
+        ensureCapacity(value.length);
+        System.arraycopy(value, 0, buffer, size, value.length);
+        size += value.length;
+    }
+
+    /* Writes the 4 bytes of `word`, most significant byte first. */
+    public void writeWord(int word) {
+        ensureCapacity(4);
+        buffer[size] = (byte) (word >>> 24);
+        buffer[size + 1] = (byte) (word >>> 16);
+        buffer[size + 2] = (byte) (word >>> 8);
+        buffer[size + 3] = (byte) word;
+        size += 4;
     }
 
     public void dumpBufferToStreamWithoutFlushing(BufferedOutputStream outputStream) throws IOException {
-        outputStream.write(this.buffer.toByteArray());
+        outputStream.write(buffer, 0, size);
     }
     public void dumpBufferToStream(BufferedOutputStream outputStream) throws IOException {
-        outputStream.write(this.buffer.toByteArray());
-        int size = this.buffer.size();
-        this.buffer.reset();
-
+        outputStream.write(buffer, 0, size);
+        size = 0;
     }
 
     public byte[] dumpStreamToBuffer() {
-        return this.buffer.toByteArray();
+        return Arrays.copyOf(buffer, size);
     }
 
     public int size() {
-        return this.buffer.size();
+        return size;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (size + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + bytes));
+        }
     }
 }
@@ -1,34 +1,78 @@
 package jevc.entities;
 
 public class MotionVector {
-    private final byte byteVal;
+    private final int x;
+    private final int y;
+    private final int refIndex; // reference frame the vector points into, 0 = previous frame
 
     public MotionVector(int x, int y) {
-        // [x, y] are the values of the motion vector, represented by the delta of block positions
-        // x,y are in the range [-8 * searchRadius, 8 * searchRadius], with searchRadius being defined in BlockBuffer.java
-        // We divide them by 8 to get the delta in the block space
-        // x,y should fit in 4 bits each, so searchRadius can be at most 15
-        // Concatenate the bits of x and y into a single byte such that x occupies the first 4 bits and y occupies the last 4 bits
-        this.byteVal = (byte) (((x / 8) & 0x0F) << 4 | ((y / 8) & 0x0F));
+        this(x, y, 0);
     }
 
-    public MotionVector(byte byteVal) {
-        this.byteVal = byteVal;
+    public MotionVector(int x, int y, int refIndex) {
+        // [x, y] are the values of the motion vector in quarter-pel units
+        // x,y are in the range [-128, 127] (at most 32 pixels, see MotionEstimator.java)
+        // so each of them fits in a signed byte
+        this.x = x;
+        this.y = y;
+        this.refIndex = refIndex;
     }
 
-    public byte byteValue() {
-       return this.byteVal;
+    /* Vector coded as the difference to `base`, see getDifference(). */
+    public MotionVector(int[] difference, MotionVector base, int refIndex) {
+        this(difference[0] + base.x, difference[1] + base.y, refIndex);
     }
 
-    public int[] decompress() {
-        // byteVal is represented in binary as 4 bits of x and 4 bits of y
-        // We need to decompress it to get the original x and y values
-        int x = (byteVal >> 4) & 0x0F;
-        int y = byteVal & 0x0F;
+    /* The vector is coded as its difference to `base`, the vector predicted for its macroblock. */
+    public int[] getDifference(MotionVector base) {
+        return new int[]{x - base.x, y - base.y};
+    }
+
+    public int getRefIndex() {
+        return refIndex;
+    }
+
+    public boolean isSubPel() {
+        return ((x | y) & 3) != 0;
+    }
+
+    /* Vector of the 4:2:0 chroma blocks of a macroblock. The chroma planes have half the luma
+     * resolution, so the luma vector is halved and rounded to the nearest quarter-pel, away from 0.
+     */
+    public MotionVector getChromaVector() {
+        return new MotionVector(halve(x), halve(y), refIndex);
+    }
 
-        if (x > 7) x -= 16;
-        if (y > 7) y -= 16;
+    /* Median of the vectors of the left, top and top-right macroblocks of macroblock `index` in a frame
+     * `columns` macroblocks wide. Neighbours outside the frame and intra macroblocks (null vectors) count
+     * as the global motion.
+     */
+    public static MotionVector predict(MotionVector[] vectors, int index, int columns, MotionVector globalMotion) {
+        int row = index / columns;
+        int column = index % columns;
+        MotionVector left = column > 0 ? vectors[index - 1] : null;
+        MotionVector top = row > 0 ? vectors[index - columns] : null;
+        MotionVector topRight = row > 0 && column + 1 < columns ? vectors[index - columns + 1] : null;
+        return median(
+                left != null ? left : globalMotion,
+                top != null ? top : globalMotion,
+                topRight != null ? topRight : globalMotion);
+    }
+
+    /* Component-wise median, e.g. of the vectors of the left, top and top-right neighbours of a macroblock. */
+    public static MotionVector median(MotionVector a, MotionVector b, MotionVector c) {
+        return new MotionVector(median(a.x, b.x, c.x), median(a.y, b.y, c.y));
+    }
+
+    private static int median(int a, int b, int c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    private static int halve(int value) {
+        return (value + Integer.signum(value)) / 2;
+    }
 
+    public int[] decompress() {
         return new int[]{x, y};
     }
 }
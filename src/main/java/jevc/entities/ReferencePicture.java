@@ -0,0 +1,65 @@
+package jevc.entities;
+
+public class ReferencePicture {
+    // planes[0] - Y; planes[1] - Cb; planes[2] - Cr
+    private final ReferencePlane[] planes;
+
+    public ReferencePicture(int width, int height, int sampling) {
+        // the frames are coded padded to whole 16x16 areas (see YCbCrImage.ScaleImage), the chroma
+        // planes have the subsampled resolution of that, so every sample up to their edge is coded
+        width += (width % 16 == 0) ? 0 : 16 - width % 16;
+        height += (height % 16 == 0) ? 0 : 16 - height % 16;
+        int[] horizSamplingFactors = new int[3];
+        int[] vertSamplingFactors = new int[3];
+        YCbCrImage.computeSamplingFactors(sampling, horizSamplingFactors, vertSamplingFactors);
+        int chromaWidth = width * horizSamplingFactors[1] / horizSamplingFactors[0];
+        int chromaHeight = height * vertSamplingFactors[1] / vertSamplingFactors[0];
+        planes = new ReferencePlane[] {
+                new ReferencePlane(width, height),
+                new ReferencePlane(chromaWidth, chromaHeight),
+                new ReferencePlane(chromaWidth, chromaHeight)
+        };
+    }
+
+    public void save(Block block) {
+        planes[getComponent(block.getType())].save(block);
+    }
+
+    public void saveSourceHash(Block block, long hash) {
+        planes[getComponent(block.getType())].saveSourceHash(block, hash);
+    }
+
+    public long getSourceHash(Block block) {
+        return planes[getComponent(block.getType())].getSourceHash(block);
+    }
+
+    public void extendEdges() {
+        for (ReferencePlane plane : planes) {
+            plane.extendEdges();
+        }
+    }
+
+    public ReferencePlane getPlane(int component) {
+        return planes[component];
+    }
+
+    public ReferencePlane getPlane(char type) {
+        return planes[getComponent(type)];
+    }
+
+    public static int getComponent(char type) {
+        return switch (type) {
+            case 'U' -> 1;
+            case 'V' -> 2;
+            default -> 0;
+        };
+    }
+
+    public static char getType(int component) {
+        return switch (component) {
+            case 1 -> 'U';
+            case 2 -> 'V';
+            default -> 'Y';
+        };
+    }
+}
@@ -0,0 +1,166 @@
+package jevc.entities;
+
+public class ReferencePlane {
+    /* Number of replicated samples stored around each side of the picture. It must be
+     * at least as large as the longest motion vector plus one block and one extra sample
+     * for the interpolation, so that every candidate the motion search can produce lies
+     * inside the allocated plane.
+     */
+    public static final int PADDING = 48;
+
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final short[] data;
+    // bilinear half-pel samples, indexed by phase: [1] - horizontal, [2] - vertical, [3] - diagonal
+    // they are interpolated once per reference frame, the first time a sub-pel block is requested
+    private final short[][] halfPel = new short[4][];
+    private volatile boolean interpolated;
+    // content hashes of the source blocks this plane is the reconstruction of, one per 8x8 block
+    // (see BlockHash), a source block with the same hash is unchanged since this frame
+    private final long[] sourceHashes;
+
+    public ReferencePlane(int width, int height) {
+        // the size of the coded plane, whole blocks (see ReferencePicture)
+        this.width = width;
+        this.height = height;
+        this.stride = this.width + 2 * PADDING;
+        this.data = new short[stride * (this.height + 2 * PADDING)];
+        this.sourceHashes = new long[(this.width / Block.BLOCKSIZE) * (this.height / Block.BLOCKSIZE)];
+    }
+
+    /* Index of the sample at picture coordinates [x, y]; x and y may lie inside the border. */
+    public int offset(int x, int y) {
+        return (y + PADDING) * stride + x + PADDING;
+    }
+
+    public void save(Block block) {
+        int[][] blockdata = block.getData();
+        int base = offset(block.getPosX(), block.getPosY());
+        for (int i = 0; i < Block.BLOCKSIZE; i++) {
+            for (int j = 0; j < Block.BLOCKSIZE; j++) {
+                data[base + i * stride + j] = (short) clamp(blockdata[i][j]);
+            }
+        }
+    }
+
+    public void saveSourceHash(Block block, long hash) {
+        sourceHashes[hashIndex(block)] = hash;
+    }
+
+    public long getSourceHash(Block block) {
+        return sourceHashes[hashIndex(block)];
+    }
+
+    private int hashIndex(Block block) {
+        return block.getPosY() / Block.BLOCKSIZE * (width / Block.BLOCKSIZE) + block.getPosX() / Block.BLOCKSIZE;
+    }
+
+    public Block getBlock(int x, int y, char type) {
+        int[][] blockdata = new int[Block.BLOCKSIZE][Block.BLOCKSIZE];
+        int base = offset(x, y);
+        for (int i = 0; i < Block.BLOCKSIZE; i++) {
+            for (int j = 0; j < Block.BLOCKSIZE; j++) {
+                blockdata[i][j] = data[base + i * stride + j];
+            }
+        }
+        return new Block(blockdata, type, x, y);
+    }
+
+    /* Block at quarter-pel coordinates [x4, y4]. Half-pel samples are read from the cached
+     * planes, quarter-pel samples are the rounded average of the two nearest half-pel samples.
+     */
+    public Block getSubPelBlock(int x4, int y4, char type) {
+        if ((x4 & 3) == 0 && (y4 & 3) == 0) {
+            return getBlock(x4 >> 2, y4 >> 2, type);
+        }
+        ensureInterpolated();
+
+        // nearest positions on the half-pel grid, equal if the coordinate is not a quarter-pel one
+        int ax = x4 >> 1, bx = (x4 + 1) >> 1;
+        int ay = y4 >> 1, by = (y4 + 1) >> 1;
+        short[] a = halfPel[(ay & 1) * 2 + (ax & 1)];
+        short[] b = halfPel[(by & 1) * 2 + (bx & 1)];
+        int baseA = offset(ax >> 1, ay >> 1);
+        int baseB = offset(bx >> 1, by >> 1);
+
+        int[][] blockdata = new int[Block.BLOCKSIZE][Block.BLOCKSIZE];
+        for (int i = 0; i < Block.BLOCKSIZE; i++) {
+            for (int j = 0; j < Block.BLOCKSIZE; j++) {
+                int k = i * stride + j;
+                blockdata[i][j] = (a[baseA + k] + b[baseB + k] + 1) >> 1;
+            }
+        }
+        return new Block(blockdata, type, x4 >> 2, y4 >> 2);
+    }
+
+    /* Replicates the outermost picture samples into the border. This has to be called
+     * once all the blocks of a picture have been saved and before the plane is searched.
+     */
+    public void extendEdges() {
+        interpolated = false;
+        for (int y = 0; y < height; y++) {
+            int row = offset(0, y);
+            short left = data[row];
+            short right = data[row + width - 1];
+            for (int x = 1; x <= PADDING; x++) {
+                data[row - x] = left;
+                data[row + width - 1 + x] = right;
+            }
+        }
+        int firstRow = offset(-PADDING, 0);
+        int lastRow = offset(-PADDING, height - 1);
+        for (int y = 1; y <= PADDING; y++) {
+            System.arraycopy(data, firstRow, data, firstRow - y * stride, stride);
+            System.arraycopy(data, lastRow, data, lastRow + y * stride, stride);
+        }
+    }
+
+    private synchronized void ensureInterpolated() {
+        if (interpolated) {
+            return;
+        }
+        halfPel[0] = data;
+        for (int phase = 1; phase < 4; phase++) {
+            if (halfPel[phase] == null) {
+                halfPel[phase] = new short[data.length];
+            }
+        }
+        short[] h = halfPel[1];
+        short[] v = halfPel[2];
+        short[] d = halfPel[3];
+        // the last plane row and column have no right / bottom neighbour, they are never read
+        int end = data.length - stride - 1;
+        for (int k = 0; k < end; k++) {
+            int p00 = data[k];
+            int p01 = data[k + 1];
+            int p10 = data[k + stride];
+            int p11 = data[k + stride + 1];
+            h[k] = (short) ((p00 + p01 + 1) >> 1);
+            v[k] = (short) ((p00 + p10 + 1) >> 1);
+            d[k] = (short) ((p00 + p01 + p10 + p11 + 2) >> 2);
+        }
+        interpolated = true;
+    }
+
+    public short[] getData() {
+        return data;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    private int clamp(int val) {
+        if (val < 0) return 0;
+        return Math.min(val, 255);
+    }
+}
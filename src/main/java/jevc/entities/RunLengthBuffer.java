@@ -0,0 +1,93 @@
+package jevc.entities;
+
+import java.util.ArrayList;
+
+/*
+ * The run length elements of one block as packed ints, the allocation free counterpart of
+ * RunLengthBlock. A buffer is meant to be reused for block after block, local() gives one per
+ * thread. An element packs the same (runlength, size, amplitude) triple as RunLength:
+ *
+ *      bits 25..31: runlength, signed (-1 for the DC coefficient)
+ *      bits 20..24: size
+ *      bits  0..19: amplitude, signed
+ *
+ * so an End-Of-Block element (0, 0, 0) is the int 0.
+ */
+public class RunLengthBuffer {
+    // DC + 63 AC coefficients + EOB
+    public static final int CAPACITY = 65;
+
+    private static final ThreadLocal<RunLengthBuffer> LOCAL = ThreadLocal.withInitial(RunLengthBuffer::new);
+
+    private final int[] elements = new int[CAPACITY];
+    private int size;
+    private char type = '-'; // 'Y', 'U', 'V'   ('U'='Cb'; 'V'='Cr')
+
+    /* The buffer of the current thread, it is overwritten by the next block the thread codes. */
+    public static RunLengthBuffer local() {
+        return LOCAL.get();
+    }
+
+    public static int pack(int runlength, int size, int amplitude) {
+        return (runlength << 25) | ((size & 0x1f) << 20) | (amplitude & 0xfffff);
+    }
+
+    public static int runlength(int element) {
+        return element >> 25;
+    }
+
+    public static int size(int element) {
+        return (element >> 20) & 0x1f;
+    }
+
+    public static int amplitude(int element) {
+        return (element << 12) >> 12;
+    }
+
+    /* Empties the buffer for a new block of the given type. */
+    public void clear(char type) {
+        this.type = type;
+        this.size = 0;
+    }
+
+    /* Empties the buffer for a new block of the given type (0 = Y, 1 = U, 2 = V). */
+    public void clear(int type) {
+        clear("YUV".charAt(type));
+    }
+
+    public void add(int runlength, int size, int amplitude) {
+        elements[this.size++] = pack(runlength, size, amplitude);
+    }
+
+    public int get(int index) {
+        return elements[index];
+    }
+
+    public void print() {
+        System.out.print("RunLengthBlock " + type + ": ");
+        for (int i = 0; i < size; i++) {
+            System.out.print("[" + runlength(elements[i]) + ", " + size(elements[i]) + ", " + amplitude(elements[i]) + "] ");
+        }
+        System.out.println();
+    }
+
+    public int getSize() { return size; }
+    public char getType() { return type; }
+
+    public RunLengthBlock toRunLengthBlock() {
+        ArrayList<RunLength> data = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            data.add(new RunLength(runlength(elements[i]), size(elements[i]), amplitude(elements[i])));
+        }
+        return new RunLengthBlock(data, type);
+    }
+
+    public static RunLengthBuffer of(RunLengthBlock block) {
+        RunLengthBuffer buffer = new RunLengthBuffer();
+        buffer.clear(block.getType());
+        for (RunLength rl : block.getData()) {
+            buffer.add(rl.getRunlength(), rl.getSize(), rl.getAmplitude());
+        }
+        return buffer;
+    }
+}
@@ -441,6 +441,11 @@ public class YCbCrImage {
         return new RGBImage(Y, Cb, Cr, width, height);
     }
 
+    /* Converts only the top left width x height pixels, e.g. to drop the padding added by ScaleImage. */
+    public RGBImage convertToRGBImage(int width, int height) {
+        return new RGBImage(Y, Cb, Cr, width, height);
+    }
+
     public void ScaleImage() {
         int horizontalPadding = (width%16==0) ? 0 : 16 - width%16;
         int verticalPadding = (height%16==0) ? 0 : 16 - height%16;
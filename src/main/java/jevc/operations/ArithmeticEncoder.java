@@ -0,0 +1,274 @@
+package jevc.operations;
+
+import jevc.entities.RunLengthBuffer;
+
+/*
+ * Context-adaptive binary arithmetic coding of JVid frames, the alternative to the Huffman and
+ * Exponential-Golomb codes (selected with Globals.ARITHMETIC_CODING). Every syntax element is turned
+ * into binary decisions (bins) that are coded by an ArithmeticWriter, most of them with a context: an
+ * adaptive probability for bins that behave alike. An instance holds the contexts of one frame, so
+ * a frame is coded with a new instance and every frame can be decoded on its own.
+ *
+ * The blocks are coded from their run length elements (see RunLengthBuffer), the same DC differences
+ * and coefficients the Huffman path codes:
+ *
+ *      o DC difference: its size category (as in JPEG) in unary bins with a context per bin, then the
+ *        sign and the bits below the leading one directly.
+ *      o coded flag: whether the block has any AC coefficient.
+ *      o significance map: for the AC positions in zig-zag order up to the last coefficient, whether the
+ *        coefficient is non zero and if so whether it is the last one. Every position has its own
+ *        contexts; position 63 is never signalled, if the map gets there it is the last coefficient.
+ *      o levels, in reverse zig-zag order: |level| - 1 in unary bins up to LEVEL_CUTOFF, the rest as an
+ *        Exp-Golomb code in direct bits, then the sign. The context of the first bin depends on how
+ *        many levels of 1 and larger than 1 came before, as in H.264 CABAC.
+ *
+ * P frames add the macroblock header: skip flag, intra flag, reference index (unary), the motion vector
+ * difference (coded like a DC difference, per component) and the coded block pattern (a bin per block).
+ * Luma and chroma blocks have separate contexts.
+ */
+public class ArithmeticEncoder {
+    private static final int SIZE_CONTEXTS = 12;
+    private static final int LEVEL_CUTOFF = 14;
+    private static final int LEVEL_FIRST_CONTEXTS = 5; // 0: after a level > 1, 1..4: after 0..3+ levels of 1
+    private static final int LEVEL_REST_CONTEXTS = 5;
+
+    // [0] luma, [1] chroma
+    private final short[][] dcContexts = {ArithmeticWriter.newContexts(SIZE_CONTEXTS), ArithmeticWriter.newContexts(SIZE_CONTEXTS)};
+    private final short[] codedContexts = ArithmeticWriter.newContexts(2);
+    private final short[][] significanceContexts = {ArithmeticWriter.newContexts(64), ArithmeticWriter.newContexts(64)};
+    private final short[][] lastContexts = {ArithmeticWriter.newContexts(64), ArithmeticWriter.newContexts(64)};
+    private final short[][] levelContexts = {
+            ArithmeticWriter.newContexts(LEVEL_FIRST_CONTEXTS + LEVEL_REST_CONTEXTS),
+            ArithmeticWriter.newContexts(LEVEL_FIRST_CONTEXTS + LEVEL_REST_CONTEXTS)
+    };
+
+    // macroblock header of P frames
+    private final short[] skipContexts = ArithmeticWriter.newContexts(3);
+    private final short[] intraContexts = ArithmeticWriter.newContexts(1);
+    private final short[] referenceContexts = ArithmeticWriter.newContexts(3);
+    private final short[][] vectorContexts = {ArithmeticWriter.newContexts(SIZE_CONTEXTS), ArithmeticWriter.newContexts(SIZE_CONTEXTS)};
+    private final short[] patternContexts = ArithmeticWriter.newContexts(12);
+
+    // positions and levels of the AC coefficients of the current block
+    private final int[] positions = new int[64];
+    private final int[] levels = new int[64];
+
+    public void encodeBlock(ArithmeticWriter writer, RunLengthBuffer block) {
+        int component = block.getType() == 'Y' ? 0 : 1;
+        encodeSigned(writer, dcContexts[component], RunLengthBuffer.amplitude(block.get(0)));
+
+        int count = 0;
+        int position = 0;
+        for (int k = 1; k < block.getSize() && block.get(k) != 0; k++) {
+            position += RunLengthBuffer.runlength(block.get(k)) + 1;
+            positions[count] = position;
+            levels[count++] = RunLengthBuffer.amplitude(block.get(k));
+        }
+
+        writer.encodeBit(codedContexts, component, count > 0 ? 1 : 0);
+        if (count == 0) {
+            return;
+        }
+
+        // significance map
+        int k = 0;
+        for (int i = 1; i < 63; i++) {
+            int significant = positions[k] == i ? 1 : 0;
+            writer.encodeBit(significanceContexts[component], i, significant);
+            if (significant != 0) {
+                int last = ++k == count ? 1 : 0;
+                writer.encodeBit(lastContexts[component], i, last);
+                if (last != 0) {
+                    break;
+                }
+            }
+        }
+
+        // levels
+        int levelsOfOne = 0, largerLevels = 0;
+        for (k = count - 1; k >= 0; k--) {
+            int magnitude = Math.abs(levels[k]) - 1;
+            int firstContext = largerLevels > 0 ? 0 : Math.min(LEVEL_FIRST_CONTEXTS - 1, 1 + levelsOfOne);
+            int restContext = LEVEL_FIRST_CONTEXTS + Math.min(LEVEL_REST_CONTEXTS - 1, largerLevels);
+            writer.encodeBit(levelContexts[component], firstContext, magnitude > 0 ? 1 : 0);
+            if (magnitude > 0) {
+                for (int bin = 1; bin < LEVEL_CUTOFF && bin < magnitude; bin++) {
+                    writer.encodeBit(levelContexts[component], restContext, 1);
+                }
+                if (magnitude < LEVEL_CUTOFF) {
+                    writer.encodeBit(levelContexts[component], restContext, 0);
+                } else {
+                    encodeExpGolomb(writer, magnitude - LEVEL_CUTOFF);
+                }
+                largerLevels++;
+            } else {
+                levelsOfOne++;
+            }
+            writer.encodeDirectBits(levels[k] < 0 ? 1 : 0, 1);
+        }
+    }
+
+    /* Appends the run length elements of the next block to `block`, see encodeBlock(). */
+    public void decodeBlock(ArithmeticReader reader, RunLengthBuffer block) {
+        int component = block.getType() == 'Y' ? 0 : 1;
+        int dc = decodeSigned(reader, dcContexts[component]);
+        block.add(-1, getSize(dc), dc);
+
+        if (reader.decodeBit(codedContexts, component) == 0) {
+            block.add(0, 0, 0);
+            return;
+        }
+
+        int count = 0;
+        boolean isLast = false;
+        for (int i = 1; i < 63 && !isLast; i++) {
+            if (reader.decodeBit(significanceContexts[component], i) != 0) {
+                positions[count++] = i;
+                isLast = reader.decodeBit(lastContexts[component], i) != 0;
+            }
+        }
+        if (!isLast) {
+            positions[count++] = 63;
+        }
+
+        int levelsOfOne = 0, largerLevels = 0;
+        for (int k = count - 1; k >= 0; k--) {
+            int firstContext = largerLevels > 0 ? 0 : Math.min(LEVEL_FIRST_CONTEXTS - 1, 1 + levelsOfOne);
+            int restContext = LEVEL_FIRST_CONTEXTS + Math.min(LEVEL_REST_CONTEXTS - 1, largerLevels);
+            int magnitude = reader.decodeBit(levelContexts[component], firstContext);
+            if (magnitude > 0) {
+                while (magnitude < LEVEL_CUTOFF && reader.decodeBit(levelContexts[component], restContext) != 0) {
+                    magnitude++;
+                }
+                if (magnitude == LEVEL_CUTOFF) {
+                    magnitude += decodeExpGolomb(reader);
+                }
+                largerLevels++;
+            } else {
+                levelsOfOne++;
+            }
+            levels[k] = reader.decodeDirectBits(1) != 0 ? -(magnitude + 1) : magnitude + 1;
+        }
+
+        int previous = 0;
+        for (int k = 0; k < count; k++) {
+            block.add(positions[k] - previous - 1, getSize(levels[k]), levels[k]);
+            previous = positions[k];
+        }
+        if (previous < 63) {
+            block.add(0, 0, 0);
+        }
+    }
+
+    /* `neighbours` is the number of skipped macroblocks among the left and the top neighbour. */
+    public void encodeSkip(ArithmeticWriter writer, boolean skip, int neighbours) {
+        writer.encodeBit(skipContexts, neighbours, skip ? 1 : 0);
+    }
+
+    public boolean decodeSkip(ArithmeticReader reader, int neighbours) {
+        return reader.decodeBit(skipContexts, neighbours) != 0;
+    }
+
+    /* Number of skipped macroblocks among the left and the top neighbour of macroblock `index`. */
+    public static int getSkippedNeighbours(boolean[] skipped, int index, int columns) {
+        int neighbours = 0;
+        if (index % columns != 0 && skipped[index - 1]) {
+            neighbours++;
+        }
+        if (index >= columns && skipped[index - columns]) {
+            neighbours++;
+        }
+        return neighbours;
+    }
+
+    public void encodeIntra(ArithmeticWriter writer, boolean intra) {
+        writer.encodeBit(intraContexts, 0, intra ? 1 : 0);
+    }
+
+    public boolean decodeIntra(ArithmeticReader reader) {
+        return reader.decodeBit(intraContexts, 0) != 0;
+    }
+
+    public void encodeReference(ArithmeticWriter writer, int refIndex) {
+        for (int bin = 0; bin <= refIndex; bin++) {
+            writer.encodeBit(referenceContexts, Math.min(bin, referenceContexts.length - 1), bin < refIndex ? 1 : 0);
+        }
+    }
+
+    public int decodeReference(ArithmeticReader reader) {
+        int refIndex = 0;
+        while (reader.decodeBit(referenceContexts, Math.min(refIndex, referenceContexts.length - 1)) != 0) {
+            refIndex++;
+        }
+        return refIndex;
+    }
+
+    /* A motion vector difference (or the global motion vector), x and y. */
+    public void encodeVector(ArithmeticWriter writer, int[] vector) {
+        encodeSigned(writer, vectorContexts[0], vector[0]);
+        encodeSigned(writer, vectorContexts[1], vector[1]);
+    }
+
+    public int[] decodeVector(ArithmeticReader reader) {
+        return new int[]{decodeSigned(reader, vectorContexts[0]), decodeSigned(reader, vectorContexts[1])};
+    }
+
+    /* One bin per block of the macroblock, MSB first; intra macroblocks have their own contexts. */
+    public void encodeCodedBlockPattern(ArithmeticWriter writer, int codedBlockPattern, int blocks, boolean intra) {
+        for (int k = 0; k < blocks; k++) {
+            writer.encodeBit(patternContexts, k + (intra ? blocks : 0), (codedBlockPattern >>> (blocks - 1 - k)) & 1);
+        }
+    }
+
+    public int decodeCodedBlockPattern(ArithmeticReader reader, int blocks, boolean intra) {
+        int codedBlockPattern = 0;
+        for (int k = 0; k < blocks; k++) {
+            codedBlockPattern = (codedBlockPattern << 1) | reader.decodeBit(patternContexts, k + (intra ? blocks : 0));
+        }
+        return codedBlockPattern;
+    }
+
+    /* Size category in unary bins (bin i with context i), then sign and the bits below the leading one. */
+    private static void encodeSigned(ArithmeticWriter writer, short[] contexts, int value) {
+        int size = getSize(value);
+        for (int bin = 0; bin <= size; bin++) {
+            writer.encodeBit(contexts, Math.min(bin, contexts.length - 1), bin < size ? 1 : 0);
+        }
+        if (size > 0) {
+            writer.encodeDirectBits(value < 0 ? 1 : 0, 1);
+            writer.encodeDirectBits(Math.abs(value), size - 1);
+        }
+    }
+
+    private static int decodeSigned(ArithmeticReader reader, short[] contexts) {
+        int size = 0;
+        while (reader.decodeBit(contexts, Math.min(size, contexts.length - 1)) != 0) {
+            size++;
+        }
+        if (size == 0) {
+            return 0;
+        }
+        boolean negative = reader.decodeDirectBits(1) != 0;
+        int magnitude = (1 << (size - 1)) | reader.decodeDirectBits(size - 1);
+        return negative ? -magnitude : magnitude;
+    }
+
+    /* Exp-Golomb code (order 0) in direct bits. */
+    private static void encodeExpGolomb(ArithmeticWriter writer, int value) {
+        int length = 32 - Integer.numberOfLeadingZeros(value + 1);
+        writer.encodeDirectBits(0, length - 1);
+        writer.encodeDirectBits(value + 1, length);
+    }
+
+    private static int decodeExpGolomb(ArithmeticReader reader) {
+        int zeros = 0;
+        while (reader.decodeDirectBits(1) == 0) {
+            zeros++;
+        }
+        return ((1 << zeros) | reader.decodeDirectBits(zeros)) - 1;
+    }
+
+    private static int getSize(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+}
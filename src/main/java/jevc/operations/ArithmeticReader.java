@@ -0,0 +1,71 @@
+package jevc.operations;
+
+/*
+ * Decodes the data of an ArithmeticWriter. The contexts must be the same and in the same state as they
+ * were in the writer when it coded the bit, so they are adapted in the same way here. Past the end of
+ * the data the reader sees zero bytes.
+ */
+public final class ArithmeticReader {
+    private final byte[] data;
+    private final int end;
+    private int position;
+    private int range = -1; // unsigned
+    private int code;       // unsigned, the offset of the coded value in the current interval
+
+    public ArithmeticReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    public ArithmeticReader(byte[] data, int offset, int length) {
+        this.data = data;
+        this.position = offset;
+        this.end = offset + length;
+        // the first byte of the writer is always 0
+        for (int i = 0; i < 5; i++) {
+            code = (code << 8) | nextByte();
+        }
+    }
+
+    public int decodeBit(short[] contexts, int index) {
+        int probability = contexts[index];
+        int bound = (range >>> ArithmeticWriter.PROBABILITY_BITS) * probability;
+        int bit;
+        if (Integer.compareUnsigned(code, bound) < 0) {
+            range = bound;
+            contexts[index] = (short) (probability + ((ArithmeticWriter.PROBABILITY_ONE - probability) >>> ArithmeticWriter.ADAPTATION_SHIFT));
+            bit = 0;
+        } else {
+            code -= bound;
+            range -= bound;
+            contexts[index] = (short) (probability - (probability >>> ArithmeticWriter.ADAPTATION_SHIFT));
+            bit = 1;
+        }
+        normalize();
+        return bit;
+    }
+
+    public int decodeDirectBits(int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            range >>>= 1;
+            int bit = Integer.compareUnsigned(code, range) >= 0 ? 1 : 0;
+            if (bit != 0) {
+                code -= range;
+            }
+            value = (value << 1) | bit;
+            normalize();
+        }
+        return value;
+    }
+
+    private void normalize() {
+        while (Integer.compareUnsigned(range, ArithmeticWriter.TOP) < 0) {
+            code = (code << 8) | nextByte();
+            range <<= 8;
+        }
+    }
+
+    private int nextByte() {
+        return position < end ? data[position++] & 0xFF : 0;
+    }
+}
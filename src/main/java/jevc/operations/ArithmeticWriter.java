@@ -0,0 +1,93 @@
+package jevc.operations;
+
+import jevc.entities.InternalFrameBuffer;
+
+import java.util.Arrays;
+
+/*
+ * Binary arithmetic coder, the counterpart of ArithmeticReader. It is a range coder in the style of
+ * LZMA: the interval is kept as `low` and a 32 bit `range`, bytes leave `low` from the top and a carry
+ * into bytes that are already complete is resolved through `cache` (the last byte that may still
+ * change) and the run of 0xFF bytes that follow it.
+ *
+ * Bits are coded either with an adaptive probability, one of the contexts in a short[] array (see
+ * ArithmeticEncoder), or directly with probability 1/2. A context holds the probability that the next
+ * bit is 0 in PROBABILITY_BITS bits and moves towards every coded bit by 1/2^ADAPTATION_SHIFT of the
+ * distance.
+ */
+public final class ArithmeticWriter {
+    static final int PROBABILITY_BITS = 11;
+    static final int PROBABILITY_ONE = 1 << PROBABILITY_BITS;
+    static final int ADAPTATION_SHIFT = 4;
+    static final int TOP = 1 << 24;
+
+    private final InternalFrameBuffer outputStream;
+    private long low;          // 33 bits, bit 32 is the carry
+    private int range = -1;    // unsigned
+    private int cache;
+    private long cacheSize = 1;
+
+    public ArithmeticWriter(InternalFrameBuffer outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    /* A new set of contexts, every probability 1/2. */
+    public static short[] newContexts(int count) {
+        short[] contexts = new short[count];
+        Arrays.fill(contexts, (short) (PROBABILITY_ONE / 2));
+        return contexts;
+    }
+
+    public void encodeBit(short[] contexts, int index, int bit) {
+        int probability = contexts[index];
+        int bound = (range >>> PROBABILITY_BITS) * probability;
+        if (bit == 0) {
+            range = bound;
+            contexts[index] = (short) (probability + ((PROBABILITY_ONE - probability) >>> ADAPTATION_SHIFT));
+        } else {
+            low += bound & 0xFFFFFFFFL;
+            range -= bound;
+            contexts[index] = (short) (probability - (probability >>> ADAPTATION_SHIFT));
+        }
+        while (Integer.compareUnsigned(range, TOP) < 0) {
+            range <<= 8;
+            shiftLow();
+        }
+    }
+
+    /* Codes the `count` least significant bits of `value`, MSB first, each with probability 1/2. */
+    public void encodeDirectBits(int value, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            range >>>= 1;
+            if (((value >>> i) & 1) != 0) {
+                low += range;
+            }
+            while (Integer.compareUnsigned(range, TOP) < 0) {
+                range <<= 8;
+                shiftLow();
+            }
+        }
+    }
+
+    /* Writes the bytes that are still pending, the data can be decoded completely afterwards. */
+    public void finish() {
+        for (int i = 0; i < 5; i++) {
+            shiftLow();
+        }
+    }
+
+    private void shiftLow() {
+        int carry = (int) (low >>> 32);
+        if (carry != 0 || low < 0xFF000000L) {
+            // the top byte of `low` can no longer change the cached bytes
+            int value = cache;
+            do {
+                outputStream.write(value + carry);
+                value = 0xFF;
+            } while (--cacheSize != 0);
+            cache = (int) (low >>> 24) & 0xFF;
+        }
+        cacheSize++;
+        low = (low & 0x00FFFFFF) << 8;
+    }
+}
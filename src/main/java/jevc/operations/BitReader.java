@@ -0,0 +1,107 @@
+package jevc.operations;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Reads entropy coded data MSB first, skipping the 0x00 bytes stuffed after every 0xFF byte.
+ *
+ * The input is never modified and only read with absolute gets, all cursor state lives in the
+ * reader. Any number of readers, e.g. one per thread, can therefore decode different frames or
+ * segments of one shared buffer (a heap array or a memory-mapped file) at the same time; a single
+ * reader is not meant to be shared between threads.
+ *
+ * Bits are served from a 64 bit reservoir which is refilled a byte at a time. Past the end of the
+ * data the reservoir is filled with zero bits, remainingBits() tells where the real bits end.
+ */
+public final class BitReader {
+    private final ByteBuffer data;
+    private final int end;
+    private final long totalBits; // bits of the data without stuffed bytes
+    private int position;         // index of the next byte that is moved into the reservoir
+    private long bitBuffer;       // the next `bitCount` bits are its most significant bits
+    private int bitCount;
+    private long remainingBits;   // bits that have not been consumed yet
+
+    public BitReader(byte[] data) {
+        this(ByteBuffer.wrap(data), 0, data.length);
+    }
+
+    public BitReader(byte[] data, int offset, int length) {
+        this(ByteBuffer.wrap(data), offset, length);
+    }
+
+    public BitReader(ByteBuffer data, int offset, int length) {
+        this.data = data;
+        this.position = offset;
+        this.end = offset + length;
+
+        long stuffedBytes = 0;
+        for (int i = offset; i + 1 < end; i++) {
+            if (data.get(i) == (byte) 0xff && data.get(i + 1) == 0) {
+                stuffedBytes++;
+                i++;
+            }
+        }
+        this.totalBits = 8L * (length - stuffedBytes);
+        this.remainingBits = totalBits;
+    }
+
+    public long remainingBits() {
+        return Math.max(remainingBits, 0);
+    }
+
+    /* Number of bits consumed so far, the positional cursor of the reader. */
+    public long bitPosition() {
+        return totalBits - remainingBits;
+    }
+
+    /* The next `n` (at most 32) bits, without consuming them. */
+    public int peekBits(int n) {
+        if (bitCount < n) {
+            refill();
+        }
+        return (int) (bitBuffer >>> (64 - n));
+    }
+
+    public void skipBits(int n) {
+        if (bitCount < n) {
+            refill();
+        }
+        bitBuffer <<= n;
+        bitCount -= n;
+        remainingBits -= n;
+    }
+
+    public int readBits(int n) {
+        int bits = peekBits(n);
+        skipBits(n);
+        return bits;
+    }
+
+    /* Skips the padding bits up to the next byte border, e.g. after a flushed block. */
+    public void alignToByte() {
+        int padding = (int) ((8 - bitPosition() % 8) % 8);
+        skipBits(padding);
+    }
+
+    /* Consumes the rest of the data, e.g. after a corrupt codeword. */
+    public void skipToEnd() {
+        remainingBits = 0;
+    }
+
+    /* Tops the reservoir up to at least 57 bits. */
+    private void refill() {
+        while (bitCount <= 56) {
+            int b = 0;
+            if (position < end) {
+                b = data.get(position++) & 0xff;
+                // if we have 0xff followed by 0x00 in the encoded byte stream, we ignore the 0x00 byte
+                if ((b == 0xff) && (position < end) && (data.get(position) == 0x00)) {
+                    position++;
+                }
+            }
+            bitBuffer |= (long) b << (56 - bitCount);
+            bitCount += 8;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package jevc.operations;
+
+import jevc.entities.InternalFrameBuffer;
+
+/*
+ * Writes entropy coded data MSB first, stuffing a 0x00 byte after every 0xFF byte (the counterpart
+ * of BitReader).
+ *
+ * Bits are collected in a 64 bit accumulator and leave it 32 at a time: one write of up to 32 bits
+ * always fits next to the fewer than 32 bits that are pending. A word without a 0xFF byte, which
+ * is found with a single bit trick, is appended as a whole; only the rare words with a 0xFF byte
+ * are written byte by byte.
+ */
+public final class BitWriter {
+    private long bitBuffer; // the `bitCount` most significant bits are occupied
+    private int bitCount;   // fewer than 32 between calls
+
+    /* Appends the `n` (at most 32) least significant bits of `bits`. */
+    public void write(InternalFrameBuffer outputStream, int bits, int n) {
+        long value = (bits & 0xFFFFFFFFL) & ((1L << n) - 1);
+        bitBuffer |= value << (64 - bitCount - n);
+        bitCount += n;
+        if (bitCount >= 32) {
+            writeWord(outputStream, (int) (bitBuffer >>> 32));
+            bitBuffer <<= 32;
+            bitCount -= 32;
+        }
+    }
+
+    /* Writes the pending bits padded with zero bits to a byte border. */
+    public void flush(InternalFrameBuffer outputStream) {
+        while (bitCount > 0) {
+            writeByte(outputStream, (int) (bitBuffer >>> 56));
+            bitBuffer <<= 8;
+            bitCount -= 8;
+        }
+        bitBuffer = 0;
+        bitCount = 0;
+    }
+
+    private static void writeWord(InternalFrameBuffer outputStream, int word) {
+        // a byte of `word` is 0xFF <=> that byte of ~word is zero
+        int inverted = ~word;
+        if (((inverted - 0x01010101) & ~inverted & 0x80808080) == 0) {
+            outputStream.writeWord(word);
+            return;
+        }
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            writeByte(outputStream, (word >>> shift) & 0xff);
+        }
+    }
+
+    private static void writeByte(InternalFrameBuffer outputStream, int c) {
+        outputStream.write(c);
+        if (c == 0xff) {
+            // 0xff is a segment prefix, so if it appears in the pixels bitstream,
+            // it must be immediately followed by a 0x00 byte.
+            outputStream.write(0);
+        }
+    }
+}
@@ -1,101 +1,85 @@
 package jevc.operations;
 
 import jevc.entities.Block;
-
-import java.util.HashMap;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
+import jevc.entities.MotionVector;
+import jevc.entities.ReferencePicture;
+import jevc.entities.ReferencePlane;
 
 import static jevc.entities.Globals.MAX_WIDTH;
 import static jevc.entities.Globals.MAX_HEIGHT;
-
+import static jevc.entities.Globals.MAX_REFERENCE_FRAMES;
+import static jevc.entities.Globals.SAMPLING;
+
+/*
+ * Holds the last MAX_REFERENCE_FRAMES reconstructed frames in a ring.
+ * Blocks are saved into a working picture which becomes a reference once commit() is called;
+ * the oldest reference is then evicted and its planes are reused for the next working picture.
+ * Reference index 0 is always the most recently committed frame.
+ * The motion search over the references lives in MotionEstimator.
+ */
 public class BlockBuffer {
-    private final HashMap<Character, Block[][]> buffer;
-    // searchRadius = 3 => max search area = 7x7 centered
-    private final int searchRadius = 3;
+    private final ReferencePicture[] references;
+    private ReferencePicture current;
+    private final int sampling; // of the saved frames, the chroma planes are sized after it
+    private int newest; // ring slot of reference index 0
+    private int count;
 
     public BlockBuffer() {
-        buffer = new HashMap<>();
-        buffer.put('Y', new Block[MAX_HEIGHT / 8 + 1][MAX_WIDTH / 8 + 1]);
-        buffer.put('U', new Block[MAX_HEIGHT / 8 + 1][MAX_WIDTH / 8 + 1]);
-        buffer.put('V', new Block[MAX_HEIGHT / 8 + 1][MAX_WIDTH / 8 + 1]);
+        this(MAX_REFERENCE_FRAMES);
     }
 
-    public void save(Block block) {
-        buffer.get(block.getType())[block.getPosY() / 8][block.getPosX() / 8] = block;
+    public BlockBuffer(int size) {
+        this(size, SAMPLING);
     }
 
-    public Block getSimilarBlock(Block block) {
-        int y = block.getPosY();
-        int x = block.getPosX();
-//        System.out.println("Current Block: [" + x + ", " + y + "]");
-//        double[][] MSEValues = new double[searchRadius * 2 + 1][searchRadius * 2 + 1];
-
-        int top = y/8 - searchRadius;
-        int bottom = y/8 + searchRadius;
-        int left = x/8 - searchRadius;
-        int right = x/8 + searchRadius;
-
-        // check if block is on any edges or corners of the frame
-
-        if (top < 0) top = 0;
-        if (bottom >= MAX_HEIGHT / 8) bottom = MAX_HEIGHT / 8 - 1;
-        if (left < 0) left = 0;
-        if (right >= MAX_WIDTH / 8) right = MAX_WIDTH / 8 - 1;
-
-        Block currentMinMSEBlock = buffer.get(block.getType())[y / 8][x / 8];
-        double currentMinMSE = 99999999.9;
-
-        // if not, we have a safe square around it to check
-        for (int i = top; i <= bottom; i++) {
-            for (int j = left; j <= right; j++) {
-                double currentMSE = computeMeanSquaredError(block, buffer.get(block.getType())[i][j]);
-                if (currentMSE < currentMinMSE) {
-                    currentMinMSE = currentMSE;
-                    currentMinMSEBlock = buffer.get(block.getType())[i][j];
-                }
-//                MSEValues[i][j] = currentMSE;
-            }
-        }
+    public BlockBuffer(int size, int sampling) {
+        this.sampling = sampling;
+        references = new ReferencePicture[size];
+        current = new ReferencePicture(MAX_WIDTH, MAX_HEIGHT, sampling);
+        newest = -1;
+        count = 0;
+    }
 
-        // DEBUG
-//        for (int i = top; i <= bottom; i++) {
-//            for (int j = left; j <= right; j++) {
-//                System.out.print(MSEValues[i][j] + " ");
-//            }
-//            System.out.println();
-//        }
-        return currentMinMSEBlock;
+    /* Drops every reference, e.g. when an I frame starts a new GOP. */
+    public void clear() {
+        count = 0;
     }
 
-    public Block getBlock(int x, int y, int type) {
-        char blockType = 'Y';
-        switch (type) {
-            case 0 -> {
-            }
-            case 1 -> blockType = 'U';
-            case 2 -> blockType = 'V';
-        }
-        return buffer.get(blockType)[y / 8][x / 8];
+    public void save(Block block) {
+        current.save(block);
     }
 
-    private double computeMeanSquaredError(Block A, Block B) {
-        double MSE = 0.0;
-        int[] aData = Stream.of(A.getData())
-                .flatMapToInt(IntStream::of)
-                .toArray();
+    /* Content hash of the source block the saved block reconstructs, see BlockHash. */
+    public void saveSourceHash(Block block, long hash) {
+        current.saveSourceHash(block, hash);
+    }
 
-        int[] bData = Stream.of(B.getData())
-                .flatMapToInt(IntStream::of)
-                .toArray();
-        int len = aData.length;
+    /* Must be called after the last block of a reference frame has been saved. */
+    public void commit() {
+        current.extendEdges();
+        newest = (newest + 1) % references.length;
+        ReferencePicture evicted = references[newest];
+        references[newest] = current;
+        count = Math.min(count + 1, references.length);
+        current = (evicted != null) ? evicted : new ReferencePicture(MAX_WIDTH, MAX_HEIGHT, sampling);
+    }
 
-        for (int i = 0; i < len; i++) {
-            MSE += Math.pow((aData[i] - bData[i]), 2);
-        }
+    /* Number of frames that can currently be referenced. */
+    public int size() {
+        return count;
+    }
 
-        MSE /= len;
+    public ReferencePicture getReference(int refIndex) {
+        return references[(newest - refIndex + references.length) % references.length];
+    }
 
-        return MSE;
+    /* Prediction for the block at [x, y] (in pixels) of component `type` (0/1/2 => Y/U/V). */
+    public Block getBlock(int x, int y, int type, MotionVector motionVector) {
+        int[] vector = motionVector.decompress();
+        ReferencePlane plane = getReference(motionVector.getRefIndex()).getPlane(type);
+        Block block = plane.getSubPelBlock(x * 4 + vector[0], y * 4 + vector[1], ReferencePicture.getType(type));
+        block.setPos(x, y);
+        block.setRefIndex(motionVector.getRefIndex());
+        return block;
     }
 }
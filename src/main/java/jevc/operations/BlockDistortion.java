@@ -0,0 +1,210 @@
+package jevc.operations;
+
+import java.util.Arrays;
+
+import static jevc.entities.Block.BLOCKSIZE;
+
+/*
+ * Block distortion kernels used by motion search and mode decision.
+ *
+ * Every kernel compares an 8x8 block of the current frame with an 8x8 area of
+ * a reference. The reference is either another block or a padded plane stored as
+ * a flat short[] array (`offset` is the index of the top-left sample and `stride`
+ * is the length of one plane row).
+ *
+ * The loops are deliberately kept plain (no streams, no boxing, no Math.pow) and
+ * the inner loops always walk contiguous memory, so HotSpot's superword pass turns
+ * them into SIMD code without needing the incubating Vector API on the module path.
+ * The multi-candidate variants put the candidate index in the innermost loop: one
+ * call evaluates `count` horizontally adjacent candidate positions (8 or 16 is
+ * the sweet spot) and every lane of a vector register works on a different
+ * candidate.
+ */
+public final class BlockDistortion {
+    private BlockDistortion() { }
+
+    /* Sum of absolute differences between two 8x8 blocks. */
+    public static int sad(int[][] a, int[][] b) {
+        int sad = 0;
+        for (int i = 0; i < BLOCKSIZE; i++) {
+            int[] rowA = a[i];
+            int[] rowB = b[i];
+            for (int j = 0; j < BLOCKSIZE; j++) {
+                sad += Math.abs(rowA[j] - rowB[j]);
+            }
+        }
+        return sad;
+    }
+
+    /* Sum of absolute differences between a block and the 8x8 plane area starting at `offset`. */
+    public static int sad(int[][] block, short[] plane, int offset, int stride) {
+        int sad = 0;
+        for (int i = 0; i < BLOCKSIZE; i++) {
+            int[] row = block[i];
+            int base = offset + i * stride;
+            for (int j = 0; j < BLOCKSIZE; j++) {
+                sad += Math.abs(row[j] - plane[base + j]);
+            }
+        }
+        return sad;
+    }
+
+    /*
+     * SAD over the even rows of two 8x8 blocks only, doubled so it estimates the full SAD.
+     * Whole rows are skipped instead of a checkerboard so the inner loop stays contiguous.
+     */
+    public static int sadSubsampled(int[][] a, int[][] b) {
+        int sad = 0;
+        for (int i = 0; i < BLOCKSIZE; i += 2) {
+            int[] rowA = a[i];
+            int[] rowB = b[i];
+            for (int j = 0; j < BLOCKSIZE; j++) {
+                sad += Math.abs(rowA[j] - rowB[j]);
+            }
+        }
+        return sad << 1;
+    }
+
+    /* Even row SAD between a block and the 8x8 plane area starting at `offset`, see sadSubsampled(). */
+    public static int sadSubsampled(int[][] block, short[] plane, int offset, int stride) {
+        int sad = 0;
+        for (int i = 0; i < BLOCKSIZE; i += 2) {
+            int[] row = block[i];
+            int base = offset + i * stride;
+            for (int j = 0; j < BLOCKSIZE; j++) {
+                sad += Math.abs(row[j] - plane[base + j]);
+            }
+        }
+        return sad << 1;
+    }
+
+    /*
+     * SAD for `count` candidates at plane positions offset, offset+1, ..., offset+count-1.
+     * out[c] receives the SAD of the candidate starting at offset+c.
+     */
+    public static void sadRow(int[][] block, short[] plane, int offset, int stride, int count, int[] out) {
+        sadRow(block, plane, offset, stride, count, out, 1);
+    }
+
+    /* Even row SAD for `count` horizontally adjacent candidates, see sadRow() and sadSubsampled(). */
+    public static void sadRowSubsampled(int[][] block, short[] plane, int offset, int stride, int count, int[] out) {
+        sadRow(block, plane, offset, stride, count, out, 2);
+        for (int c = 0; c < count; c++) {
+            out[c] <<= 1;
+        }
+    }
+
+    private static void sadRow(int[][] block, short[] plane, int offset, int stride, int count, int[] out, int rowStep) {
+        Arrays.fill(out, 0, count, 0);
+        for (int i = 0; i < BLOCKSIZE; i += rowStep) {
+            int[] row = block[i];
+            int base = offset + i * stride;
+            for (int j = 0; j < BLOCKSIZE; j++) {
+                int pixel = row[j];
+                int start = base + j;
+                for (int c = 0; c < count; c++) {
+                    out[c] += Math.abs(pixel - plane[start + c]);
+                }
+            }
+        }
+    }
+
+    /* Sum of squared differences between two 8x8 blocks. */
+    public static int ssd(int[][] a, int[][] b) {
+        int ssd = 0;
+        for (int i = 0; i < BLOCKSIZE; i++) {
+            int[] rowA = a[i];
+            int[] rowB = b[i];
+            for (int j = 0; j < BLOCKSIZE; j++) {
+                int diff = rowA[j] - rowB[j];
+                ssd += diff * diff;
+            }
+        }
+        return ssd;
+    }
+
+    /* Sum of squared differences between a block and the 8x8 plane area starting at `offset`. */
+    public static int ssd(int[][] block, short[] plane, int offset, int stride) {
+        int ssd = 0;
+        for (int i = 0; i < BLOCKSIZE; i++) {
+            int[] row = block[i];
+            int base = offset + i * stride;
+            for (int j = 0; j < BLOCKSIZE; j++) {
+                int diff = row[j] - plane[base + j];
+                ssd += diff * diff;
+            }
+        }
+        return ssd;
+    }
+
+    /*
+     * Sum of absolute transformed differences: the difference block goes through an
+     * 8x8 Hadamard transform and the absolute coefficients are summed. The result is
+     * divided by 8, which makes it the SATD of the orthonormal transform. SATD follows
+     * the bit cost of a residual much more closely than SAD, so it is the metric of
+     * choice for mode decision.
+     */
+    public static int satd(int[][] a, int[][] b) {
+        int[] diff = new int[BLOCKSIZE * BLOCKSIZE];
+        for (int i = 0; i < BLOCKSIZE; i++) {
+            for (int j = 0; j < BLOCKSIZE; j++) {
+                diff[i * BLOCKSIZE + j] = a[i][j] - b[i][j];
+            }
+        }
+        return hadamardSum(diff) >> 3;
+    }
+
+    /*
+     * SATD of a block against its own mean: the Hadamard coefficients without the DC one. It
+     * estimates the cost of coding the block without prediction, for intra/inter mode decision.
+     */
+    public static int satdAC(int[][] block) {
+        int[] coefficients = new int[BLOCKSIZE * BLOCKSIZE];
+        for (int i = 0; i < BLOCKSIZE; i++) {
+            System.arraycopy(block[i], 0, coefficients, i * BLOCKSIZE, BLOCKSIZE);
+        }
+        int sum = hadamardSum(coefficients);
+        return (sum - Math.abs(coefficients[0])) >> 3;
+    }
+
+    /* SATD between a block and the 8x8 plane area starting at `offset`. */
+    public static int satd(int[][] block, short[] plane, int offset, int stride) {
+        int[] diff = new int[BLOCKSIZE * BLOCKSIZE];
+        for (int i = 0; i < BLOCKSIZE; i++) {
+            int base = offset + i * stride;
+            for (int j = 0; j < BLOCKSIZE; j++) {
+                diff[i * BLOCKSIZE + j] = block[i][j] - plane[base + j];
+            }
+        }
+        return hadamardSum(diff) >> 3;
+    }
+
+    /* Transforms the 8x8 `diff` in place (rows, then columns) and returns the sum of absolute coefficients. */
+    private static int hadamardSum(int[] diff) {
+        for (int i = 0; i < BLOCKSIZE; i++) {
+            hadamard8(diff, i * BLOCKSIZE, 1);
+        }
+        int sum = 0;
+        for (int j = 0; j < BLOCKSIZE; j++) {
+            hadamard8(diff, j, BLOCKSIZE);
+        }
+        for (int value : diff) {
+            sum += Math.abs(value);
+        }
+        return sum;
+    }
+
+    /* Unnormalized 8 point fast Walsh-Hadamard transform of data[start], data[start+step], ... */
+    private static void hadamard8(int[] data, int start, int step) {
+        for (int len = 1; len < BLOCKSIZE; len <<= 1) {
+            for (int i = 0; i < BLOCKSIZE; i += len << 1) {
+                for (int j = i; j < i + len; j++) {
+                    int x = data[start + j * step];
+                    int y = data[start + (j + len) * step];
+                    data[start + j * step] = x + y;
+                    data[start + (j + len) * step] = x - y;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package jevc.operations;
+
+import static jevc.entities.Block.BLOCKSIZE;
+
+/*
+ * 64 bit content hash of an 8x8 block, used to find blocks that did not change since the previous
+ * frame without comparing their samples (see JVidEncoderService.findStaticMacroblocks()).
+ *
+ * It follows the structure of xxHash64: four samples (16 bits each) are packed into a long, the
+ * longs are consumed by four independent accumulators (multiply, rotate, multiply), which are
+ * merged and avalanched at the end. The accumulators have no dependency on each other, so the
+ * hash runs at the multiplier throughput rather than its latency. It is not a cryptographic hash,
+ * but a collision between two different blocks is unlikely enough (2^-64) to skip them blindly.
+ */
+public final class BlockHash {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+
+    private BlockHash() { }
+
+    public static long hash(int[][] data) {
+        long v1 = PRIME1 + PRIME2;
+        long v2 = PRIME2;
+        long v3 = 0;
+        long v4 = -PRIME1;
+        for (int i = 0; i < BLOCKSIZE; i += 2) {
+            v1 = round(v1, pack(data[i], 0));
+            v2 = round(v2, pack(data[i], 4));
+            v3 = round(v3, pack(data[i + 1], 0));
+            v4 = round(v4, pack(data[i + 1], 4));
+        }
+
+        long hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+        hash = merge(hash, v1);
+        hash = merge(hash, v2);
+        hash = merge(hash, v3);
+        hash = merge(hash, v4);
+        hash += BLOCKSIZE * BLOCKSIZE * 2;
+
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    /* Samples row[start] ... row[start + 3], 16 bits each. */
+    private static long pack(int[] row, int start) {
+        return (row[start] & 0xFFFFL)
+                | (row[start + 1] & 0xFFFFL) << 16
+                | (row[start + 2] & 0xFFFFL) << 32
+                | (row[start + 3] & 0xFFFFL) << 48;
+    }
+
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME1;
+    }
+
+    private static long merge(long hash, long accumulator) {
+        hash ^= round(0, accumulator);
+        return hash * PRIME1 + PRIME4;
+    }
+}
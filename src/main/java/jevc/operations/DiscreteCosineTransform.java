@@ -4,11 +4,16 @@ import jevc.entities.Block;
 
 public class DiscreteCosineTransform {
     public void forward(Block block) {
+        prepareBeforeDCT(block);
+        forwardResidual(block);
+    }
+
+    /* Forward DCT without the level shift, for prediction errors which are already centered on 0. */
+    public void forwardResidual(Block block) {
         double val;
         int[][] blockdata;
         int[][] data = new int[Block.BLOCKSIZE][Block.BLOCKSIZE];
 
-        prepareBeforeDCT(block);
         for(int u=0; u < Block.BLOCKSIZE; u++) {
             for (int v=0; v < Block.BLOCKSIZE; v++) {
                 val = 0;
@@ -27,6 +32,12 @@ public class DiscreteCosineTransform {
     }
 
     public void inverse(Block block) {
+        inverseResidual(block);
+        prepareAfterIDCT(block);
+    }
+
+    /* Inverse DCT without the level shift, see forwardResidual(). */
+    public void inverseResidual(Block block) {
         double val;
         int[][] blockdata;
         int[][] data = new int[Block.BLOCKSIZE][Block.BLOCKSIZE];
@@ -46,7 +57,6 @@ public class DiscreteCosineTransform {
             }
         }
         block.setData(data);
-        prepareAfterIDCT(block);
     }
 
     private double alpha(int u) {
@@ -1,48 +1,81 @@
 package jevc.operations;
 
-import jevc.entities.Block;
-import jevc.entities.ExponentialGolombBlock;
-
-import java.util.ArrayList;
+import jevc.entities.InternalFrameBuffer;
 
+/*
+ * Exponential-Golomb codes (order 0) of the headers of P frames and their macroblocks: motion vector
+ * differences, skip runs, macroblock types and coded block patterns.
+ *
+ * An unsigned value v is coded as the binary number v + 1 of n bits, preceded by n - 1 zero bits:
+ *
+ *      0 -> 1, 1 -> 010, 2 -> 011, 3 -> 00100, ...
+ *
+ * A signed value is mapped to an unsigned one first: v > 0 -> 2v - 1, v <= 0 -> -2v, so that
+ *
+ *      0 -> 1, 1 -> 010, -1 -> 011, 2 -> 00100, ...
+ *
+ * Fields without a useful ordering of their values, like coded block patterns, are written with a fixed
+ * number of bits instead. The codes go through a BitWriter, so they are stuffed like Huffman coded data
+ * and read back with a BitReader.
+ */
 public class ExponentialGolombEncoder {
-    public static final int[] ZIGZAG_ORDER = {
-            0,  1,  8,  16,  9,  2,  3, 10,
-            17, 24, 32, 25, 18, 11,  4,  5,
-            12, 19, 26, 33, 40, 48, 41, 34,
-            27, 20, 13,  6,  7, 14, 21, 28,
-            35, 42, 49, 56, 57, 50, 43, 36,
-            29, 22, 15, 23, 30, 37, 44, 51,
-            58, 59, 52, 45, 38, 31, 39, 46,
-            53, 60, 61, 54, 47, 55, 62, 63
-    };
+    private final BitWriter bitWriter;
+
+    public ExponentialGolombEncoder() {
+        this(new BitWriter());
+    }
+
+    /* Codes into the bitstream of `bitWriter`, e.g. that of a HuffmanEncoder (see getBitWriter()). */
+    public ExponentialGolombEncoder(BitWriter bitWriter) {
+        this.bitWriter = bitWriter;
+    }
 
-    public int encode(int value) {
-        final int unsignedMapping = value < 0 ? -2 * value  : 2 * value - 1;
-        final String binary = Integer.toBinaryString(unsignedMapping + 1);
-        final int length = binary.length();
-        final String encodedValue = "0".repeat(length - 1) + binary;
+    public void encodeUnsigned(InternalFrameBuffer outputStream, int value) {
+        int codeNum = value + 1;
+        int length = 32 - Integer.numberOfLeadingZeros(codeNum);
+        bitWriter.write(outputStream, 0, length - 1);
+        bitWriter.write(outputStream, codeNum, length);
+    }
 
-        return Integer.parseInt(encodedValue, 2);
+    public void encodeSigned(InternalFrameBuffer outputStream, int value) {
+        encodeUnsigned(outputStream, toUnsigned(value));
     }
 
-    public ExponentialGolombBlock encodeBlock(Block block) {
-        ArrayList<Integer> encodedBlock = new ArrayList<>();
-        for (int i = 0; i < 64; i++) {
-            int line = ZIGZAG_ORDER[i] / 8;
-            int col = ZIGZAG_ORDER[i] % 8;
-            encodedBlock.add(encode(block.getData()[line][col]));
-        }
+    /* Writes `value` in `length` bits, without Exponential-Golomb code. */
+    public void encodeFixed(InternalFrameBuffer outputStream, int value, int length) {
+        bitWriter.write(outputStream, value, length);
+    }
 
-        return new ExponentialGolombBlock(encodedBlock);
+    /* Writes the pending bits padded with zero bits to a byte border. */
+    public void flushBuffer(InternalFrameBuffer outputStream) {
+        bitWriter.flush(outputStream);
     }
 
-    public int[] encodeMotionVector(int[] motionVector) {
-        int[] encodedMotionVector = new int[2];
-        encodedMotionVector[0] = encode(motionVector[0]);
-        encodedMotionVector[1] = encode(motionVector[1]);
+    public int decodeUnsigned(BitReader reader) {
+        int zeros = Integer.numberOfLeadingZeros(reader.peekBits(32));
+        reader.skipBits(zeros);
+        return reader.readBits(zeros + 1) - 1;
+    }
 
-        return encodedMotionVector;
+    public int decodeSigned(BitReader reader) {
+        int codeNum = decodeUnsigned(reader);
+        return (codeNum & 1) != 0 ? (codeNum + 1) / 2 : -(codeNum / 2);
     }
 
+    public int decodeFixed(BitReader reader, int length) {
+        return reader.readBits(length);
+    }
+
+    /* Number of bits of the code of `value`, e.g. for rate estimates. */
+    public static int getUnsignedLength(int value) {
+        return 2 * (32 - Integer.numberOfLeadingZeros(value + 1)) - 1;
+    }
+
+    public static int getSignedLength(int value) {
+        return getUnsignedLength(toUnsigned(value));
+    }
+
+    private static int toUnsigned(int value) {
+        return value > 0 ? 2 * value - 1 : -2 * value;
+    }
 }
@@ -0,0 +1,89 @@
+package jevc.operations;
+
+import jevc.entities.MotionVector;
+import jevc.entities.ReferencePlane;
+
+/*
+ * Estimates the dominant translation of a frame against its previous frame, e.g. a camera pan.
+ * Both luma planes are downscaled by SCALE (box filter) and every translation within the motion
+ * vector range is tried on the downscaled planes, the one with the lowest mean absolute difference
+ * over the overlapping area wins. The result is a full-pel vector in quarter-pel units, the
+ * macroblock searches refine it (see MotionEstimator).
+ */
+public class GlobalMotionEstimator {
+    public static final int SCALE = 4;
+    // +-7 downscaled samples = +-28 pixels = +-112 quarter-pels, within the signed byte range of vectors
+    private static final int RANGE = 7;
+
+    public MotionVector estimate(int[][] luma, int width, int height, ReferencePlane previousFrame) {
+        int w = width / SCALE;
+        int h = height / SCALE;
+        int[] current = downscale(luma, w, h);
+        int[] previous = downscale(previousFrame, w, h);
+
+        int bestX = 0;
+        int bestY = 0;
+        long bestCost = meanAbsoluteDifference(current, previous, w, h, 0, 0);
+        for (int dy = -RANGE; dy <= RANGE; dy++) {
+            for (int dx = -RANGE; dx <= RANGE; dx++) {
+                long cost = meanAbsoluteDifference(current, previous, w, h, dx, dy);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestX = dx;
+                    bestY = dy;
+                }
+            }
+        }
+        return new MotionVector(bestX * SCALE * 4, bestY * SCALE * 4);
+    }
+
+    /* Mean absolute difference (in 1/256 units) between current[y][x] and previous[y + dy][x + dx]. */
+    private static long meanAbsoluteDifference(int[] current, int[] previous, int w, int h, int dx, int dy) {
+        long sad = 0;
+        int x0 = Math.max(0, -dx), x1 = Math.min(w, w - dx);
+        int y0 = Math.max(0, -dy), y1 = Math.min(h, h - dy);
+        for (int y = y0; y < y1; y++) {
+            int row = y * w;
+            int previousRow = (y + dy) * w + dx;
+            for (int x = x0; x < x1; x++) {
+                sad += Math.abs(current[row + x] - previous[previousRow + x]);
+            }
+        }
+        return (sad << 8) / ((long) (x1 - x0) * (y1 - y0));
+    }
+
+    private static int[] downscale(int[][] luma, int w, int h) {
+        int[] result = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int sum = 0;
+                for (int i = 0; i < SCALE; i++) {
+                    for (int j = 0; j < SCALE; j++) {
+                        sum += luma[y * SCALE + i][x * SCALE + j];
+                    }
+                }
+                result[y * w + x] = sum / (SCALE * SCALE);
+            }
+        }
+        return result;
+    }
+
+    private static int[] downscale(ReferencePlane plane, int w, int h) {
+        short[] data = plane.getData();
+        int stride = plane.getStride();
+        int[] result = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int base = plane.offset(x * SCALE, y * SCALE);
+                int sum = 0;
+                for (int i = 0; i < SCALE; i++) {
+                    for (int j = 0; j < SCALE; j++) {
+                        sum += data[base + i * stride + j];
+                    }
+                }
+                result[y * w + x] = sum / (SCALE * SCALE);
+            }
+        }
+        return result;
+    }
+}
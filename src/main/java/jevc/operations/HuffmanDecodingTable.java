@@ -0,0 +1,78 @@
+package jevc.operations;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Decoding tables for the codewords of one Huffman table (see HuffmanEncoder.createHuffmanTable()).
+ *
+ * The next LOOKAHEAD bits of the bitstream index `lookup`, which directly gives the symbol and
+ * the length of the codeword they start with; with the standard tables almost every codeword is
+ * that short. Longer codewords take the slow path of the JPEG standard (F.2.2.3): the codewords
+ * of one length are consecutive numbers, so a codeword of length l is complete if it is at most
+ * maxCode[l] and its symbol is symbols[valuePointer[l] + code - minCode[l]].
+ */
+final class HuffmanDecodingTable {
+    static final int LOOKAHEAD = 9;
+    static final int MAX_LENGTH = 16;
+
+    // symbol | (length << 8) of the codeword the index starts with, 0 => longer than LOOKAHEAD bits
+    private final int[] lookup = new int[1 << LOOKAHEAD];
+    private final int[] minCode = new int[MAX_LENGTH + 1];
+    private final int[] maxCode = new int[MAX_LENGTH + 1];
+    private final int[] valuePointer = new int[MAX_LENGTH + 1];
+    private final int[] symbols;
+
+    /* huffmanTable[symbol] = {codeword, length}, symbols without a codeword have length 0. */
+    HuffmanDecodingTable(int[][] huffmanTable) {
+        List<Integer> coded = new ArrayList<>();
+        for (int symbol = 0; symbol < huffmanTable.length; symbol++) {
+            if (huffmanTable[symbol][1] > 0) {
+                coded.add(symbol);
+            }
+        }
+        coded.sort(Comparator.<Integer>comparingInt(symbol -> huffmanTable[symbol][1])
+                .thenComparingInt(symbol -> huffmanTable[symbol][0]));
+
+        symbols = new int[coded.size()];
+        int k = 0;
+        for (int length = 1; length <= MAX_LENGTH; length++) {
+            valuePointer[length] = k;
+            minCode[length] = k < coded.size() ? huffmanTable[coded.get(k)][0] : 0;
+            maxCode[length] = -1;
+            while (k < coded.size() && huffmanTable[coded.get(k)][1] == length) {
+                int symbol = coded.get(k);
+                int code = huffmanTable[symbol][0];
+                symbols[k++] = symbol;
+                maxCode[length] = code;
+
+                if (length <= LOOKAHEAD) {
+                    // every index whose first `length` bits are the codeword
+                    int first = code << (LOOKAHEAD - length);
+                    int count = 1 << (LOOKAHEAD - length);
+                    for (int i = first; i < first + count; i++) {
+                        lookup[i] = symbol | (length << 8);
+                    }
+                }
+            }
+        }
+    }
+
+    /* `bits` holds the next MAX_LENGTH bits of the bitstream, MSB first.
+     * Returns symbol | (length << 8) of the codeword they start with, -1 if there is none.
+     */
+    int decode(int bits) {
+        int entry = lookup[bits >>> (MAX_LENGTH - LOOKAHEAD)];
+        if (entry != 0) {
+            return entry;
+        }
+        for (int length = LOOKAHEAD + 1; length <= MAX_LENGTH; length++) {
+            int code = bits >>> (MAX_LENGTH - length);
+            if (code <= maxCode[length]) {
+                return symbols[valuePointer[length] + code - minCode[length]] | (length << 8);
+            }
+        }
+        return -1;
+    }
+}
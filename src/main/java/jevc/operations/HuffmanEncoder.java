@@ -1,11 +1,13 @@
 package jevc.operations;
 
+import jevc.entities.Block;
 import jevc.entities.InternalFrameBuffer;
-import jevc.entities.RunLength;
 import jevc.entities.RunLengthBlock;
+import jevc.entities.RunLengthBuffer;
 import jevc.entities.YCbCrImage;
 
 import java.util.ArrayList;
+import java.util.function.Consumer;
 
 /*
  * JPEG entropy encoding of an 8x8 block works in the following way:
@@ -147,8 +149,15 @@ public class HuffmanEncoder {
             0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
             0xf9, 0xfa};
 
-    private int prewriteBuffer;
-    private int bitcount; // number of bits in the prewriteBuffer
+    // ZIGZAG_INDEX[8 * line + col] is the index of coefficient [line][col] in RunLengthEncoder.ZIGZAG_ORDER
+    private static final int[] ZIGZAG_INDEX = new int[64];
+    static {
+        for (int k = 0; k < 64; k++) {
+            ZIGZAG_INDEX[RunLengthEncoder.ZIGZAG_ORDER[k]] = k;
+        }
+    }
+
+    private final BitWriter bitWriter = new BitWriter(); // holds the bits that have not been written to the stream yet
 
     // the following fields are used by both encoder and decoder
     private int[][] DCLumaHuffmanTable; // Hufmann codewords and sizes for DC luma coefficients
@@ -156,22 +165,36 @@ public class HuffmanEncoder {
     private int[][] ACLumaHuffmanTable; // Hufmann codewords and sizes for AC luma coefficients
     private int[][] ACChromaHuffmanTable; // Hufmann codewords and sizes for AC chroma coefficients
 
-    /* The following fields are used by the Huffman decoder (i.e. by the decode() method) */
-    public int noOfBitsLeftInCurrentByte;  // the number of bits that are left (i.e. not consumed) in the current
-                                    // byte of the `encodedBitstream` (i.e. encodedBitstream[i]);
-                                    // these bits are always saved starting with the most-significant-bit
-                                    // of encodedBitstream[i];
-    private int idxCurrentByte; // the index of the current byte in encodedBitstream
-    private int previousByte;   // the value of the byte encodedStream[idxCurrentByte-1]
+    // decoding tables of the Huffman tables above, see HuffmanDecodingTable
+    private HuffmanDecodingTable DCLumaDecodingTable;
+    private HuffmanDecodingTable DCChromaDecodingTable;
+    private HuffmanDecodingTable ACLumaDecodingTable;
+    private HuffmanDecodingTable ACChromaDecodingTable;
 
-    private int currentBlockTypeIdx = -1; // is an index into the EncodedBlocksOrder vector
+    /* The following fields are used by the Huffman decoder (i.e. by the decode() method). The decoder keeps
+     * no cursor of its own, the position in the bitstream lives in the BitReader that is passed in, so one
+     * instance can decode several bitstreams (or parts of one shared buffer) from several threads. */
     private int[] horizontalSamplingFactors, verticalSamplingFactors;
     private int noBlocksInMCU;
 
     public HuffmanEncoder() {
         initializeHuffmanTables();
-        prewriteBuffer = 0;
-        bitcount = 0;
+    }
+
+    /* An encoder with the tables and sampling factors of `other` but with a bit writer of its own, e.g. to
+     * code the restart segments of a frame on several threads (see RestartSegments). */
+    public HuffmanEncoder(HuffmanEncoder other) {
+        DCLumaHuffmanTable = other.DCLumaHuffmanTable;
+        DCChromaHuffmanTable = other.DCChromaHuffmanTable;
+        ACLumaHuffmanTable = other.ACLumaHuffmanTable;
+        ACChromaHuffmanTable = other.ACChromaHuffmanTable;
+        DCLumaDecodingTable = other.DCLumaDecodingTable;
+        DCChromaDecodingTable = other.DCChromaDecodingTable;
+        ACLumaDecodingTable = other.ACLumaDecodingTable;
+        ACChromaDecodingTable = other.ACChromaDecodingTable;
+        horizontalSamplingFactors = other.horizontalSamplingFactors;
+        verticalSamplingFactors = other.verticalSamplingFactors;
+        noBlocksInMCU = other.noBlocksInMCU;
     }
 
     private void initializeHuffmanTables() {
@@ -179,6 +202,7 @@ public class HuffmanEncoder {
         DCChromaHuffmanTable = createHuffmanTable(BITS_DC_CHROMINANCE, VALS_DC_CHROMINANCE, true);
         ACLumaHuffmanTable = createHuffmanTable(BITS_AC_LUMINANCE, VALS_AC_LUMINANCE, false);
         ACChromaHuffmanTable = createHuffmanTable(BITS_AC_CHROMINANCE, VALS_AC_CHROMINANCE, false);
+        initializeDecodingTables();
 
         //printHuffmanTables();
     }
@@ -191,6 +215,7 @@ public class HuffmanEncoder {
         DCChromaHuffmanTable = createHuffmanTable(bits_dc_chrominance, vals_dc_chrominance, true);
         ACLumaHuffmanTable = createHuffmanTable(bits_ac_luminance, vals_ac_luminance, false);
         ACChromaHuffmanTable = createHuffmanTable(bits_ac_chrominance, vals_ac_chrominance, false);
+        initializeDecodingTables();
 
         System.out.print("\nBITS_DC_LUMINANCE: ");
         for (int j : bits_dc_luminance) {
@@ -230,6 +255,22 @@ public class HuffmanEncoder {
         printHuffmanTables();
     }
 
+    /* Codes and decodes with `tables` from now on, HuffmanTables.standard() restores the initial tables. */
+    public void setHuffmanTables(HuffmanTables tables) {
+        DCLumaHuffmanTable = createHuffmanTable(tables.getBits(HuffmanTables.DC_LUMA), tables.getVals(HuffmanTables.DC_LUMA), true);
+        DCChromaHuffmanTable = createHuffmanTable(tables.getBits(HuffmanTables.DC_CHROMA), tables.getVals(HuffmanTables.DC_CHROMA), true);
+        ACLumaHuffmanTable = createHuffmanTable(tables.getBits(HuffmanTables.AC_LUMA), tables.getVals(HuffmanTables.AC_LUMA), false);
+        ACChromaHuffmanTable = createHuffmanTable(tables.getBits(HuffmanTables.AC_CHROMA), tables.getVals(HuffmanTables.AC_CHROMA), false);
+        initializeDecodingTables();
+    }
+
+    private void initializeDecodingTables() {
+        DCLumaDecodingTable = new HuffmanDecodingTable(DCLumaHuffmanTable);
+        DCChromaDecodingTable = new HuffmanDecodingTable(DCChromaHuffmanTable);
+        ACLumaDecodingTable = new HuffmanDecodingTable(ACLumaHuffmanTable);
+        ACChromaDecodingTable = new HuffmanDecodingTable(ACChromaHuffmanTable);
+    }
+
     private int[][] createHuffmanTable(int[] bits, int[] vals, boolean DCtable) {
         // this is the implementation of algorithms from pages 50-53 in the JPEG standards
         int i, j, k;
@@ -322,7 +363,12 @@ public class HuffmanEncoder {
 //        System.out.println();
     }
 
+    /* Compatibility adapter, see encode(InternalFrameBuffer, RunLengthBuffer). */
     public void encode (InternalFrameBuffer outputStream, RunLengthBlock block) {
+        encode(outputStream, RunLengthBuffer.of(block));
+    }
+
+    public void encode (InternalFrameBuffer outputStream, RunLengthBuffer block) {
         int[][] DCHuffmanTable;
         int[][] ACHuffmanTable;
 
@@ -337,95 +383,167 @@ public class HuffmanEncoder {
             }
             default -> throw new IllegalArgumentException("HuffmanEncoder - Illegal RunLength block type.");
         }
-        // encode the DC coefficient first
-        RunLength rlElem = block.getData().get(0);
-        // write the huffman code for (Size)
-        writeToStream(outputStream, DCHuffmanTable[rlElem.getSize()][0], DCHuffmanTable[rlElem.getSize()][1]);
-//        System.out.println("Write DCSize in outputstream: " + getBinary(DCHuffmanTable[rlElem.getSize()][0],
-//                DCHuffmanTable[rlElem.getSize()][1]));
-        // write the binary value of amplitude; if amplitude>=0, write it binary;
-        // if amplitude<0 write amplitude-1 and without the sign bit
-        int amplitude = rlElem.getAmplitude();
-        if (amplitude<0) {
-            amplitude = amplitude -1;
-        }
-        writeToStream(outputStream, amplitude, rlElem.getSize());
-//        System.out.println("Write DCAmplitude in outputstream: " + getBinary(amplitude,
-//                rlElem.getSize()));
+        // encode the DC coefficient first: the huffman code for (Size) followed by the amplitude
+        int rlElem = block.get(0);
+        writeCodeword(outputStream, DCHuffmanTable[RunLengthBuffer.size(rlElem)], RunLengthBuffer.amplitude(rlElem),
+                RunLengthBuffer.size(rlElem));
 
         // encode the AC run lengths elements
         for (int i=1; i<block.getSize(); i++) {
-            rlElem = block.getData().get(i);
-            int run = rlElem.getRunlength();
-            int size = rlElem.getSize();
-            amplitude = rlElem.getAmplitude();
+            rlElem = block.get(i);
+            int run = RunLengthBuffer.runlength(rlElem);
+            int size = RunLengthBuffer.size(rlElem);
+            int amplitude = RunLengthBuffer.amplitude(rlElem);
             while (run > 15) {
                 // store Huffman code for a run of 16 zeroes
-                writeToStream(outputStream, ACHuffmanTable[0xF0][0],ACHuffmanTable[0xF0][1]);
-//                System.out.println("Write ZRL in outputstream: " + getBinary(ACHuffmanTable[0xF0][0],
-//                        ACHuffmanTable[0xF0][1]));
+                bitWriter.write(outputStream, ACHuffmanTable[0xF0][0], ACHuffmanTable[0xF0][1]);
                 run -= 16;
             }
             int tableIndex = (run << 4) + size;
-            // write the huffman code of (Run,Size)
-            writeToStream(outputStream, ACHuffmanTable[tableIndex][0],ACHuffmanTable[tableIndex][1]);
-//            System.out.println("Write (Run,Size) in outputstream: " + getBinary(ACHuffmanTable[tableIndex][0],
-//                    ACHuffmanTable[tableIndex][1]));
-            // write the binary value of amplitude (only if current elem is not End-Of-Block)
-            if ((i<block.getSize()-1) || (run!=0 && size!=0 && amplitude!=0)) {
-                if (amplitude<0) {
-                    amplitude = amplitude -1;
-                }
-                writeToStream(outputStream, amplitude, size);
-//                System.out.println("Write ACAmplitude in outputstream: " + getBinary(amplitude,
-//                        size));
+            // write the huffman code of (Run,Size) and the amplitude (only if current elem is not End-Of-Block,
+            // the only element with size 0)
+            if (size != 0) {
+                writeCodeword(outputStream, ACHuffmanTable[tableIndex], amplitude, size);
+            } else {
+                bitWriter.write(outputStream, ACHuffmanTable[tableIndex][0], ACHuffmanTable[tableIndex][1]);
             }
+        }
+    }
 
+    /* Writes a Huffman codeword {code, length} followed by the `size` bit amplitude in one write (at most
+     * 16 + 11 bits). If amplitude>=0, it is written binary; if amplitude<0, amplitude-1 is written without
+     * the sign bit.
+     */
+    private void writeCodeword(InternalFrameBuffer outputStream, int[] codeword, int amplitude, int size) {
+        if (amplitude<0) {
+            amplitude = amplitude -1;
         }
+        int bits = (codeword[0] << size) | (amplitude & ((1 << size) - 1));
+        bitWriter.write(outputStream, bits, codeword[1] + size);
     }
 
-    /*
-     * The codewords are first buffered in `prewriteBuffer` and when we get at
-     * least 8 bits in this buffer, they are written in the `outputStream`. `bitcount`
-     * holds the number of bits in the `prewriteBuffer`.
+    /* Entropy codes a quantized block in a single pass, without run length elements: the zigzag scan,
+     * the run length coding and the Huffman coding are fused. The non-zero AC coefficients are found
+     * in a 64 bit occupancy mask (bit k <=> ZIGZAG_ORDER[k]), so a run of zeroes is skipped with a
+     * single numberOfTrailingZeros() instead of a test per coefficient, which pays off on the sparse
+     * residuals of P frames. Writes the same bits as encode() of runLengthEncoder.encode(block).
      */
-    private void writeToStream(InternalFrameBuffer outputStream, int codeword, int nbits) {
-        codeword &= (1<<nbits) - 1; // zero out non important bits
-        // In the `prewriteBuffer` the `bitcount` most-significant-bits are occupied.
-        // We need to add `nbits` of `codeword` to this.
+    public void encode (InternalFrameBuffer outputStream, Block block, RunLengthEncoder runLengthEncoder) {
+        int[][] DCHuffmanTable = (block.getType() == 'Y') ? DCLumaHuffmanTable : DCChromaHuffmanTable;
+        int[][] ACHuffmanTable = (block.getType() == 'Y') ? ACLumaHuffmanTable : ACChromaHuffmanTable;
+
+        int amplitude = runLengthEncoder.encodeDC(block);
+        int size = getSizeForAmplitude(amplitude);
+        writeCodeword(outputStream, DCHuffmanTable[size], amplitude, size);
+
+        int[][] data = block.getData();
+        long mask = getOccupancyMask(data);
+        int previous = 0; // zigzag index of the previous non-zero coefficient
+        while (mask != 0) {
+            int k = Long.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+            int run = k - previous - 1;
+            previous = k;
+            while (run > 15) {
+                // store Huffman code for a run of 16 zeroes
+                bitWriter.write(outputStream, ACHuffmanTable[0xF0][0], ACHuffmanTable[0xF0][1]);
+                run -= 16;
+            }
+            amplitude = data[RunLengthEncoder.ZIGZAG_ORDER[k] >> 3][RunLengthEncoder.ZIGZAG_ORDER[k] & 7];
+            size = getSizeForAmplitude(amplitude);
+            writeCodeword(outputStream, ACHuffmanTable[(run << 4) + size], amplitude, size);
+        }
+        if (previous < 63) {
+            // End-Of-Block
+            bitWriter.write(outputStream, ACHuffmanTable[0x00][0], ACHuffmanTable[0x00][1]);
+        }
+    }
 
-        // concatenate `codeword` to the occupied bits of the `prewriteBuffer`
-        // prewriteBuffer = prewriteBuffer |  (codeword << (32-bitcount-nbits));
-        prewriteBuffer = prewriteBuffer |  (codeword << (32-bitcount-nbits));
-        bitcount += nbits;
+    /* Number of bits the fused encode() writes for the block, see countBits(RunLengthBuffer). */
+    public int countBits(Block block, RunLengthEncoder runLengthEncoder) {
+        int[][] DCHuffmanTable = (block.getType() == 'Y') ? DCLumaHuffmanTable : DCChromaHuffmanTable;
+        int[][] ACHuffmanTable = (block.getType() == 'Y') ? ACLumaHuffmanTable : ACChromaHuffmanTable;
+
+        int size = getSizeForAmplitude(runLengthEncoder.encodeDC(block));
+        int bits = DCHuffmanTable[size][1] + size;
+
+        int[][] data = block.getData();
+        long mask = getOccupancyMask(data);
+        int previous = 0;
+        while (mask != 0) {
+            int k = Long.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+            int run = k - previous - 1;
+            previous = k;
+            while (run > 15) {
+                bits += ACHuffmanTable[0xF0][1];
+                run -= 16;
+            }
+            size = getSizeForAmplitude(data[RunLengthEncoder.ZIGZAG_ORDER[k] >> 3][RunLengthEncoder.ZIGZAG_ORDER[k] & 7]);
+            bits += ACHuffmanTable[(run << 4) + size][1] + size;
+        }
+        if (previous < 63) {
+            bits += ACHuffmanTable[0x00][1];
+        }
+        return bits;
+    }
 
-        writeBuffer(outputStream);
+    /* Bit k is set <=> the AC coefficient ZIGZAG_ORDER[k] is not zero. */
+    private static long getOccupancyMask(int[][] data) {
+        long mask = 0;
+        for (int line = 0; line < 8; line++) {
+            int[] row = data[line];
+            for (int col = 0; col < 8; col++) {
+                int value = row[col];
+                // (value | -value) has its sign bit set <=> value != 0
+                mask |= (long) ((value | -value) >>> 31) << ZIGZAG_INDEX[(line << 3) + col];
+            }
+        }
+        return mask & ~1L; // the DC coefficient is coded on its own
+    }
 
+    // Number of bits of the amplitude (0 for an amplitude of 0)
+    private static int getSizeForAmplitude(int amplitude) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(amplitude));
     }
 
-    public void flushBuffer(InternalFrameBuffer outputStream) {
-        writeBuffer(outputStream);
-        if (bitcount > 0) {
-            int c = ((prewriteBuffer >> 24) & 0xff); // get the MSB (Most Significant Byte)
-            outputStream.write(c);
-        }
+    /* Number of bits encode() writes for the block, without byte stuffing and padding. Used to
+     * estimate the rate of coding modes, the encoder state is left untouched.
+     */
+    public int countBits(RunLengthBlock block) {
+        return countBits(RunLengthBuffer.of(block));
     }
 
-    private void writeBuffer(InternalFrameBuffer outputStream) {
-        while (bitcount >= 8) {
-            int c = ((prewriteBuffer >> 24) & 0xff); // get the MSB (Most Significant Byte)
-            outputStream.write(c);
-//            System.out.print(Integer.toBinaryString(c));
-            if (c == 0xff) {
-                // 0xff is a segment prefix, so if it appears in the pixels bitstream,
-                // it must be immediately followed by a 0x00 byte.
-                outputStream.write(0);
-//                System.out.print(Integer.toBinaryString(0));
+    public int countBits(RunLengthBuffer block) {
+        int[][] DCHuffmanTable = (block.getType() == 'Y') ? DCLumaHuffmanTable : DCChromaHuffmanTable;
+        int[][] ACHuffmanTable = (block.getType() == 'Y') ? ACLumaHuffmanTable : ACChromaHuffmanTable;
+
+        int rlElem = block.get(0);
+        int bits = DCHuffmanTable[RunLengthBuffer.size(rlElem)][1] + RunLengthBuffer.size(rlElem);
+        for (int i=1; i<block.getSize(); i++) {
+            rlElem = block.get(i);
+            int run = RunLengthBuffer.runlength(rlElem);
+            int size = RunLengthBuffer.size(rlElem);
+            while (run > 15) {
+                bits += ACHuffmanTable[0xF0][1];
+                run -= 16;
             }
-            prewriteBuffer <<= 8;
-            bitcount -= 8;
+            bits += ACHuffmanTable[(run << 4) + size][1];
+            bits += size;
         }
-//        System.out.println();
+        return bits;
+    }
+
+    /* Writes the remaining bits padded to a byte border. The encoder can keep being used
+     * afterwards, e.g. P frames flush after every block so each error block is byte aligned.
+     */
+    public void flushBuffer(InternalFrameBuffer outputStream) {
+        bitWriter.flush(outputStream);
+    }
+
+    /* The writer of the pending bits, other codes can be interleaved with the Huffman codes through it. */
+    public BitWriter getBitWriter() {
+        return bitWriter;
     }
 
     /* The function decodes a bitstream into a list of RunLength blocks.
@@ -438,77 +556,79 @@ public class HuffmanEncoder {
      * @height - height of the image
      */
     public ArrayList<RunLengthBlock> decode(byte[] encodedBitstream, int sampling, int width, int height) {
+        return decode(new BitReader(encodedBitstream), sampling, width, height);
+    }
+
+    public ArrayList<RunLengthBlock> decode(BitReader reader, int sampling, int width, int height) {
         ArrayList<RunLengthBlock> rleBlocksArray = new ArrayList<>();
-        noOfBitsLeftInCurrentByte = 8;  // the number of bits that are left (i.e. not consumed) in the current
-                                        // byte of the `encodedBitstream` (i.e. encodedBitstream[i]);
-                                        // these bits are always saved starting with the most-significant-bit
-                                        // of encodedBitstream[i];
-        idxCurrentByte = 0; // the index of the current byte in encodedBitstream
-        previousByte = encodedBitstream[0];
-        currentBlockTypeIdx = -1;
+        decode(reader, sampling, width, height, rleBlock -> rleBlocksArray.add(rleBlock.toRunLengthBlock()));
+        return rleBlocksArray;
+    }
+
+    /* Decodes the blocks one at a time into the RunLengthBuffer of the current thread and hands each of
+     * them to `blockConsumer`; the buffer is reused for the next block once the consumer returns.
+     */
+    public void decode(BitReader reader, int sampling, int width, int height, Consumer<RunLengthBuffer> blockConsumer) {
+        RunLengthBuffer rleBlock = RunLengthBuffer.local();
 
         int i = 0;
         int noBlocks = getNumberOfDecodingBlocks(sampling, width, height);
 //        System.out.println("HuffmanEncoder::decode() We will decode " + noBlocks + " 8x8 blocks [" +
 //                "width=" + width + " height=" + height + " sampling=" + sampling + "]");
-        while (idxCurrentByte<encodedBitstream.length) {
+        while (reader.remainingBits() > 0) {
             /* At the end of the compressed bitstream there might be stuffed bits to the byte border (i.e. maximum
-             * 7 stuffed bits). We need to stop after we have read and decoded enough blocks. Below is a code
-             * that does this, but I have found a better way of stopping the decoding when we reached stuffed bits.
-             * See below.
-             * if (i==noBlocks) {
-             *   // we have finished decoding/reading all the blocks; the remaining bits are just stuffed bits
-             *   System.out.println("HuffmanEncoder::decode() FINISHING reading/recoding all required blocks. " +
-             *           "Leftover bits: " + (noOfBitsLeftInCurrentByte + (encodedBitstream.length-idxCurrentByte-1)*8));
-             *   break;
-             * }
+             * 7 stuffed bits). We need to stop after we have read and decoded enough blocks.
+             * A minimum block has at least 5 or 7 bits: DC: (2bit size, 1bit amplitude), AC: (2bit EOB)
+             * for chroma blocks and DC: (2bit size, 1bit amplitude), AC: (4bit EOB) for luma block
              */
-            if ((idxCurrentByte==encodedBitstream.length-1) && (noOfBitsLeftInCurrentByte<8)) {
-                /* A minimum block has at least 5 or 7 bits: DC: (2bit size, 1bit amplitude), AC: (2bit EOB)
-                 * for chroma blocks and DC: (2bit size, 1bit amplitude), AC: (4bit EOB) for luma block
-                 */
-                if (i==noBlocks) {
-                    // this is the end of the compressed bitstream; the rest are stuffed bits, we don't care
-//                    System.out.println("HuffmanEncoder::decode() FINISHING reading/recoding all required blocks. " +
-//                            "Leftover bits: " + noOfBitsLeftInCurrentByte);
-                    break;
-                }
+            if (reader.remainingBits() < 8 && i == noBlocks) {
+                // this is the end of the compressed bitstream; the rest are stuffed bits, we don't care
+                break;
             }
-//            System.out.println("idxCurrentByte= " + idxCurrentByte);
-            RunLengthBlock rleBlock = new RunLengthBlock();
-            rleBlock.setType(getNextDecodedBlockType());
-            decodeBlock(encodedBitstream, rleBlock);
-            rleBlocksArray.add(rleBlock);
+            rleBlock.clear(getDecodedBlockType(i));
+            decodeBlock(reader, rleBlock);
+            blockConsumer.accept(rleBlock);
 //            System.out.println("HuffmanEncoder::decode() decoded block " + i + " of type " + rleBlock.getType() +
 //                    " with " + rleBlock.getSize() + " runlength elements.");
             i++;
         }
+    }
 
-        return rleBlocksArray;
+    /* Compatibility adapter, see decodeBlock(BitReader, RunLengthBuffer). */
+    public void decodeBlock(BitReader reader, RunLengthBlock rleBlock) {
+        RunLengthBuffer buffer = RunLengthBuffer.of(rleBlock);
+        decodeBlock(reader, buffer);
+        rleBlock.setData(buffer.toRunLengthBlock().getData());
     }
 
-    public void decodeBlock(byte[] encodedBitstream, RunLengthBlock rleBlock) {
+    /* Decodes the next block of the bitstream, starting at the current position of `reader`, and appends
+     * its elements to `rleBlock` (which holds the type of the block).
+     */
+    public void decodeBlock(BitReader reader, RunLengthBuffer rleBlock) {
         int sizeDC, runlength, sizeAC, amplitude, x;
 
-        if (idxCurrentByte >= encodedBitstream.length) return;
+        if (reader.remainingBits() <= 0) return;
+
+        HuffmanDecodingTable DCDecodingTable = (rleBlock.getType() == 'Y') ? DCLumaDecodingTable : DCChromaDecodingTable;
+        HuffmanDecodingTable ACDecodingTable = (rleBlock.getType() == 'Y') ? ACLumaDecodingTable : ACChromaDecodingTable;
 
         // first decode the DC coefficient RunLength element
-        sizeDC = decodeHuffmanCodeword(encodedBitstream, rleBlock.getType(), true);
-        amplitude = decodeAmplitudeValue(encodedBitstream, sizeDC);
-        rleBlock.getData().add(new RunLength(-1, sizeDC, amplitude));
+        sizeDC = decodeHuffmanCodeword(reader, DCDecodingTable);
+        amplitude = decodeAmplitudeValue(reader, sizeDC);
+        rleBlock.add(-1, sizeDC, amplitude);
 //        System.out.println("[-1," + sizeDC + "," + amplitude + "] " );
 
         // decode the AC coefficients RunLength elements
         int acCoefcount = 0;
         int ZRL = 0; // for ZeroRunLength symbol (just the Size and RunLength, without Amplitude)
-        while ((idxCurrentByte < encodedBitstream.length) && (acCoefcount<63)) {
-            x = decodeHuffmanCodeword(encodedBitstream, rleBlock.getType(), false);
+        while ((reader.remainingBits() > 0) && (acCoefcount<63)) {
+            x = decodeHuffmanCodeword(reader, ACDecodingTable);
             runlength = (x & 0xf0) >> 4;
             sizeAC = x & 0x0f;
             if ((runlength==0) && (sizeAC==0)) {
                 // EOB symbol read
 //                System.out.println(" End-Of-Block read!");
-                rleBlock.getData().add(new RunLength(runlength, sizeAC, 0));
+                rleBlock.add(runlength, sizeAC, 0);
                 break;
             }
             if (x == 0xf0) {
@@ -520,12 +640,12 @@ public class HuffmanEncoder {
                     runlength += ZRL;
                     ZRL = 0;
                 }
-                amplitude = decodeAmplitudeValue(encodedBitstream, sizeAC);
+                amplitude = decodeAmplitudeValue(reader, sizeAC);
                 if (amplitude==0) {
 //                    System.out.println("HuffmanEncoder::decodeBlock() Error - amplitude is 0!");
                     amplitude = 1;
                 }
-                rleBlock.getData().add(new RunLength(runlength, sizeAC, amplitude));
+                rleBlock.add(runlength, sizeAC, amplitude);
                 acCoefcount = acCoefcount + 1 + runlength;
 //                System.out.println("[" + runlength + "," + sizeAC + "," + amplitude + "] " );
             }
@@ -533,156 +653,41 @@ public class HuffmanEncoder {
 //        System.out.println();
     }
 
-    private int decodeHuffmanCodeword(byte[] encodedBitstream, char HuffmanTableType, boolean isDC) {
-        // HuffmanTableType can be 'Y', 'U' or 'V' and is the same as the block type
-        if ((HuffmanTableType!='Y') && (HuffmanTableType!='U') && (HuffmanTableType!='V')) {
-            System.out.println("HuffmanEncoder::decodeHuffmanCodeword() Unknown HuffmanTableType(" +
-                    HuffmanTableType + ")! Nothing to do!");
+    /* Decodes the next Huffman codeword with a single table lookup (see HuffmanDecodingTable). Returns the
+     * symbol, or -1 if the rest of the bitstream does not hold a complete codeword.
+     */
+    private int decodeHuffmanCodeword(BitReader reader, HuffmanDecodingTable decodingTable) {
+        if (reader.remainingBits() <= 0) {
             return -1;
         }
-        // isDC = {0 = is AC; 1 = is DC}
-        // first, let's select the appropriate Huffman table that we will be using for decoding
-        int[][] huffmanTable = DCLumaHuffmanTable;
-        switch (HuffmanTableType) {
-            case 'Y' -> {
-                if (!isDC) huffmanTable = ACLumaHuffmanTable;
-            }
-            case 'U', 'V' -> {
-                if (isDC) huffmanTable = DCChromaHuffmanTable;
-                else huffmanTable = ACChromaHuffmanTable;
-            }
-        }
-//        System.out.println("HuffmanEncoder::decodeHuffmanCodeword() using Huffman table " +
-//                isDC + " " + HuffmanTableType);
-
-        int codeBuffer = 0;     // the largest Huffman codeword has 16 bits
-        // codeBuffer stores binary values in the least significant bits
-        int codeBufferSize = 0; // the number of bits occupied in the `codeBuffer`
-
-        /* The idea is that we take each bit from encodedBitstream, one at a time, starting with
-         * the most-significant-bit of encodedBitstream[0] and so one, we deposit this bit into
-         * `codeBuffer` (`codeBufferSize` keeps track of the number of bits occupied from
-         * `codeBuffer`) and once we have a complete Huffman codeword in `codeBuffer`, we decode
-         * it. `noOfBitsLeftInCurrentByte` stores the number of bits that are left (i.e. not
-         * consumed) int the current byte of `encodedBitstream`. After we decode a Huffman code
-         * (which can be a Size for a DC coef. or a (Runlength,Size) for an AC coef), we then
-         * decode the amplitude of the current coefficient.
-         */
-
-        int symbol = -1;
-        while (idxCurrentByte < encodedBitstream.length) {
-            // each iteration adds a new bit to codeBuffer
-
-            // take the Most-Significant-Bit of encodedBitstream[i]
-            int msbbit = encodedBitstream[idxCurrentByte] & 0x80;
-            msbbit >>= 7;
-            msbbit &= 0x01;
-            codeBuffer &= (1 << codeBufferSize) - 1; // zero out non important bits
-            // add the MSB to codeBuffer
-            codeBuffer = (codeBuffer << 1) | msbbit;
-            codeBufferSize++;
-
-            // remove bit from encodedBitstream[i]
-            encodedBitstream[idxCurrentByte] <<= 1;
-            noOfBitsLeftInCurrentByte--;
-
-            //System.out.println("trying to find a huffman symbol for a codeword " +
-            //        codeBuffer + " of " + codeBufferSize + " bits..");
-            symbol = findHuffmanSymbol(huffmanTable, codeBuffer, codeBufferSize);
-
-            //System.out.println("idxCurrentByte=" + idxCurrentByte +
-            //        " noOfBitsLeftInCurrentByte=" + noOfBitsLeftInCurrentByte);
-            decodeByte(encodedBitstream);
-            if (symbol != -1) {
-                // codeword found in Huffman tables
-//                System.out.println("codeword="+getBinary(codeBuffer,codeBufferSize) +
-//                        " idxCurrentByte=" + idxCurrentByte + " noOfBitsLeftInCurrentByte=" + noOfBitsLeftInCurrentByte);
-                return symbol;
-            }
-        }
-        return symbol;
-    }
-
-    private void decodeByte(byte[] encodedBitstream) {
-        if (noOfBitsLeftInCurrentByte == 0) { // move to the following byte in encodedBitstream
-            idxCurrentByte++;
-            noOfBitsLeftInCurrentByte = 8;
-            // if we have 0xff followed by 0x00 in the encoded byte stream, we ignore the 0x00 byte
-            if ((previousByte==0xff) && (idxCurrentByte<encodedBitstream.length) &&
-                    (encodedBitstream[idxCurrentByte]==0x00)) {
-                idxCurrentByte++;
-            }
-            if (idxCurrentByte<encodedBitstream.length) {
-                previousByte = encodedBitstream[idxCurrentByte] & 0xff;
-//                System.out.println("current decoding byte is: " + getBinary(encodedBitstream[idxCurrentByte], 8));
-            }
-        }
-    }
-
-    // Find the symbol from the `HuffmanTable` encoded with that specific `codeword`
-    private int findHuffmanSymbol(int[][] HuffmanTable, int codeword, int codewordSize) {
-        int symbol = -1;
-
-        //HuffmanTable[i][0] -> stores the codeword for symbol `i`
-        //HuffmanTable[i][1] -> stores the length of the codeword of the symbol `i`
-        int i = 0;
-        while (i<HuffmanTable.length) {
-            if ((HuffmanTable[i][0]==codeword) && (HuffmanTable[i][1]==codewordSize)) {
-                symbol = i;
-                //System.out.println("HuffmanEncoder::findHuffmanSymbol() decoded a symbol with codeword size "+codewordSize);
-                break;
-            }
-            /* Doar dupa ce reordonez tabelele huffman dupa codeword size, pot sa folosesc codul de mai jos...
-            if (HuffmanTable[i][1]>codewordSize) {
-                break;
-            }*/
-            i++;
+        int entry = decodingTable.decode(reader.peekBits(HuffmanDecodingTable.MAX_LENGTH));
+        int length = entry >> 8;
+        if (entry < 0 || length > reader.remainingBits()) {
+            // no codeword before the end of the bitstream (or a corrupt one), nothing more can be decoded
+            reader.skipToEnd();
+            return -1;
         }
-
-        return symbol;
+        reader.skipBits(length);
+        return entry & 0xff;
     }
 
-    // Read `size` bits from encodedBitstream and return them as integer value
-    private int decodeAmplitudeValue(byte[] encodedBitstream, int size) {
-        int amplitude = 0;
-        int origsize = size;
-
-        if ((idxCurrentByte>=encodedBitstream.length) || (size<=0))
+    // Read `size` bits from the bitstream and return them as integer value
+    private int decodeAmplitudeValue(BitReader reader, int size) {
+        if ((reader.remainingBits() <= 0) || (size<=0))
             return 0;
 
-        int firstbit = encodedBitstream[idxCurrentByte] & 0x80;
-        while ((size > 0) && (idxCurrentByte < encodedBitstream.length)) {
-                // each iteration adds a new bit to amplitude
+        int amplitude = reader.readBits(size);
 
-                // take the Most-Significant-Bit of encodedBitstream[i]
-                int msbbit = encodedBitstream[idxCurrentByte] & 0x80;
-                msbbit >>= 7;
-                msbbit &= 0x01;
-                // add the MSB to amplitude
-                amplitude = (amplitude << 1) | msbbit;
-                size--;
-
-                // remove bit from encodedBitstream[i]
-                encodedBitstream[idxCurrentByte] <<= 1;
-                noOfBitsLeftInCurrentByte--;
-
-            decodeByte(encodedBitstream);
-        }
-
-        if (firstbit==0) {
+        if ((amplitude & (1 << (size - 1))) == 0) {
             // the amplitude is negative (the bits represent Amplitude-1, but without the sign bit)
-            int mask =  (1<<origsize) - 1 ;
-            mask = ~mask;
-            amplitude = amplitude | mask;  // we negativate manually amplitude (a negative number uses 2 complementary representation)
-            amplitude += 1;
+            amplitude = amplitude - (1 << size) + 1;
         }
 
-//        System.out.println("amplitude="+getBinary(amplitude,origsize) +
-//                " idxCurrentByte=" + idxCurrentByte + " noOfBitsLeftInCurrentByte=" + noOfBitsLeftInCurrentByte);
+//        System.out.println("amplitude="+getBinary(amplitude,size));
         return amplitude;
     }
 
-    private char getNextDecodedBlockType() {
+    public char getDecodedBlockType(int blockIdx) {
         /* This function returns the type (Y, U or V) of the next decoded block from the
          * encoded bitstream based on the horizontal sampling factor and vertival sampling
          * factor for each component as specified in the JPG file. The order of blocks
@@ -704,8 +709,7 @@ public class HuffmanEncoder {
          *
          */
 
-        currentBlockTypeIdx++;
-        currentBlockTypeIdx = currentBlockTypeIdx % noBlocksInMCU;
+        int currentBlockTypeIdx = blockIdx % noBlocksInMCU; // is an index into the EncodedBlocksOrder vector
         char blocktype;
 
         if (currentBlockTypeIdx < horizontalSamplingFactors[0]*verticalSamplingFactors[0]) {
@@ -720,7 +724,7 @@ public class HuffmanEncoder {
         return blocktype;
     }
 
-    private int getNumberOfDecodingBlocks(int sampling, int width, int height) {
+    public int getNumberOfDecodingBlocks(int sampling, int width, int height) {
         int luma, chroma;
         luma = (width*height) / (8*8);
         luma = luma==0 ? 1 : luma;
@@ -748,10 +752,5 @@ public class HuffmanEncoder {
         }
         return new String(buffer);
     }
-
-    public void resetIndices() {
-        idxCurrentByte = 0;
-        noOfBitsLeftInCurrentByte = 8;
-    }
 }
 
@@ -0,0 +1,169 @@
+package jevc.operations;
+
+import jevc.entities.RunLengthBuffer;
+
+import java.util.Arrays;
+
+/*
+ * Counts the Huffman symbols the blocks of a frame are coded with and builds the Huffman tables that
+ * code exactly these blocks in the fewest bits. The symbols are those HuffmanEncoder writes: the size
+ * of a DC amplitude, (runlength << 4) + size of an AC amplitude, 0xF0 (ZRL) for every 16 zeroes of a
+ * longer run and 0x00 for the End-Of-Block.
+ *
+ * The tables are built as in Annex K.2 of the JPEG standard: the code lengths of a Huffman code
+ * (Figure K.1) are limited to 16 bits (Figure K.3) and no symbol gets the all ones codeword.
+ */
+public class HuffmanStatistics {
+    private final long[][] frequencies = new long[4][257];
+
+    /* Counts the symbols of a run length encoded block. */
+    public void add(RunLengthBuffer block) {
+        int dc = block.getType() == 'Y' ? HuffmanTables.DC_LUMA : HuffmanTables.DC_CHROMA;
+        int ac = block.getType() == 'Y' ? HuffmanTables.AC_LUMA : HuffmanTables.AC_CHROMA;
+
+        frequencies[dc][RunLengthBuffer.size(block.get(0))]++;
+        for (int i = 1; i < block.getSize(); i++) {
+            int element = block.get(i);
+            int run = RunLengthBuffer.runlength(element);
+            while (run > 15) {
+                frequencies[ac][0xF0]++;
+                run -= 16;
+            }
+            frequencies[ac][(run << 4) + RunLengthBuffer.size(element)]++;
+        }
+    }
+
+    /* The number of bits the Huffman codewords of the counted symbols take with `tables`. The amplitudes
+     * take the same bits with any tables, they are left out.
+     */
+    public long countCodeBits(HuffmanTables tables) {
+        long bits = 0;
+        for (int t = 0; t < 4; t++) {
+            int[] lengths = tables.getCodeLengths(t);
+            for (int symbol = 0; symbol < 256; symbol++) {
+                if (frequencies[t][symbol] > 0 && lengths[symbol] == 0) {
+                    // the symbol can't be coded with these tables
+                    return Long.MAX_VALUE;
+                }
+                bits += frequencies[t][symbol] * lengths[symbol];
+            }
+        }
+        return bits;
+    }
+
+    public HuffmanTables buildTables() {
+        int[] tableIds = {
+                HuffmanEncoder.BITS_DC_LUMINANCE[0], HuffmanEncoder.BITS_AC_LUMINANCE[0],
+                HuffmanEncoder.BITS_DC_CHROMINANCE[0], HuffmanEncoder.BITS_AC_CHROMINANCE[0]
+        };
+        int[][] bits = new int[4][];
+        int[][] vals = new int[4][];
+        for (int t = 0; t < 4; t++) {
+            int[] codeSizes = getCodeSizes(frequencies[t]);
+            bits[t] = getBits(codeSizes);
+            bits[t][0] = tableIds[t];
+            vals[t] = getVals(codeSizes, bits[t]);
+        }
+        return new HuffmanTables(bits, vals);
+    }
+
+    /* Code size of every symbol (Figure K.1). Symbol 256 is reserved with a count of 1, so no real
+     * symbol ends up with the all ones codeword.
+     */
+    private static int[] getCodeSizes(long[] symbolFrequencies) {
+        long[] freq = symbolFrequencies.clone();
+        freq[256] = 1;
+        int[] codeSize = new int[257];
+        int[] others = new int[257];
+        Arrays.fill(others, -1);
+
+        while (true) {
+            // the two least frequent symbols (trees), on ties the higher symbol first
+            int v1 = -1, v2 = -1;
+            for (int i = 0; i < 257; i++) {
+                if (freq[i] > 0 && (v1 == -1 || freq[i] <= freq[v1])) {
+                    v1 = i;
+                }
+            }
+            for (int i = 0; i < 257; i++) {
+                if (freq[i] > 0 && i != v1 && (v2 == -1 || freq[i] <= freq[v2])) {
+                    v2 = i;
+                }
+            }
+            if (v2 == -1) {
+                break;
+            }
+
+            // merge the tree of v2 into the tree of v1, every symbol of both gets one bit longer
+            freq[v1] += freq[v2];
+            freq[v2] = 0;
+            codeSize[v1]++;
+            while (others[v1] != -1) {
+                v1 = others[v1];
+                codeSize[v1]++;
+            }
+            others[v1] = v2;
+            codeSize[v2]++;
+            while (others[v2] != -1) {
+                v2 = others[v2];
+                codeSize[v2]++;
+            }
+        }
+        return codeSize;
+    }
+
+    /* BITS of the code sizes, limited to codewords of at most 16 bits (Figure K.3). */
+    private static int[] getBits(int[] codeSize) {
+        int[] count = new int[258];
+        for (int i = 0; i < 257; i++) {
+            if (codeSize[i] > 0) {
+                count[codeSize[i]]++;
+            }
+        }
+
+        for (int i = 257; i > 16; i--) {
+            while (count[i] > 0) {
+                // two codes of length i are replaced: their prefix becomes a code of length i - 1
+                // and a code of the longest length j < i - 1 is split into two codes of length j + 1
+                int j = i - 2;
+                while (count[j] == 0) {
+                    j--;
+                }
+                count[i] -= 2;
+                count[i - 1]++;
+                count[j + 1] += 2;
+                count[j]--;
+            }
+        }
+
+        // remove the reserved symbol, it has one of the longest codes
+        int i = 16;
+        while (i > 0 && count[i] == 0) {
+            i--;
+        }
+        if (i > 0) {
+            count[i]--;
+        }
+        return Arrays.copyOf(count, 17);
+    }
+
+    /* VALS: the symbols ordered by code size, the code sizes are given by BITS (Figure K.4). */
+    private static int[] getVals(int[] codeSize, int[] bits) {
+        int codes = 0;
+        for (int i = 1; i <= 16; i++) {
+            codes += bits[i];
+        }
+
+        // the symbols sorted by their (unlimited) code size, the reserved symbol left out
+        int[] vals = new int[codes];
+        int k = 0;
+        for (int size = 1; size < 258 && k < codes; size++) {
+            for (int symbol = 0; symbol < 256 && k < codes; symbol++) {
+                if (codeSize[symbol] == size) {
+                    vals[k++] = symbol;
+                }
+            }
+        }
+        return vals;
+    }
+}
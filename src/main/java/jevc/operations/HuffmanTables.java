@@ -0,0 +1,116 @@
+package jevc.operations;
+
+/*
+ * The four Huffman tables of a frame as BITS and VALS lists (see HuffmanEncoder), in the order they
+ * are written to a DHT segment: DC luma, AC luma, DC chroma, AC chroma. Like the BITS lists of
+ * HuffmanEncoder, BITS[0] holds the Tc/Th byte of the table, BITS[i] the number of codewords of
+ * length i.
+ */
+public class HuffmanTables {
+    public static final int DC_LUMA = 0;
+    public static final int AC_LUMA = 1;
+    public static final int DC_CHROMA = 2;
+    public static final int AC_CHROMA = 3;
+
+    private static final int DHT_MARKER = 0xFFC4;
+
+    private final int[][] bits;
+    private final int[][] vals;
+
+    public HuffmanTables(int[][] bits, int[][] vals) {
+        this.bits = bits;
+        this.vals = vals;
+    }
+
+    /* The tables of Annex K of the JPEG standard, the ones HuffmanEncoder starts with. */
+    public static HuffmanTables standard() {
+        return new HuffmanTables(
+                new int[][]{
+                        HuffmanEncoder.BITS_DC_LUMINANCE, HuffmanEncoder.BITS_AC_LUMINANCE,
+                        HuffmanEncoder.BITS_DC_CHROMINANCE, HuffmanEncoder.BITS_AC_CHROMINANCE
+                },
+                new int[][]{
+                        HuffmanEncoder.VALS_DC_LUMINANCE, HuffmanEncoder.VALS_AC_LUMINANCE,
+                        HuffmanEncoder.VALS_DC_CHROMINANCE, HuffmanEncoder.VALS_AC_CHROMINANCE
+                });
+    }
+
+    public int[] getBits(int table) { return bits[table]; }
+    public int[] getVals(int table) { return vals[table]; }
+
+    /* The code length of every symbol of a table, 0 for the symbols without a codeword. */
+    public int[] getCodeLengths(int table) {
+        int[] lengths = new int[256];
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            for (int j = 0; j < bits[table][length]; j++) {
+                lengths[vals[table][k++]] = length;
+            }
+        }
+        return lengths;
+    }
+
+    /* The DHT segment with the four tables: marker, length and for every table Tc/Th, BITS and VALS. */
+    public byte[] toDHTSegment() {
+        int length = 2;
+        for (int t = 0; t < 4; t++) {
+            length += 17 + countCodes(t);
+        }
+
+        byte[] segment = new byte[2 + length];
+        segment[0] = (byte) (DHT_MARKER >> 8);
+        segment[1] = (byte) DHT_MARKER;
+        segment[2] = (byte) (length >> 8);
+        segment[3] = (byte) length;
+        int index = 4;
+        for (int t = 0; t < 4; t++) {
+            for (int i = 0; i < 17; i++) {
+                segment[index++] = (byte) bits[t][i];
+            }
+            for (int i = 0; i < countCodes(t); i++) {
+                segment[index++] = (byte) vals[t][i];
+            }
+        }
+        return segment;
+    }
+
+    /* True if the bytes at data[offset] start a DHT segment. */
+    public static boolean startsWithDHTSegment(byte[] data, int offset) {
+        return data.length - offset >= 4
+                && (data[offset] & 0xFF) == DHT_MARKER >> 8 && (data[offset + 1] & 0xFF) == (DHT_MARKER & 0xFF);
+    }
+
+    /* The total size in bytes, marker included, of the DHT segment at data[offset]. */
+    public static int getDHTSegmentLength(byte[] data, int offset) {
+        return 2 + (((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF));
+    }
+
+    /* Reads the four tables of the DHT segment at data[offset], written by toDHTSegment(). */
+    public static HuffmanTables fromDHTSegment(byte[] data, int offset) {
+        int[][] bits = new int[4][17];
+        int[][] vals = new int[4][];
+        int index = offset + 4;
+        for (int t = 0; t < 4; t++) {
+            int count = 0;
+            for (int i = 0; i < 17; i++) {
+                bits[t][i] = data[index++] & 0xFF;
+                if (i > 0) {
+                    count += bits[t][i];
+                }
+            }
+            vals[t] = new int[count];
+            for (int i = 0; i < count; i++) {
+                vals[t][i] = data[index++] & 0xFF;
+            }
+        }
+        return new HuffmanTables(bits, vals);
+    }
+
+    private int countCodes(int table) {
+        int count = 0;
+        for (int i = 1; i <= 16; i++) {
+            count += bits[table][i];
+        }
+        return count;
+    }
+}
@@ -1,29 +1,216 @@
 package jevc.operations;
 
 import jevc.entities.Block;
+import jevc.entities.Globals;
 import jevc.entities.MotionVector;
+import jevc.entities.ReferencePicture;
+import jevc.entities.ReferencePlane;
 
+import java.util.Arrays;
+
+/*
+ * Motion search for one block, or for the luma blocks of a macroblock which share one vector,
+ * over every frame of a BlockBuffer. The cost of a candidate is the SAD summed over all blocks.
+ * 0. the global motion of the frame (see GlobalMotionEstimator) and the vector predicted from the
+ *    neighbouring macroblocks on the previous frame; if the better one already matches well,
+ *    e.g. during a camera pan or on a moving object, the coarse search is skipped
+ * 1. coarse search on the block grid of every reference
+ * 2. full-pel refinement at every position within REFINE_RADIUS of the best one, which covers the gaps
+ *    between the grid positions; a row of candidates is matched at once (see BlockDistortion.sadRow())
+ * 3. sub-pel refinement with step 1/2 and 1/4 on the interpolated reference planes
+ * The resulting vector is in quarter-pel units.
+ * With subsampled matching every SAD only looks at the even rows (see BlockDistortion.sadSubsampled()),
+ * which roughly halves the search time at the cost of a few worse vectors on fine vertical detail.
+ */
 public class MotionEstimator {
-    // TODO: this class might not be needed
+    // an older reference has to beat the newer ones by this much SAD per index step,
+    // switching references costs an extra codeword in the bitstream
+    private final int referencePenalty = 32;
+    // any vector has to beat the zero vector of the previous frame by this much SAD,
+    // zero vector blocks whose residual vanishes are coded as skipped blocks
+    private final int zeroVectorPenalty = 32;
+    // mean absolute difference per sample below which the global motion candidate ends the coarse search
+    private final int globalMatchThreshold = 2;
+    // vectors are stored in signed bytes, so they have to stay within [-128, 127] quarter-pels
+    private static final int MIN_VECTOR = -128;
+    private static final int MAX_VECTOR = 127;
+    // half the block grid of the coarse search
+    private static final int REFINE_RADIUS = 4;
+    private static final int[][] NEIGHBOURS = {
+            {-1, -1}, {0, -1}, {1, -1},
+            {-1, 0}, {1, 0},
+            {-1, 1}, {0, 1}, {1, 1}
+    };
+
+    private final int precision; // 1 - full-pel, 2 - half-pel, 4 - quarter-pel
+    private final int searchRadius; // searchRadius = 3 => coarse search area = 7x7 blocks centered
+    private final boolean subsampled;
+
     public MotionEstimator() {
+        this(Globals.MOTION_PRECISION, Globals.MOTION_SEARCH_RADIUS, Globals.SUBSAMPLED_MATCHING);
+    }
+
+    public MotionEstimator(int precision) {
+        this(precision, Globals.MOTION_SEARCH_RADIUS, Globals.SUBSAMPLED_MATCHING);
+    }
+
+    public MotionEstimator(int precision, int searchRadius, boolean subsampled) {
+        this.precision = precision;
+        this.searchRadius = searchRadius;
+        this.subsampled = subsampled;
+    }
+
+    public MotionVector estimate(Block block, BlockBuffer blockBuffer) {
+        return estimate(new Block[]{block}, blockBuffer);
+    }
+
+    public MotionVector estimate(Block[] blocks, BlockBuffer blockBuffer) {
+        return estimate(blocks, blockBuffer, new MotionVector(0, 0));
+    }
+
+    public MotionVector estimate(Block[] blocks, BlockBuffer blockBuffer, MotionVector globalMotion) {
+        return estimate(blocks, blockBuffer, globalMotion, globalMotion);
+    }
+
+    /* All blocks must be of the same component, their positions give the area that is matched.
+     * globalMotion and predictedMotion are candidates on the previous frame, in quarter-pel units,
+     * they are tried at full-pel precision.
+     */
+    public MotionVector estimate(Block[] blocks, BlockBuffer blockBuffer, MotionVector globalMotion,
+                                 MotionVector predictedMotion) {
+        int component = ReferencePicture.getComponent(blocks[0].getType());
+        ReferencePlane previousFrame = blockBuffer.getReference(0).getPlane(component);
+
+        // best displacement in pixels, starting at the global motion
+        int bestX = globalMotion.decompress()[0] / 4;
+        int bestY = globalMotion.decompress()[1] / 4;
+        int bestRef = 0;
+        int bestCost = sad(blocks, previousFrame, bestX, bestY);
+        int predictedX = predictedMotion.decompress()[0] / 4;
+        int predictedY = predictedMotion.decompress()[1] / 4;
+        if (predictedX != bestX || predictedY != bestY) {
+            int cost = sad(blocks, previousFrame, predictedX, predictedY);
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestX = predictedX;
+                bestY = predictedY;
+            }
+        }
+        boolean isGoodMatch = bestCost < globalMatchThreshold * blocks.length * Block.BLOCKSIZE * Block.BLOCKSIZE;
+
+        // on equal cost the most recent frame wins, it is the cheapest one to signal
+        for (int ref = 0; ref < blockBuffer.size() && bestCost > 0 && !isGoodMatch; ref++) {
+            int penalty = ref * referencePenalty;
+            ReferencePlane plane = blockBuffer.getReference(ref).getPlane(component);
+
+            for (int i = -searchRadius; i <= searchRadius; i++) {
+                for (int j = -searchRadius; j <= searchRadius; j++) {
+                    int cost = sad(blocks, plane, j * 8, i * 8) + penalty;
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestX = j * 8;
+                        bestY = i * 8;
+                        bestRef = ref;
+                    }
+                }
+            }
+        }
+
+        ReferencePlane plane = blockBuffer.getReference(bestRef).getPlane(component);
+        int bestSAD = bestCost - bestRef * referencePenalty;
+        int zeroSAD = sad(blocks, previousFrame, 0, 0);
+
+        // full-pel refinement around the best grid position, one row of candidates at a time
+        if (bestSAD > 0) {
+            int minX = Math.max(bestX - REFINE_RADIUS, MIN_VECTOR / 4);
+            int maxX = Math.min(bestX + REFINE_RADIUS, MAX_VECTOR / 4);
+            int minY = Math.max(bestY - REFINE_RADIUS, MIN_VECTOR / 4);
+            int maxY = Math.min(bestY + REFINE_RADIUS, MAX_VECTOR / 4);
+            int count = maxX - minX + 1;
+            int[] rowSAD = new int[count];
+            int[] blockSAD = new int[count];
+            for (int candidateY = minY; candidateY <= maxY; candidateY++) {
+                sadRow(blocks, plane, minX, candidateY, count, rowSAD, blockSAD);
+                for (int c = 0; c < count; c++) {
+                    if (rowSAD[c] < bestSAD) {
+                        bestSAD = rowSAD[c];
+                        bestX = minX + c;
+                        bestY = candidateY;
+                    }
+                }
+            }
+        }
 
+        // sub-pel refinement, step 2 => half-pel, step 1 => quarter-pel
+        bestX *= 4;
+        bestY *= 4;
+        for (int step = 2; step >= 4 / precision && bestSAD > 0; step >>= 1) {
+            int centerX = bestX;
+            int centerY = bestY;
+            for (int[] neighbour : NEIGHBOURS) {
+                int candidateX = centerX + neighbour[0] * step;
+                int candidateY = centerY + neighbour[1] * step;
+                if (!isInRange(candidateX) || !isInRange(candidateY)) {
+                    continue;
+                }
+                int sad = subPelSad(blocks, plane, candidateX, candidateY);
+                if (sad < bestSAD) {
+                    bestSAD = sad;
+                    bestX = candidateX;
+                    bestY = candidateY;
+                }
+            }
+        }
+
+        if (zeroSAD <= bestSAD + zeroVectorPenalty) {
+            return new MotionVector(0, 0, 0);
+        }
+        return new MotionVector(bestX, bestY, bestRef);
+    }
+
+    /* SAD of the blocks displaced by the full-pel vector [dx, dy]. */
+    private int sad(Block[] blocks, ReferencePlane plane, int dx, int dy) {
+        int sad = 0;
+        for (Block block : blocks) {
+            int offset = plane.offset(block.getPosX() + dx, block.getPosY() + dy);
+            sad += subsampled
+                    ? BlockDistortion.sadSubsampled(block.getData(), plane.getData(), offset, plane.getStride())
+                    : BlockDistortion.sad(block.getData(), plane.getData(), offset, plane.getStride());
+        }
+        return sad;
     }
 
-    public MotionVector computeMotionVector(Block block, Block similarBlock) {
-        // compute motion vector
-        // block:        [x0, y0]
-        // similarBlock: [x1, y1]
-        // mVector:      [x1-x0, y1-y0]
+    /* SADs of the blocks displaced by [dx, dy], [dx + 1, dy], ..., [dx + count - 1, dy] into `out`;
+     * `blockSAD` is scratch space of the same length.
+     */
+    private void sadRow(Block[] blocks, ReferencePlane plane, int dx, int dy, int count, int[] out, int[] blockSAD) {
+        Arrays.fill(out, 0, count, 0);
+        for (Block block : blocks) {
+            int offset = plane.offset(block.getPosX() + dx, block.getPosY() + dy);
+            if (subsampled) {
+                BlockDistortion.sadRowSubsampled(block.getData(), plane.getData(), offset, plane.getStride(), count, blockSAD);
+            } else {
+                BlockDistortion.sadRow(block.getData(), plane.getData(), offset, plane.getStride(), count, blockSAD);
+            }
+            for (int c = 0; c < count; c++) {
+                out[c] += blockSAD[c];
+            }
+        }
+    }
+
+    /* SAD of the blocks displaced by the quarter-pel vector [dx4, dy4]. */
+    private int subPelSad(Block[] blocks, ReferencePlane plane, int dx4, int dy4) {
+        int sad = 0;
+        for (Block block : blocks) {
+            Block candidate = plane.getSubPelBlock(block.getPosX() * 4 + dx4, block.getPosY() * 4 + dy4, block.getType());
+            sad += subsampled
+                    ? BlockDistortion.sadSubsampled(block.getData(), candidate.getData())
+                    : BlockDistortion.sad(block.getData(), candidate.getData());
+        }
+        return sad;
+    }
 
-        // DEBUG
-//        System.out.println();
-//        System.out.println("MOTION VECTOR FOR BLOCK");
-//        int x = similarBlock.getPosX() - block.getPosX();
-//        int y = similarBlock.getPosY() - block.getPosY();
-//        System.out.println("[" + x + ", " + y + "]");
-        return new MotionVector(
-                similarBlock.getPosX() - block.getPosX(),
-                similarBlock.getPosY() - block.getPosY()
-        );
+    private static boolean isInRange(int vector) {
+        return vector >= MIN_VECTOR && vector <= MAX_VECTOR;
     }
 }
@@ -50,6 +50,28 @@ public class Quantizer {
 //        }
     }
 
+    /* True if a residual block with the given SAD and SSD quantizes to zero AC coefficients.
+     * Every AC coefficient of the DCT is at most SAD / 4 and, the DCT being orthonormal, at most
+     * sqrt(SSD); quantize() truncates towards zero, so anything below the smallest step vanishes.
+     */
+    public boolean quantizesToZero(int sad, int ssd, char type) {
+        int[] table = (type == 'Y') ? QUANTUM_LUMINANCE : QUANTUM_CHROMINANCE;
+        int minStep = Integer.MAX_VALUE;
+        for (int i = 1; i < table.length; i++) {
+            minStep = Math.min(minStep, table[i]);
+        }
+        return sad < 4 * minStep || ssd < minStep * minStep;
+    }
+
+    /* Lagrange multiplier for rate-distortion decisions with SSD distortion and rates in bits.
+     * The usual 0.85 * QP^2 of H.263 style encoders, the quantizer step being 2 * QP, taken at the
+     * luma DC step, which sets the scale of the whole table.
+     */
+    public double getLambda() {
+        double qp = QUANTUM_LUMINANCE[0] / 2.0;
+        return 0.85 * qp * qp;
+    }
+
     public void quantize(Block block) {
         int[][] blockdata = block.getData();
         if (block.getType()=='Y') {
@@ -0,0 +1,172 @@
+package jevc.operations;
+
+import jevc.entities.Block;
+import jevc.entities.InternalFrameBuffer;
+import jevc.entities.RunLengthBuffer;
+import jevc.entities.YCbCrImage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+/*
+ * Restart intervals of a Huffman coded scan (JPEG standard, B.2.4.4 and F.1.2.3). The MCUs of the
+ * scan are split into segments of `interval` MCUs; every segment starts with DC predictions of 0 and
+ * ends on a byte border, and the segments are separated by the markers RST0, RST1, .., RST7, RST0, ..
+ * A segment can therefore be coded and decoded without the ones before it, so the segments of a frame
+ * are Huffman coded and decoded on several threads. The interval is announced by a DRI segment:
+ *
+ *      FF DD | length = 4 (2 bytes) | restart interval in MCUs (2 bytes)
+ *
+ * Restart markers can't be mistaken for coded data, a 0xFF byte of the data is always followed by a
+ * stuffed 0x00 byte (see BitWriter), so split() finds the segments without decoding them.
+ */
+public final class RestartSegments {
+    public static final int DRI_SEGMENT_LENGTH = 6;
+
+    private static final int DRI_MARKER = 0xFFDD;
+    private static final int RST0 = 0xD0;
+
+    private RestartSegments() {}
+
+    /* The restart interval in MCUs of `rows` MCU rows of a frame `width` pixels wide, at most 0xFFFF. */
+    public static int getInterval(int rows, int width, int sampling) {
+        int[] horizSamplingFactors = new int[3];
+        int[] vertSamplingFactors = new int[3];
+        YCbCrImage.computeSamplingFactors(sampling, horizSamplingFactors, vertSamplingFactors);
+        int mcuWidth = 8 * horizSamplingFactors[0];
+        return Math.min(rows * ((width + mcuWidth - 1) / mcuWidth), 0xFFFF);
+    }
+
+    /* Number of blocks of an MCU: the Y blocks, then the U and V blocks. */
+    public static int getBlocksPerMCU(int sampling) {
+        int[] horizSamplingFactors = new int[3];
+        int[] vertSamplingFactors = new int[3];
+        YCbCrImage.computeSamplingFactors(sampling, horizSamplingFactors, vertSamplingFactors);
+        int blocks = 0;
+        for (int i = 0; i < 3; i++) {
+            blocks += horizSamplingFactors[i] * vertSamplingFactors[i];
+        }
+        return blocks;
+    }
+
+    public static byte[] toDRISegment(int interval) {
+        return new byte[]{
+                (byte) (DRI_MARKER >> 8), (byte) DRI_MARKER, 0, 4, (byte) (interval >> 8), (byte) interval
+        };
+    }
+
+    /* True if the bytes at data[offset] start a DRI segment. */
+    public static boolean startsWithDRISegment(byte[] data, int offset) {
+        return data.length - offset >= DRI_SEGMENT_LENGTH
+                && (data[offset] & 0xFF) == DRI_MARKER >> 8 && (data[offset + 1] & 0xFF) == (DRI_MARKER & 0xFF);
+    }
+
+    /* The restart interval of the DRI segment at data[offset]. */
+    public static int getInterval(byte[] data, int offset) {
+        return ((data[offset + 4] & 0xFF) << 8) | (data[offset + 5] & 0xFF);
+    }
+
+    /* Huffman codes the quantized `blocks`, in scan order, in segments of `blocksPerSegment` blocks with
+     * the tables of `huffmanEncoder` and writes them to `outputStream` separated by restart markers. The
+     * segments are coded in parallel on `executor`, or one after another if it is null.
+     */
+    public static void encode(InternalFrameBuffer outputStream, List<Block> blocks, int blocksPerSegment,
+                              HuffmanEncoder huffmanEncoder, ExecutorService executor) throws InterruptedException {
+        int count = (blocks.size() + blocksPerSegment - 1) / blocksPerSegment;
+        InternalFrameBuffer[] segments = new InternalFrameBuffer[count];
+        run(count, executor, s -> {
+            // a segment starts with DC predictions of 0 and ends on a byte border
+            InternalFrameBuffer segment = new InternalFrameBuffer();
+            HuffmanEncoder segmentEncoder = new HuffmanEncoder(huffmanEncoder);
+            RunLengthEncoder runLengthEncoder = new RunLengthEncoder();
+            for (Block block : blocks.subList(s * blocksPerSegment, Math.min((s + 1) * blocksPerSegment, blocks.size()))) {
+                segmentEncoder.encode(segment, block, runLengthEncoder);
+            }
+            segmentEncoder.flushBuffer(segment);
+            segments[s] = segment;
+        });
+
+        for (int s = 0; s < count; s++) {
+            if (s > 0) {
+                outputStream.write(0xFF);
+                outputStream.write(RST0 + (s - 1) % 8);
+            }
+            outputStream.write(segments[s].dumpStreamToBuffer());
+        }
+    }
+
+    /* The segments of the coded data data[offset, offset + length), as {offset, length} pairs without
+     * the restart markers between them.
+     */
+    public static List<int[]> split(byte[] data, int offset, int length) {
+        List<int[]> segments = new ArrayList<>();
+        int start = offset;
+        int end = offset + length;
+        for (int i = offset; i + 1 < end; i++) {
+            if ((data[i] & 0xFF) == 0xFF && ((data[i + 1] & 0xFF) & ~7) == RST0) {
+                segments.add(new int[]{start, i - start});
+                start = i + 2;
+                i++;
+            }
+        }
+        segments.add(new int[]{start, end - start});
+        return segments;
+    }
+
+    /* Decodes the `count` blocks of the coded data data[offset, offset + length), restart segments of
+     * `blocksPerSegment` blocks, with the tables of `huffmanEncoder` (which knows the sampling factors).
+     * The segments are decoded in parallel on `executor`, or one after another if it is null, and on the
+     * thread that decoded it every block is handed to `blockDecoder`, e.g. to dequantize and inverse
+     * transform it. Returns the blocks in scan order; their positions are left to the caller.
+     */
+    public static Block[] decode(byte[] data, int offset, int length, int count, int blocksPerSegment,
+                                 HuffmanEncoder huffmanEncoder, Consumer<Block> blockDecoder,
+                                 ExecutorService executor) throws InterruptedException {
+        List<int[]> segments = split(data, offset, length);
+        Block[] blocks = new Block[count];
+        run(segments.size(), executor, s -> {
+            BitReader reader = new BitReader(data, segments.get(s)[0], segments.get(s)[1]);
+            RunLengthEncoder runLengthEncoder = new RunLengthEncoder();
+            RunLengthBuffer rleBlock = RunLengthBuffer.local();
+            for (int i = s * blocksPerSegment; i < Math.min((s + 1) * blocksPerSegment, count); i++) {
+                rleBlock.clear(huffmanEncoder.getDecodedBlockType(i));
+                huffmanEncoder.decodeBlock(reader, rleBlock);
+                Block block = runLengthEncoder.decode(rleBlock);
+                blockDecoder.accept(block);
+                blocks[i] = block;
+            }
+        });
+        return blocks;
+    }
+
+    private interface SegmentTask {
+        void run(int segment);
+    }
+
+    /* Runs `task` for the segments 0 .. count - 1 and blocks until all of them are done. */
+    private static void run(int count, ExecutorService executor, SegmentTask task) throws InterruptedException {
+        if (executor == null) {
+            for (int s = 0; s < count; s++) {
+                task.run(s);
+            }
+            return;
+        }
+        CountDownLatch latch = new CountDownLatch(count);
+        for (int s = 0; s < count; s++) {
+            int segment = s;
+            executor.execute(() -> {
+                try {
+                    task.run(segment);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+    }
+}
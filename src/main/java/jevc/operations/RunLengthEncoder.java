@@ -1,10 +1,9 @@
 package jevc.operations;
 
 import jevc.entities.Block;
-import jevc.entities.RunLength;
 import jevc.entities.RunLengthBlock;
+import jevc.entities.RunLengthBuffer;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 
 public class RunLengthEncoder {
@@ -26,26 +25,21 @@ public class RunLengthEncoder {
         this.frametype = frametype;
     }
 
+    /* Compatibility adapter, the VLC paths use encode(Block, RunLengthBuffer). */
     public RunLengthBlock encode(Block block) {
+        return encode(block, new RunLengthBuffer()).toRunLengthBlock();
+    }
+
+    /* Run length encodes `block` into `buffer` (which is cleared first) and returns it. */
+    public RunLengthBuffer encode(Block block, RunLengthBuffer buffer) {
         int[][] blockdata = block.getData();
-        int type = switch (block.getType()) {
-            case 'Y' -> 0;
-            case 'U' -> 1;
-            case 'V' -> 2;
-            default -> -1;
-        };
-        ArrayList<RunLength> runlengthElements = new ArrayList<>();
+        buffer.clear(block.getType());
 
         // encode the DC coefficient
-        int amplitude = blockdata[0][0]-lastDCvalues[type];
-
-        if (frametype == 'I') {
-            amplitude -= lastDCvalues[type];
-            lastDCvalues[type] = blockdata[0][0]; // save current DC value
-        }
+        int amplitude = encodeDC(block);
 
         int size = getSizeForAmplitude(amplitude);
-        if (amplitude==0 && frametype=='I') {
+        if (amplitude==0) {
             // IMPORTANT!!!: The size of a DC amplitude equal to ZERO is 0. But the size of a
             // AC amplitude equal to zero is actually 1! See pag.93-94 of the JPEG standard.
             // Of course, if the amplitude of the AC coefficient is 0, this AC coefficient
@@ -53,8 +47,7 @@ public class RunLengthEncoder {
             size = 0;
         }
 
-        RunLength rlElem = new RunLength(-1, size, amplitude);
-        runlengthElements.add(rlElem);
+        buffer.add(-1, size, amplitude);
 
         // encode AC coefficients
         int i = 1;
@@ -65,18 +58,37 @@ public class RunLengthEncoder {
             if (blockdata[line][col]==0) {
                 run++;
             } else {
-                rlElem = new RunLength(run, getSizeForAmplitude(blockdata[line][col]), blockdata[line][col]);
-                runlengthElements.add(rlElem);
+                buffer.add(run, getSizeForAmplitude(blockdata[line][col]), blockdata[line][col]);
                 run = 0;
             }
             i++;
         }
         if (run>0) {
-            rlElem = new RunLength(0, 0, 0); // End-Of-Block symbol
-            runlengthElements.add(rlElem);
+            buffer.add(0, 0, 0); // End-Of-Block symbol
         }
 
-        return new RunLengthBlock(runlengthElements, block.getType());
+        return buffer;
+    }
+
+    /* The DC amplitude that is coded for `block`, the difference to the predicted DC value. In I frames
+     * the prediction advances to the DC value of this block.
+     */
+    public int encodeDC(Block block) {
+        int[][] blockdata = block.getData();
+        int type = switch (block.getType()) {
+            case 'Y' -> 0;
+            case 'U' -> 1;
+            case 'V' -> 2;
+            default -> -1;
+        };
+
+        int amplitude = blockdata[0][0]-lastDCvalues[type];
+
+        if (frametype == 'I') {
+            amplitude -= lastDCvalues[type];
+            lastDCvalues[type] = blockdata[0][0]; // save current DC value
+        }
+        return amplitude;
     }
 
     private int getSizeForAmplitude(int amplitude) {
@@ -91,15 +103,18 @@ public class RunLengthEncoder {
         return size;
     }
 
+    /* Compatibility adapter, the decoders use decode(RunLengthBuffer). */
     public Block decode(RunLengthBlock rleBlock) {
+        return decode(RunLengthBuffer.of(rleBlock));
+    }
+
+    public Block decode(RunLengthBuffer rleBlock) {
         int[][] data = new int[8][8];
-        RunLength runLength = rleBlock.getData().get(0);
-        if (runLength.getRunlength() != -1) {
+        int runLength = rleBlock.get(0);
+        if (RunLengthBuffer.runlength(runLength) != -1) {
             System.err.println("RunLengthEncoder::decode() run length block " +
                     "doesn't start with DC coefficient!");
         }
-//        System.out.println("RunLengthEncoder::decode() Processing RunLengthBlock with size " +
-//                rleBlock.getSize());
 
         int type = switch (rleBlock.getType()) {
             case 'Y' -> 0;
@@ -108,38 +123,18 @@ public class RunLengthEncoder {
             default -> -1;
         };
 
-        data[0][0] = runLength.getAmplitude() + lastDCvalues[type];
+        data[0][0] = RunLengthBuffer.amplitude(runLength) + lastDCvalues[type];
         if (frametype == 'I') {
             data[0][0] += lastDCvalues[type];
             lastDCvalues[type] = data[0][0]; // save current DC value
         }
 
-        rleBlock.getData().remove(0);
-
+        // the AC coefficients follow the DC element, the zeroes of a run are already in `data`
         int i = 1;
-        for(RunLength rlb: rleBlock.getData()) {
-            int run = rlb.getRunlength();
-//            System.out.println("RunLength ["+rlb.getRunlength()+","+rlb.getSize()+","+rlb.getAmplitude()+"] i="+i);
-            while (run>0) {
-                if (i == 64) {
-                    i--;
-                }
-                data[ZIGZAG_ORDER[i]/8][ZIGZAG_ORDER[i]%8] = 0;
-                run--;
-                i++;
-            }
-            if (i == 64) {
-                i--;
-            }
-            data[ZIGZAG_ORDER[i]/8][ZIGZAG_ORDER[i]%8] = rlb.getAmplitude();
-            i++;
-        }
-        RunLength rlb = rleBlock.getData().get(rleBlock.getSize()-1);
-//        if ((i<64) && ((rlb.getRunlength()!=0) || (rlb.getSize()!=0) || (rlb.getAmplitude()!=0))) {
-//            System.err.println("RunLengthEncoder::decode() less than 64 coefficients and no End-Of-Block!");
-//        }
-        while (i<64) {
-            data[ZIGZAG_ORDER[i]/8][ZIGZAG_ORDER[i]%8] = 0;
+        for (int k = 1; k < rleBlock.getSize(); k++) {
+            int rlb = rleBlock.get(k);
+            i = Math.min(i + RunLengthBuffer.runlength(rlb), 63);
+            data[ZIGZAG_ORDER[i]/8][ZIGZAG_ORDER[i]%8] = RunLengthBuffer.amplitude(rlb);
             i++;
         }
 
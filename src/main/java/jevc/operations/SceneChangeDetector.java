@@ -0,0 +1,134 @@
+package jevc.operations;
+
+/*
+ * Cheap scene cut detection on subsampled luma planes (see JVidEncoderService.readThumbnail()).
+ * A frame starts a new scene if either
+ * - both the mean absolute difference between co-located samples and the difference between the
+ *   luma histograms are large: fast pans mostly move the first, slow fades mostly the second, and
+ *   neither of them should waste an I frame, or
+ * - predicting it from the previous frame costs about as much as coding it on its own, which also
+ *   finds cuts between two scenes of similar exposure. Per area, the inter cost is the absolute
+ *   difference to the best matching shift of the previous frame, without the difference of the
+ *   means, so pans and fades stay cheap; the intra cost the difference between neighbouring
+ *   samples, i.e. the detail of the area. A P frame codes every area the cheaper way.
+ */
+public class SceneChangeDetector {
+    // only every SUBSAMPLING-th sample of every SUBSAMPLING-th row is analysed
+    public static final int SUBSAMPLING = 8;
+    private static final int BINS = 32;
+    // the previous frame is matched with shifts of up to SEARCH_RADIUS samples in either direction
+    private static final int SEARCH_RADIUS = 2;
+    // the costs are estimated per area of AREA_SIZE x AREA_SIZE samples, two macroblocks wide
+    private static final int AREA_SIZE = 4;
+    // frames that differ by less than this inter cost per sample are never cuts, e.g. flat frames
+    private static final int MIN_INTER_COST = 8;
+    // a P frame estimated at this fraction of an I frame, or more, is coded as an I frame; within a
+    // scene even fast pans and occlusions stay below 0.7, cuts between similar scenes reach ~0.8
+    private static final double INTRA_RATIO = 0.75;
+
+    private final int width; // of the subsampled planes
+    private final double sadThreshold; // mean absolute luma difference per sample, [0, 255]
+    private final double histogramThreshold; // fraction of samples that changed histogram bin, [0, 1]
+
+    public SceneChangeDetector(int width) {
+        this(width, 30, 0.4);
+    }
+
+    public SceneChangeDetector(int width, double sadThreshold, double histogramThreshold) {
+        this.width = width;
+        this.sadThreshold = sadThreshold;
+        this.histogramThreshold = histogramThreshold;
+    }
+
+    public boolean isSceneChange(int[] previous, int[] current) {
+        long sad = 0;
+        int[] previousHistogram = new int[BINS];
+        int[] currentHistogram = new int[BINS];
+
+        for (int i = 0; i < current.length; i++) {
+            sad += Math.abs(current[i] - previous[i]);
+            previousHistogram[previous[i] * BINS / 256]++;
+            currentHistogram[current[i] * BINS / 256]++;
+        }
+
+        long histogramDifference = 0;
+        for (int i = 0; i < BINS; i++) {
+            histogramDifference += Math.abs(currentHistogram[i] - previousHistogram[i]);
+        }
+
+        double meanSAD = (double) sad / current.length;
+        double histogramDistance = histogramDifference / (2.0 * current.length);
+        if (meanSAD > sadThreshold && histogramDistance > histogramThreshold) {
+            return true;
+        }
+
+        // a P frame codes the areas without a good match like an I frame (intra macroblocks)
+        int height = current.length / width;
+        long interCost = 0;
+        long intraCost = 0;
+        for (int y = 0; y < height; y += AREA_SIZE) {
+            for (int x = 0; x < width; x += AREA_SIZE) {
+                int intra = getIntraCost(current, x, y);
+                interCost += Math.min(getInterCost(previous, current, x, y), intra);
+                intraCost += intra;
+            }
+        }
+        return interCost > MIN_INTER_COST * current.length && interCost >= INTRA_RATIO * intraCost;
+    }
+
+    /* Lowest sum of absolute differences, after removing the difference of the means, between the
+     * area at [x0, y0] and the previous plane shifted by up to SEARCH_RADIUS samples.
+     */
+    private int getInterCost(int[] previous, int[] current, int x0, int y0) {
+        int height = current.length / width;
+        int x1 = Math.min(x0 + AREA_SIZE, width);
+        int y1 = Math.min(y0 + AREA_SIZE, height);
+        int count = (x1 - x0) * (y1 - y0);
+        int bestCost = Integer.MAX_VALUE;
+        for (int dy = -SEARCH_RADIUS; dy <= SEARCH_RADIUS; dy++) {
+            for (int dx = -SEARCH_RADIUS; dx <= SEARCH_RADIUS; dx++) {
+                int difference = 0;
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        difference += current[y * width + x] - previous[shifted(x, y, dx, dy, height)];
+                    }
+                }
+                int meanDifference = difference / count;
+                int cost = 0;
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        cost += Math.abs(current[y * width + x] - previous[shifted(x, y, dx, dy, height)] - meanDifference);
+                    }
+                }
+                bestCost = Math.min(bestCost, cost);
+            }
+        }
+        return bestCost;
+    }
+
+    /* Index of the sample at [x + dx, y + dy], clamped to the plane like the reference plane borders. */
+    private int shifted(int x, int y, int dx, int dy, int height) {
+        int sx = Math.max(0, Math.min(width - 1, x + dx));
+        int sy = Math.max(0, Math.min(height - 1, y + dy));
+        return sy * width + sx;
+    }
+
+    /* Sum of absolute differences between each sample of the area at [x0, y0] and its left and top
+     * neighbours, averaged over the two directions.
+     */
+    private int getIntraCost(int[] current, int x0, int y0) {
+        int height = current.length / width;
+        int x1 = Math.min(x0 + AREA_SIZE, width);
+        int y1 = Math.min(y0 + AREA_SIZE, height);
+        int cost = 0;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                int sample = current[y * width + x];
+                int left = x > 0 ? current[y * width + x - 1] : sample;
+                int top = y > 0 ? current[(y - 1) * width + x] : sample;
+                cost += (Math.abs(sample - left) + Math.abs(sample - top)) / 2;
+            }
+        }
+        return cost;
+    }
+}
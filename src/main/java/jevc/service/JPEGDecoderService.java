@@ -1,9 +1,11 @@
 package jevc.service;
 
 import jevc.entities.*;
+import jevc.operations.BitReader;
 import jevc.operations.DiscreteCosineTransform;
 import jevc.operations.HuffmanEncoder;
 import jevc.operations.Quantizer;
+import jevc.operations.RestartSegments;
 import jevc.operations.RunLengthEncoder;
 import jevc.utils.JPEGHeader;
 
@@ -11,6 +13,8 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class JPEGDecoderService extends JPEGHeader {
     private final String inputFile;
@@ -24,6 +28,7 @@ public class JPEGDecoderService extends JPEGHeader {
     private int height;
     private int width;
     private ImageComponent[] imageComponents;
+    private int restartInterval; // MCUs per restart segment as read from the DRI segment, 0 - no restart markers
     private int YMCUIndex, CbMCUIndex, CrMCUIndex;
     private int YinnerMCUIdx, CbinnerMCUIdx, CrinnerMCUIdx;
 
@@ -116,31 +121,30 @@ public class JPEGDecoderService extends JPEGHeader {
     }
 
     public RGBImage decode() {
-        ArrayList<RunLengthBlock> rleBlocksArray;
         ArrayList<Block> blocks = new ArrayList<>();
-        Block block;
         YMCUIndex = CbMCUIndex = CrMCUIndex = 0;
         YinnerMCUIdx = CbinnerMCUIdx = CrinnerMCUIdx = 0;
 
         System.out.println("sampling is: " + sampling);
-        rleBlocksArray = huffmanEncoder.decode(pixelByteArray, sampling, width, height);
-        int i = 0;
-        for (RunLengthBlock rleBlock: rleBlocksArray) {
-            System.out.println("Decoding RunLengthBlock " + i + " ..");
-            rleBlock.print();
-            block = runlengthEncoder.decode(rleBlock);
-            int[] pos = computeNextBlockPosition(block.getType());
-            block.setPos(pos[0], pos[1]);
-            System.out.println("Quantized block:");
-//            block.print();
-            quantizer.dequantize(block);
-            System.out.println("DCT block:");
-//            block.print();
-            DCT.inverse(block);
-            System.out.println("YCbCr block:");
-//            block.print();
-            blocks.add(block);
-            i++;
+        if (restartInterval > 0) {
+            decodeRestartSegments(blocks);
+        } else {
+            huffmanEncoder.decode(new BitReader(pixelByteArray), sampling, width, height, rleBlock -> {
+                System.out.println("Decoding RunLengthBlock " + blocks.size() + " ..");
+                rleBlock.print();
+                Block block = runlengthEncoder.decode(rleBlock);
+                int[] pos = computeNextBlockPosition(block.getType());
+                block.setPos(pos[0], pos[1]);
+                System.out.println("Quantized block:");
+//                block.print();
+                quantizer.dequantize(block);
+                System.out.println("DCT block:");
+//                block.print();
+                DCT.inverse(block);
+                System.out.println("YCbCr block:");
+//                block.print();
+                blocks.add(block);
+            });
         }
 
         YCbCrImage image = new YCbCrImage(blocks, height, width, sampling);
@@ -148,6 +152,32 @@ public class JPEGDecoderService extends JPEGHeader {
         return image.convertToRGBImage();
     }
 
+    /* Decodes the restart segments of the scan in parallel (see RestartSegments), then places the blocks
+     * in scan order.
+     */
+    private void decodeRestartSegments(ArrayList<Block> blocks) {
+        int blocksPerSegment = restartInterval * RestartSegments.getBlocksPerMCU(sampling);
+        int noBlocks = huffmanEncoder.getNumberOfDecodingBlocks(sampling, width, height);
+        ExecutorService segmentService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            Block[] decodedBlocks = RestartSegments.decode(pixelByteArray, 0, pixelByteArray.length, noBlocks, blocksPerSegment,
+                    huffmanEncoder, block -> {
+                        quantizer.dequantize(block);
+                        DCT.inverse(block);
+                    }, segmentService);
+            for (Block block : decodedBlocks) {
+                int[] pos = computeNextBlockPosition(block.getType());
+                block.setPos(pos[0], pos[1]);
+                blocks.add(block);
+            }
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted while decoding the restart segments.");
+            Thread.currentThread().interrupt();
+        } finally {
+            segmentService.shutdown();
+        }
+    }
+
     private void readJPEGHeaders(RandomAccessFile fjpg) {
         byte val;
         byte[] buffer = new byte[max_segm_size];
@@ -371,7 +401,7 @@ public class JPEGDecoderService extends JPEGHeader {
                     case JPG13 -> dumpJPGsegment("JPG13", buffer, i - 1);
                     case DAC -> dumpDACsegment(buffer, i - 1);
                     case DNL -> dumpDNLsegment(buffer, i - 1);
-                    case DRI -> dumpDRIsegment(buffer, i - 1);
+                    case DRI -> parseDRIsegment(buffer, i - 1);
                     case DHP -> dumpDHPsegment(buffer, i - 1);
                     case EXP -> dumpEXPsegment(buffer, i - 1);
                     case RST0 -> dumpRSTsegment("RST0", i - 1);
@@ -675,11 +705,11 @@ public class JPEGDecoderService extends JPEGHeader {
     }
 
     /**
-     * Dumps on the screen the content of a DRI (Define Restart Interval) segment.
+     * Reads the restart interval of a DRI (Define Restart Interval) segment and dumps it on the screen.
      * @param buffer the buffer containing the segment data
      * @param len the length of the buffer
      */
-    private void dumpDRIsegment(byte[] buffer,int len) {
+    private void parseDRIsegment(byte[] buffer,int len) {
         /*
          * the structure of the DRI segment is:
          * -the DRI marker (0xff,0xdd) - 2 bytes (buffer starts only from 0xdd, so buffer[0]=0xdd)
@@ -699,7 +729,10 @@ public class JPEGDecoderService extends JPEGHeader {
         y <<= 8;
         y |= ((int) buffer[4] & 0xff);
         if(x!=4) System.out.println("        DRI segment encountered but is corrupted (length="+x+").");
-        else System.out.println("        DRI segment encountered: length="+x+" restart interval="+y);
+        else {
+            System.out.println("        DRI segment encountered: length="+x+" restart interval="+y);
+            restartInterval = y;
+        }
     }
 
     /**
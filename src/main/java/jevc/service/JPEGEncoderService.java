@@ -2,7 +2,7 @@ package jevc.service;
 
 import jevc.entities.Block;
 import jevc.entities.InternalFrameBuffer;
-import jevc.entities.RunLengthBlock;
+import jevc.entities.RunLengthBuffer;
 import jevc.entities.YCbCrImage;
 import jevc.operations.DiscreteCosineTransform;
 import jevc.operations.HuffmanEncoder;
@@ -71,7 +71,7 @@ public class JPEGEncoderService {
         //image.PerformSubsampling(YCbCrImage.YUV411Sampling);
         image.PerformSubsampling(YCbCrImage.YUV444Sampling);
         ArrayList<Block> blocks = image.PerformBlockSplitting();
-        RunLengthBlock rleBlock;
+        RunLengthBuffer rleBlock = RunLengthBuffer.local();
         ArrayList<Block> DebugColorBlocks = new ArrayList<>();
         ArrayList<Block> DebugDCTBlocks = new ArrayList<>();
         ArrayList<Block> DebugQBlocks = new ArrayList<>();
@@ -82,7 +82,7 @@ public class JPEGEncoderService {
             DCT.forward(block);
             quantizer.quantize(block);
             block.print();
-            rleBlock = runlengthEncoder.encode(block);
+            runlengthEncoder.encode(block, rleBlock);
             rleBlock.print();
             huffmanEncoder.encode(internalFrameBuffer, rleBlock);
         }
@@ -8,8 +8,17 @@ import jevc.utils.Logger;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 public class JVidDecoderService {
+    // 4:2:0 macroblock layout: Y0 Y1 Y2 Y3 U V
+    private static final int MACROBLOCK_SIZE = 16;
+    private static final int LUMA_BLOCKS = 4;
+    private static final int MACROBLOCK_BLOCKS = 6;
+
     private int bitstreamSize;
 
     private File file;
@@ -23,15 +32,28 @@ public class JVidDecoderService {
     private final Quantizer quantizer;
     private RunLengthEncoder runLengthEncoder;
     private HuffmanEncoder huffmanEncoder;
+    private final ExponentialGolombEncoder expGolombEncoder = new ExponentialGolombEncoder();
+    private boolean frameHuffmanTables; // the Huffman tables of the last frame came with it, not the standard ones
     private final BlockBuffer blockBuffer;
     private MotionEstimator motionEstimator;
 
+    // decodes the restart segments of I frames in parallel
+    private final ExecutorService segmentService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+    // resolution of the source frames, the coded frames are padded to whole macroblocks
+    private int frameWidth, frameHeight;
+
+    // last decoded frame, shown again for repeat chunks
+    private RGBImage previousImage;
+
     private final JVidWriter jVidWriter;
     private Logger logger;
 
 //    private ImageComponent[] imageComponents;
     private int YMCUIndex, CbMCUIndex, CrMCUIndex;
     private int YinnerMCUIdx, CbinnerMCUIdx, CrinnerMCUIdx;
+    private final int[] horizSamplingFactors = new int[3];
+    private final int[] vertSamplingFactors = new int[3];
 //
 //    int[] Huffman_bits_dc_luminance = new int[17];
 //    int[] Huffman_bits_dc_chrominance = new int[17];
@@ -50,11 +72,11 @@ public class JVidDecoderService {
         this.quantizer = new Quantizer();
         this.huffmanEncoder = new HuffmanEncoder();
         this.jVidWriter = new JVidWriter();
-        this.blockBuffer = new BlockBuffer();
         this.logger = new Logger(true, false, "", false);
 
         // set jpeg compression parameters
-        huffmanEncoder.setSamplingFactors(new int[] {1, 1, 1}, new int[] {1, 1, 1});
+        YCbCrImage.computeSamplingFactors(Globals.SAMPLING, horizSamplingFactors, vertSamplingFactors);
+        huffmanEncoder.setSamplingFactors(horizSamplingFactors, vertSamplingFactors);
 //        Huffman_bits_dc_luminance[0] = 0x00;
 //        Huffman_bits_dc_chrominance[0] = 0x01;
 //        Huffman_bits_ac_luminance[0] = 0x10;
@@ -73,6 +95,7 @@ public class JVidDecoderService {
         int bitrate = headerValues[3];
         int width = headerValues[4];
         int height = headerValues[5];
+        int arithmeticCoding = headerValues[6];
 
         // ensure header values are valid
         if (bitstreamSize == -1 || fps == -1 || frameCount == -1 || bitrate == -1 || width == -1 || height == -1) {
@@ -84,8 +107,14 @@ public class JVidDecoderService {
         Globals.FRAMERATE = fps;
         Globals.FRAMECOUNT = frameCount;
         Globals.BITRATE = bitrate;
-        Globals.MAX_WIDTH = width;
-        Globals.MAX_HEIGHT = height;
+        Globals.MAX_WIDTH = getPaddedDimension(width);
+        Globals.MAX_HEIGHT = getPaddedDimension(height);
+        this.frameWidth = width;
+        this.frameHeight = height;
+        Globals.ARITHMETIC_CODING = arithmeticCoding != 0;
+
+        // the reference planes are sized after the frame resolution
+        this.blockBuffer = new BlockBuffer();
     }
 
     public void decompress() throws IOException, InterruptedException {
@@ -125,6 +154,7 @@ public class JVidDecoderService {
 
         // Done processing frames,  close the file and play video
         fileAccess.close();
+        segmentService.shutdown();
 
         // Play video
         // TODO: Refactor this to take into account the OS
@@ -134,148 +164,82 @@ public class JVidDecoderService {
     }
 
     private void processFrame(byte[] data, String type, int chunkSize, int index) throws IOException {
+        if (type.equals("rept")) {
+            // rept => the previous frame is shown again, the references do not change
+            previousImage.writePNGFile(String.format("%sframe%03d.png", outputFolder, index));
+            return;
+        }
+
         // Process the data chunk => frame
         char frametype = 'I';
-        if (type.equals("inte")) {
+        if (type.equals("inte") || type.equals("nref")) {
             frametype = 'P';
         }
         runLengthEncoder = new RunLengthEncoder(frametype);
-        ArrayList<RunLengthBlock> rleBlocksArray;
+        int dataOffset = Globals.ARITHMETIC_CODING ? 0 : readHuffmanTables(data);
         ArrayList<Block> blocks = new ArrayList<>();
-        Block block;
 
         // Check frame type
         if (type.equals("comp")) {
             // comp => I-frame -> JPEG decode
+            // every GOP starts with an empty reference buffer
+            blockBuffer.clear();
 
             YMCUIndex = CbMCUIndex = CrMCUIndex = 0;
             YinnerMCUIdx = CbinnerMCUIdx = CrinnerMCUIdx = 0;
 
-            // Huffman Decode
-            rleBlocksArray = huffmanEncoder.decode(data, Globals.SAMPLING, Globals.MAX_WIDTH, Globals.MAX_HEIGHT);
-            for (RunLengthBlock rleBlock: rleBlocksArray) {
+            Consumer<RunLengthBuffer> blockConsumer = rleBlock -> {
                 // RL Decode
-                block = runLengthEncoder.decode(rleBlock);
-                int[] pos = computeNextBlockPosition(block.getType());
-                block.setPos(pos[0], pos[1]);
+                Block decodedBlock = runLengthEncoder.decode(rleBlock);
+                int[] pos = computeNextBlockPosition(decodedBlock.getType());
+                decodedBlock.setPos(pos[0], pos[1]);
 
                 //Dequantize
-                quantizer.dequantize(block);
+                quantizer.dequantize(decodedBlock);
 
                 // IDCT
-                DCT.inverse(block);
+                DCT.inverse(decodedBlock);
 
                 // Add to block buffer
-                blocks.add(block);
-                blockBuffer.save(block);
+                blocks.add(decodedBlock);
+                blockBuffer.save(decodedBlock);
+            };
+
+            if (Globals.ARITHMETIC_CODING) {
+                // Arithmetic Decode, the blocks come in the order of the Huffman coded ones
+                ArithmeticReader reader = new ArithmeticReader(data);
+                ArithmeticEncoder arithmeticEncoder = new ArithmeticEncoder();
+                RunLengthBuffer rleBlock = RunLengthBuffer.local();
+                int noBlocks = huffmanEncoder.getNumberOfDecodingBlocks(Globals.SAMPLING, Globals.MAX_WIDTH, Globals.MAX_HEIGHT);
+                for (int i = 0; i < noBlocks; i++) {
+                    rleBlock.clear(huffmanEncoder.getDecodedBlockType(i));
+                    arithmeticEncoder.decodeBlock(reader, rleBlock);
+                    blockConsumer.accept(rleBlock);
+                }
+            } else if (RestartSegments.startsWithDRISegment(data, dataOffset)) {
+                // Huffman Decode, restart segments in parallel
+                readRestartSegments(data, dataOffset, blocks);
+            } else {
+                // Huffman Decode
+                huffmanEncoder.decode(new BitReader(data, dataOffset, data.length - dataOffset), Globals.SAMPLING, Globals.MAX_WIDTH, Globals.MAX_HEIGHT, blockConsumer);
             }
+            blockBuffer.commit();
 
         } else {
-            // inte => P-frame -> motion compensation
-            // Parse codeword change
-            String codeword = "";
-            int xPos = 0, yPos = 0, blockType = 0;
-
-            ByteStack stack = new ByteStack(data);
-            huffmanEncoder.resetIndices();
-
-            while (!stack.isEmpty()) {
-                // Check if next 4 bytes are a codeword
-                String topFourBytes = new String(stack.peek(4), 0, 4);
-
-                if (topFourBytes.equals("mvec") || topFourBytes.equals("errb")) {
-                    codeword = new String(stack.pop(4), 0, 4);
-                } else {
-                    // Based on the codeword, read the next bytes
-                    switch (codeword) {
-                        case "mvec" -> {
-                            // Read the motion vector
-                            MotionVector motionVector = new MotionVector(stack.pop());
-
-                            // Reconstruct block
-                            int[] offset = motionVector.decompress();
-
-                            block = blockBuffer.getBlock(xPos + offset[0] * 8, yPos + offset[1] * 8, blockType);
-                            blocks.add(block);
-
-                            // Update Next Block Data
-                            blockType += 1;
-                            if (blockType == 3) {
-                                blockType = 0;
-                                xPos += 8;
-                                if (xPos == Globals.MAX_WIDTH) {
-                                    xPos = 0;
-                                    yPos = (yPos + 8);
-                                }
-                            }
-                        }
-                        case "errb" -> {
-                            // First byte is the motion vector
-                            MotionVector motionVector = new MotionVector(stack.pop());
-
-                            // Get the rest of the chunk
-                            // Chunk is until FF FF
-                            byte[] buffer = new byte[1000];
-                            int bufferIndex = 0;
-                            while (!stack.peekForEOB()) {
-                                buffer[bufferIndex++] = stack.pop();
-                            }
-                            stack.pop(2);
-                            byte[] chunk = new byte[bufferIndex];
-                            System.arraycopy(buffer, 0, chunk, 0, bufferIndex);
-
-                            // Following byte(s) are the huffman encoded error block
-                            RunLengthBlock rleBlock = new RunLengthBlock();
-                            rleBlock.setType(blockType);
-                            huffmanEncoder.resetIndices();
-
-                            // Some chunks are empty
-
-                            // Huffman Decode
-                            huffmanEncoder.decodeBlock(chunk, rleBlock);
-
-                            // Add End-Of-Block symbol
-                            ArrayList<RunLength> rleData = rleBlock.getData();
-                            if (!rleData.isEmpty() && (
-                                    rleData.get(rleData.size() - 1).getRunlength() != 0 ||
-                                    rleData.get(rleData.size() - 1).getSize() != 0 ||
-                                    rleData.get(rleData.size() - 1).getAmplitude() != 0)) {
-                                rleData.add(new RunLength(0, 0, 0));
-                                rleBlock.setData(rleData);
-                            }
-
-                            // RL Decode
-                            block = runLengthEncoder.decode(rleBlock);
-                            block.setPos(xPos, yPos);
-
-                            //Dequantize
-                            quantizer.dequantize(block);
-
-                            // IDCT
-                            DCT.inverse(block);
-
-                            // Reconstruct block
-                            int[] offset = motionVector.decompress();
-                            block.add(blockBuffer.getBlock(xPos + offset[0] * 8, yPos + offset[1] * 8, blockType));
-
-                            blocks.add(block);
-
-                            // Update Next Block Data
-                            blockType += 1;
-                            if (blockType == 3) {
-                                blockType = 0;
-                                xPos += 8;
-                                if (xPos == Globals.MAX_WIDTH) {
-                                    xPos = 0;
-                                    yPos = (yPos + 8);
-                                }
-                            }
-                        }
-
-                    }
-                }
+            // inte / nref => P-frame -> motion compensation
+            if (Globals.ARITHMETIC_CODING) {
+                readArithmeticPBlocks(data, blocks);
+            } else {
+                readPBlocks(data, dataOffset, blocks);
             }
 
+            // inte => reference P-frame, following frames may predict from it
+            if (type.equals("inte")) {
+                for (Block referenceBlock : blocks) {
+                    blockBuffer.save(referenceBlock);
+                }
+                blockBuffer.commit();
+            }
         }
 
         // Upsample
@@ -283,12 +247,214 @@ public class JVidDecoderService {
         image.PerformUpsampling();
 
         // Convert to RGB
-        RGBImage decodedImage = image.convertToRGBImage();
+        RGBImage decodedImage = image.convertToRGBImage(frameWidth, frameHeight);
+        previousImage = decodedImage;
 
         // Write to file
         decodedImage.writePNGFile(String.format("%sframe%03d.png", outputFolder, index));
     }
 
+    /* A frame may start with a DHT segment, the Huffman tables its blocks are coded with (see
+     * HuffmanTables); all other frames are coded with the standard tables. Returns the offset of
+     * the frame data after the segment.
+     */
+    private int readHuffmanTables(byte[] data) {
+        if (HuffmanTables.startsWithDHTSegment(data, 0)) {
+            huffmanEncoder.setHuffmanTables(HuffmanTables.fromDHTSegment(data, 0));
+            frameHuffmanTables = true;
+            return HuffmanTables.getDHTSegmentLength(data, 0);
+        }
+        if (frameHuffmanTables) {
+            huffmanEncoder.setHuffmanTables(HuffmanTables.standard());
+            frameHuffmanTables = false;
+        }
+        return 0;
+    }
+
+    /* The blocks of an I frame coded in restart segments, see RestartSegments. The segments are decoded,
+     * dequantized and inverse transformed in parallel, then the blocks are placed in scan order.
+     */
+    private void readRestartSegments(byte[] data, int dataOffset, List<Block> blocks) {
+        int blocksPerSegment = RestartSegments.getInterval(data, dataOffset) * RestartSegments.getBlocksPerMCU(Globals.SAMPLING);
+        int offset = dataOffset + RestartSegments.DRI_SEGMENT_LENGTH;
+        int noBlocks = huffmanEncoder.getNumberOfDecodingBlocks(Globals.SAMPLING, Globals.MAX_WIDTH, Globals.MAX_HEIGHT);
+        Block[] decodedBlocks;
+        try {
+            decodedBlocks = RestartSegments.decode(data, offset, data.length - offset, noBlocks, blocksPerSegment, huffmanEncoder,
+                    block -> {
+                        quantizer.dequantize(block);
+                        DCT.inverse(block);
+                    }, segmentService);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        for (Block decodedBlock : decodedBlocks) {
+            int[] pos = computeNextBlockPosition(decodedBlock.getType());
+            decodedBlock.setPos(pos[0], pos[1]);
+            blocks.add(decodedBlock);
+            blockBuffer.save(decodedBlock);
+        }
+    }
+
+    /* The macroblocks of a P frame, a bitstream of Exponential-Golomb and Huffman codes, see
+     * JVidEncoderService.writePBlocks(). P-frames are made of 4:2:0 macroblocks, 4 luma blocks followed
+     * by the U and V block.
+     */
+    private void readPBlocks(byte[] data, int dataOffset, List<Block> blocks) {
+        BitReader reader = new BitReader(data, dataOffset, data.length - dataOffset);
+        RunLengthBuffer rleBlock = RunLengthBuffer.local();
+        int columns = Globals.MAX_WIDTH / MACROBLOCK_SIZE;
+        // motion vectors are coded as differences to the vector predicted from the neighbouring
+        // macroblocks, where there are none the global motion of the frame is the prediction
+        MotionVector[] vectors = new MotionVector[columns * (Globals.MAX_HEIGHT / MACROBLOCK_SIZE)];
+        MotionVector globalMotion = new MotionVector(expGolombEncoder.decodeSigned(reader), expGolombEncoder.decodeSigned(reader));
+        int refIndex = 0;
+
+        int index = 0;
+        while (index < vectors.length) {
+            // skipped macroblocks copy the co-located blocks of reference 0
+            int skipRun = expGolombEncoder.decodeUnsigned(reader);
+            for (int i = 0; i < skipRun && index < vectors.length; i++, index++) {
+                vectors[index] = new MotionVector(0, 0);
+                reconstructMacroblock(blocks, false, vectors[index], new Block[MACROBLOCK_BLOCKS],
+                        (index % columns) * MACROBLOCK_SIZE, (index / columns) * MACROBLOCK_SIZE);
+            }
+            if (index == vectors.length) {
+                break;
+            }
+
+            int macroblockType = expGolombEncoder.decodeUnsigned(reader);
+            boolean intra = macroblockType == 2;
+            MotionVector motionVector = null;
+            boolean hasBlocks = true;
+            if (!intra) {
+                if (macroblockType == 1) {
+                    refIndex = expGolombEncoder.decodeUnsigned(reader);
+                }
+                motionVector = readMotionVector(reader, vectors, index, globalMotion, refIndex);
+                // mvec => prediction only, errb => prediction and residual blocks
+                hasBlocks = expGolombEncoder.decodeFixed(reader, 1) != 0;
+            }
+            vectors[index] = motionVector;
+            int codedBlockPattern = hasBlocks ? expGolombEncoder.decodeFixed(reader, MACROBLOCK_BLOCKS) : 0;
+
+            Block[] coefficients = new Block[MACROBLOCK_BLOCKS];
+            for (int k = 0; k < MACROBLOCK_BLOCKS; k++) {
+                if ((codedBlockPattern & (1 << (MACROBLOCK_BLOCKS - 1 - k))) != 0) {
+                    // Huffman Decode
+                    rleBlock.clear(getBlockType(k));
+                    huffmanEncoder.decodeBlock(reader, rleBlock);
+                    coefficients[k] = decodeCoefficients(rleBlock);
+                }
+            }
+            reconstructMacroblock(blocks, intra, motionVector, coefficients,
+                    (index % columns) * MACROBLOCK_SIZE, (index / columns) * MACROBLOCK_SIZE);
+            index++;
+        }
+    }
+
+    /* The vector of macroblock `index`, coded as the difference to the vector predicted for it. */
+    private MotionVector readMotionVector(BitReader reader, MotionVector[] vectors, int index, MotionVector globalMotion, int refIndex) {
+        int[] difference = {expGolombEncoder.decodeSigned(reader), expGolombEncoder.decodeSigned(reader)};
+        MotionVector predictedMotion = MotionVector.predict(vectors, index, Globals.MAX_WIDTH / MACROBLOCK_SIZE, globalMotion);
+        return new MotionVector(difference, predictedMotion, refIndex);
+    }
+
+    /* The macroblocks of an arithmetic coded P frame, see JVidEncoderService.writeArithmeticPBlocks(). */
+    private void readArithmeticPBlocks(byte[] data, List<Block> blocks) {
+        ArithmeticReader reader = new ArithmeticReader(data);
+        ArithmeticEncoder arithmeticEncoder = new ArithmeticEncoder();
+        RunLengthBuffer rleBlock = RunLengthBuffer.local();
+        int columns = Globals.MAX_WIDTH / MACROBLOCK_SIZE;
+        MotionVector[] vectors = new MotionVector[columns * (Globals.MAX_HEIGHT / MACROBLOCK_SIZE)];
+        boolean[] skipped = new boolean[vectors.length];
+
+        int[] global = arithmeticEncoder.decodeVector(reader);
+        MotionVector globalMotion = new MotionVector(global[0], global[1]);
+        for (int index = 0; index < vectors.length; index++) {
+            int xPos = (index % columns) * MACROBLOCK_SIZE;
+            int yPos = (index / columns) * MACROBLOCK_SIZE;
+            skipped[index] = arithmeticEncoder.decodeSkip(reader, ArithmeticEncoder.getSkippedNeighbours(skipped, index, columns));
+            if (skipped[index]) {
+                vectors[index] = new MotionVector(0, 0);
+                reconstructMacroblock(blocks, false, vectors[index], new Block[MACROBLOCK_BLOCKS], xPos, yPos);
+                continue;
+            }
+
+            boolean intra = arithmeticEncoder.decodeIntra(reader);
+            MotionVector motionVector = null;
+            if (!intra) {
+                int refIndex = arithmeticEncoder.decodeReference(reader);
+                MotionVector predictedMotion = MotionVector.predict(vectors, index, columns, globalMotion);
+                motionVector = new MotionVector(arithmeticEncoder.decodeVector(reader), predictedMotion, refIndex);
+            }
+            vectors[index] = motionVector;
+
+            int codedBlockPattern = arithmeticEncoder.decodeCodedBlockPattern(reader, MACROBLOCK_BLOCKS, intra);
+            Block[] coefficients = new Block[MACROBLOCK_BLOCKS];
+            for (int k = 0; k < MACROBLOCK_BLOCKS; k++) {
+                if ((codedBlockPattern & (1 << (MACROBLOCK_BLOCKS - 1 - k))) != 0) {
+                    rleBlock.clear(getBlockType(k));
+                    arithmeticEncoder.decodeBlock(reader, rleBlock);
+                    coefficients[k] = decodeCoefficients(rleBlock);
+                }
+            }
+            reconstructMacroblock(blocks, intra, motionVector, coefficients, xPos, yPos);
+        }
+    }
+
+    /* Reconstructs the macroblock at (xPos, yPos) from its prediction and the dequantized coefficients of
+     * its coded blocks (null for the others) and adds its blocks to `blocks`. Intra macroblocks are decoded
+     * like the blocks of an I-frame, the others are predicted with `motionVector`, the chroma blocks with
+     * the halved vector.
+     */
+    private void reconstructMacroblock(List<Block> blocks, boolean intra, MotionVector motionVector, Block[] coefficients,
+                                       int xPos, int yPos) {
+        MotionVector chromaVector = intra ? null : motionVector.getChromaVector();
+        for (int k = 0; k < MACROBLOCK_BLOCKS; k++) {
+            int blockType = getBlockType(k);
+            int blockX = k < LUMA_BLOCKS ? xPos + (k % 2) * 8 : xPos / 2;
+            int blockY = k < LUMA_BLOCKS ? yPos + (k / 2) * 8 : yPos / 2;
+            Block block;
+            if (intra) {
+                block = coefficients[k] != null ? coefficients[k] : new Block(
+                        new int[Block.BLOCKSIZE][Block.BLOCKSIZE], ReferencePicture.getType(blockType));
+                block.setPos(blockX, blockY);
+                DCT.inverse(block);
+            } else {
+                block = blockBuffer.getBlock(blockX, blockY, blockType, k < LUMA_BLOCKS ? motionVector : chromaVector);
+                if (coefficients[k] != null) {
+                    // IDCT, error blocks are not level shifted
+                    DCT.inverseResidual(coefficients[k]);
+                    block.add(coefficients[k]);
+                }
+            }
+            blocks.add(block);
+        }
+    }
+
+    private static int getPaddedDimension(int size) {
+        // the encoder pads frames to a multiple of 16 before splitting them into blocks (see YCbCrImage.ScaleImage)
+        return size + ((size % 16 == 0) ? 0 : 16 - size % 16);
+    }
+
+    /* Type of block k of a macroblock: 0 (Y) for the 4 luma blocks, then 1 (U) and 2 (V). */
+    private static int getBlockType(int k) {
+        return k < LUMA_BLOCKS ? 0 : k - LUMA_BLOCKS + 1;
+    }
+
+    /* RL decoded and dequantized DCT coefficients of a block, its position is set by reconstructMacroblock(). */
+    private Block decodeCoefficients(RunLengthBuffer rleBlock) {
+        // RL Decode
+        Block block = runLengthEncoder.decode(rleBlock);
+
+        //Dequantize
+        quantizer.dequantize(block);
+        return block;
+    }
+
     private int[] computeNextBlockPosition(char blocktype) {
         int Ypos, Xpos;
         int samplingWidth = Globals.MAX_WIDTH;
@@ -301,20 +467,20 @@ public class JVidDecoderService {
             return new int[] {-1, -1};
         switch (blocktype) {
             case 'Y' -> {
-                // hSamplingFactor = imageComponents[1].horizontalSampling;
-                // vSamplingFactor = imageComponents[1].verticalSampling;
+                hSamplingFactor = horizSamplingFactors[0];
+                vSamplingFactor = vertSamplingFactors[0];
                 MCUIndex = YMCUIndex;
                 innerMCUIdx = YinnerMCUIdx;
             }
             case 'U' -> {
-                // hSamplingFactor = imageComponents[2].horizontalSampling;
-                // vSamplingFactor = imageComponents[2].verticalSampling;
+                hSamplingFactor = horizSamplingFactors[1];
+                vSamplingFactor = vertSamplingFactors[1];
                 MCUIndex = CbMCUIndex;
                 innerMCUIdx = CbinnerMCUIdx;
             }
             case 'V' -> {
-                // hSamplingFactor = imageComponents[3].horizontalSampling;
-                // vSamplingFactor = imageComponents[3].verticalSampling;
+                hSamplingFactor = horizSamplingFactors[2];
+                vSamplingFactor = vertSamplingFactors[2];
                 MCUIndex = CrMCUIndex;
                 innerMCUIdx = CrinnerMCUIdx;
             }
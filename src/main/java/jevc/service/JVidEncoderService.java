@@ -5,15 +5,27 @@ import jevc.operations.*;
 import jevc.utils.*;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.*;
 
 public class JVidEncoderService {
+    // 4:2:0 macroblock layout: Y0 Y1 Y2 Y3 U V
+    private static final int MACROBLOCK_SIZE = 16;
+    private static final int LUMA_BLOCKS = 4;
+    private static final int MACROBLOCK_BLOCKS = 6;
+    // an intra macroblock has to beat the best inter SATD of its luma by this much, intra blocks
+    // carry a DC term and all of their detail instead of a small residual
+    private static final int INTRA_BIAS = 512;
+
     // I/O
     private final File[] files;
     private final InternalFrameBuffer internalFrameBuffer;
@@ -26,8 +38,9 @@ public class JVidEncoderService {
     // Operations
     private final DiscreteCosineTransform DCT;
     private final Quantizer quantizer;
+    private final HuffmanEncoder rateEstimator; // only its code lengths are used, see processPMacroblockRD
     private final BlockBuffer blockBuffer;
-    private MotionEstimator motionEstimator;
+    private final ConcurrentHashMap<Integer, BlockBuffer> blockBuffers; // one per GOP processed in parallel
     private final JpgWriter jpgWriter;
     private final AVIWriter aviWriter;
     private final JVidWriter jVidWriter;
@@ -35,7 +48,9 @@ public class JVidEncoderService {
 
     // Multithreading
     private final ExecutorService executorService;
+    private final ExecutorService segmentService; // restart segments, frames on executorService wait for them
     private final ConcurrentHashMap<Integer, InternalFrameBuffer> internalFrameBuffers;
+    private final ConcurrentHashMap<Integer, InternalFrameBuffer> pFrameBuffers; // of the GOPs in progress, by frame index
     private final ConcurrentHashMap<Integer, BufferedOutputStream> tempOutputStreams;
 
     // Flags
@@ -53,22 +68,28 @@ public class JVidEncoderService {
 
         this.internalFrameBuffer = new InternalFrameBuffer();
         this.internalFrameBuffers = new ConcurrentHashMap<>();
+        this.pFrameBuffers = new ConcurrentHashMap<>();
 
         DCT = new DiscreteCosineTransform();
         int DEFAULT_QUALITY_FACTOR = 80;
         quantizer = new Quantizer(DEFAULT_QUALITY_FACTOR);
+        rateEstimator = new HuffmanEncoder();
 
         this.jpgWriter = new JpgWriter(quantizer);
         this.aviWriter = new AVIWriter();
         this.jVidWriter = new JVidWriter();
-        this.blockBuffer = new BlockBuffer();
+        // MJPEG frames keep full resolution chroma
+        this.blockBuffer = new BlockBuffer(Globals.MAX_REFERENCE_FRAMES, compressToMjpeg ? YCbCrImage.YUV444Sampling : Globals.SAMPLING);
+        this.blockBuffers = new ConcurrentHashMap<>();
 
         this.stopwatch = new LapStopwatch(TimeUnit.MILLISECONDS);
 
         if (parallelization.length() > 0) {
             this.executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            this.segmentService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
         } else {
             this.executorService = null;
+            this.segmentService = null;
         }
 
         // Flags
@@ -108,6 +129,10 @@ public class JVidEncoderService {
             }
         } catch (Exception ex) {
             logger.error("Error compressing the video!" + ex.getMessage());
+        } finally {
+            if (segmentService != null) {
+                segmentService.shutdown();
+            }
         }
     }
 
@@ -115,27 +140,16 @@ public class JVidEncoderService {
         logger.log("Starting encoding");
         stopwatch.reset();
 
-        List<File> gop = new ArrayList<>();
         DWORD videoWidth = new DWORD(0);
         DWORD videoHeight = new DWORD(0);
         YCbCrImage frame;
         String frameName;
 
-        int frameIndex = 0;
-
-        while (frameIndex < this.files.length) {
-            // Read GOP
-            gop.clear();
-
-            for (int i = 0; i < Globals.GOP_SIZE; i++) {
-                gop.add(this.files[frameIndex]);
-                frameIndex++;
-            }
-
+        for (List<File> gop : splitIntoGops()) {
             // Process I frame
             frame = readImage(gop.get(0));
             videoWidth = new DWORD(frame.getWidth());
-            videoHeight = new DWORD(frame.getHeight() + 8);
+            videoHeight = new DWORD(frame.getHeight());
             frameName = gop.get(0).getName();
 
             if (!stopwatch.isRunning()) {
@@ -151,7 +165,12 @@ public class JVidEncoderService {
             logger.benchmark(stopwatch, frameName, 0);
 
             // Process P frames
-            for (int i = 1; i < Globals.GOP_SIZE; i++) {
+            for (int i = 1; i < gop.size(); i++) {
+                if (!this.compressToMjpeg && isRepeatedFrame(gop.get(i - 1), gop.get(i))) {
+                    jVidWriter.writeRepeatChunk(tempOutputStream);
+                    tempOutputStream.flush();
+                    continue;
+                }
                 frame = readImage(gop.get(i));
                 frameName = gop.get(i).getName();
                 stopwatch.startFrame(i);
@@ -191,30 +210,16 @@ public class JVidEncoderService {
         logger.log("Starting encoding");
         stopwatch.reset();
 
-        List<File> gop = new ArrayList<>();
         DWORD videoWidth = new DWORD(0);
         DWORD videoHeight = new DWORD(0);
         YCbCrImage frame;
         String frameName;
 
-        int frameIndex = 0;
-
-        while (frameIndex < this.files.length) {
-            // Read GOP
-            gop.clear();
-
-            for (int i = 0; i < Globals.GOP_SIZE; i++) {
-                if (frameIndex >= this.files.length) {
-                    break;
-                }
-                gop.add(this.files[frameIndex]);
-                frameIndex++;
-            }
-
+        for (List<File> gop : splitIntoGops()) {
             // Process I frame
             frame = readImage(gop.get(0));
             videoWidth = new DWORD(frame.getWidth());
-            videoHeight = new DWORD(frame.getHeight() + 8);
+            videoHeight = new DWORD(frame.getHeight());
             frameName = gop.get(0).getName();
 
             if (!stopwatch.isRunning()) {
@@ -234,8 +239,16 @@ public class JVidEncoderService {
             // Create a CountDownLatch for the number of P frames
             CountDownLatch latch = new CountDownLatch(gop.size() - 1);
 
-            // Process P frames
+            // Process P frames, the chunks of the previous GOP are already written
+            pFrameBuffers.clear();
+            boolean[] repeatedFrames = new boolean[gop.size()];
             for (int i = 1; i < gop.size(); i++) {
+                // repeated frames are not dispatched, their chunk is written in order below
+                if (!this.compressToMjpeg && isRepeatedFrame(gop.get(i - 1), gop.get(i))) {
+                    repeatedFrames[i] = true;
+                    latch.countDown();
+                    continue;
+                }
                 frame = readImage(gop.get(i));
                 frameName = gop.get(i).getName();
 
@@ -252,8 +265,14 @@ public class JVidEncoderService {
                 logger.error("Error waiting for threads to finish!");
                 Thread.currentThread().interrupt();
             }
-            for(InternalFrameBuffer buffer : internalFrameBuffers.values()) {
-                jVidWriter.writeDataChunk(tempOutputStream, buffer, 'P');
+            if (!this.compressToMjpeg) {
+                for (int i = 1; i < gop.size(); i++) {
+                    if (repeatedFrames[i]) {
+                        jVidWriter.writeRepeatChunk(tempOutputStream);
+                    } else {
+                        jVidWriter.writeDataChunk(tempOutputStream, pFrameBuffers.get(i), 'N');
+                    }
+                }
             }
             tempOutputStream.flush();
         }
@@ -294,9 +313,10 @@ public class JVidEncoderService {
         // Get resolution from first frame
         YCbCrImage frame = readImage(this.files[0]);
         DWORD videoWidth = new DWORD(frame.getWidth());
-        DWORD videoHeight = new DWORD(frame.getHeight() + 8);
+        DWORD videoHeight = new DWORD(frame.getHeight());
 
-        int frameIndex = 0;
+        List<List<File>> sceneGops = splitIntoGops();
+        int gopIndex = 0;
         // Split files into GOPs
         // Compute the index and offset for each thread
         // this.files.length max files, split into Globals.GOP_SIZE gops
@@ -307,22 +327,16 @@ public class JVidEncoderService {
         int MAX_GOPS_AT_ONCE = 1;
         int usedGops = 0;
 
-        while (frameIndex < this.files.length) {
+        while (gopIndex < sceneGops.size()) {
             // Split files into GOPs
             for (int i = 0; i < MAX_GOPS_AT_ONCE; i++) {
                 usedGops++;
                 if (!Objects.isNull(gops.get(i))) {
                     gops.get(i).clear();
                 }
-                gops.put(i, new ArrayList<>());
-                for (int j = 0; j < Globals.GOP_SIZE; j++) {
-                    if (frameIndex >= this.files.length) {
-                        break;
-                    }
-                    gops.get(i).add(this.files[frameIndex]);
-                    frameIndex++;
-                }
-                if (frameIndex >= this.files.length) {
+                gops.put(i, new ArrayList<>(sceneGops.get(gopIndex)));
+                gopIndex++;
+                if (gopIndex >= sceneGops.size()) {
                     break;
                 }
             }
@@ -382,27 +396,16 @@ public class JVidEncoderService {
         logger.log("Starting encoding");
         stopwatch.reset();
 
-        List<File> gop = new ArrayList<>();
         DWORD videoWidth = new DWORD(0);
         DWORD videoHeight = new DWORD(0);
         YCbCrImage frame;
         String frameName;
 
-        int frameIndex = 0;
-
-        while (frameIndex < this.files.length) {
-            // Read GOP
-            gop.clear();
-
-            for (int i = 0; i < Globals.GOP_SIZE; i++) {
-                gop.add(this.files[frameIndex]);
-                frameIndex++;
-            }
-
+        for (List<File> gop : splitIntoGops()) {
             // Process I frame
             frame = readImage(gop.get(0));
             videoWidth = new DWORD(frame.getWidth());
-            videoHeight = new DWORD(frame.getHeight() + 8);
+            videoHeight = new DWORD(frame.getHeight());
             frameName = gop.get(0).getName();
 
             if (!stopwatch.isRunning()) {
@@ -418,7 +421,12 @@ public class JVidEncoderService {
             logger.benchmark(stopwatch, frameName, 0);
 
             // Process P frames
-            for (int i = 1; i < Globals.GOP_SIZE; i++) {
+            for (int i = 1; i < gop.size(); i++) {
+                if (!this.compressToMjpeg && isRepeatedFrame(gop.get(i - 1), gop.get(i))) {
+                    jVidWriter.writeRepeatChunk(tempOutputStream);
+                    tempOutputStream.flush();
+                    continue;
+                }
                 frame = readImage(gop.get(i));
                 frameName = gop.get(i).getName();
                 stopwatch.startFrame(i);
@@ -485,27 +493,22 @@ public class JVidEncoderService {
         // Get resolution from first frame
         YCbCrImage frame = readImage(this.files[0]);
         DWORD videoWidth = new DWORD(frame.getWidth());
-        DWORD videoHeight = new DWORD(frame.getHeight() + 8);
+        DWORD videoHeight = new DWORD(frame.getHeight());
 
-        int frameIndex = 0;
+        List<List<File>> sceneGops = splitIntoGops();
+        int gopIndex = 0;
         int usedGops = 0;
 
-        while (frameIndex < this.files.length) {
+        while (gopIndex < sceneGops.size()) {
             // Split files into GOPs
             for (int i = 0; i < Globals.MAX_COMBO_GOPS_AT_ONCE; i++) {
                 usedGops++;
                 if (!Objects.isNull(gops.get(i))) {
                     gops.get(i).clear();
                 }
-                gops.put(i, new ArrayList<>());
-                for (int j = 0; j < Globals.GOP_SIZE; j++) {
-                    if (frameIndex >= this.files.length) {
-                        break;
-                    }
-                    gops.get(i).add(this.files[frameIndex]);
-                    frameIndex++;
-                }
-                if (frameIndex >= this.files.length) {
+                gops.put(i, new ArrayList<>(sceneGops.get(gopIndex)));
+                gopIndex++;
+                if (gopIndex >= sceneGops.size()) {
                     break;
                 }
             }
@@ -590,11 +593,11 @@ public class JVidEncoderService {
         // split frame into blocks
         logger.updateProgressStatus(5, "Performing block splitting...", frameName);
         ArrayList<Block> blocks = frame.PerformBlockSplitting();
-        RunLengthBlock rleBlock;
 
         // write JPEG header sections
         logger.updateProgressStatus(8, "Writing frame header...", frameName);
-        jpgWriter.writeHeaderSections(internalFrameBuffer, frame);
+        int restartInterval = RestartSegments.getInterval(Globals.RESTART_INTERVAL, frame.getWidth(), YCbCrImage.YUV444Sampling);
+        jpgWriter.writeHeaderSections(internalFrameBuffer, frame, restartInterval);
         logger.updateProgressStatus(10, "Processing blocks...", frameName);
 
         // process each block
@@ -616,11 +619,17 @@ public class JVidEncoderService {
 
             // save it in a block buffer
             blockBuffer.save(savedBlock);
-            // proceed to VLC
+        }
+        blockBuffer.commit();
+        recordQuality(frame, frameName, blockBuffer);
 
-            // VLC encode block
-            rleBlock = runLengthEncoder.encode(block);
-            huffmanEncoder.encode(internalFrameBuffer, rleBlock);
+        // VLC encode blocks
+        if (restartInterval > 0) {
+            writeRestartSegments(internalFrameBuffer, huffmanEncoder, blocks, restartInterval * RestartSegments.getBlocksPerMCU(YCbCrImage.YUV444Sampling));
+        } else {
+            for (Block block : blocks) {
+                huffmanEncoder.encode(internalFrameBuffer, block, runLengthEncoder);
+            }
         }
 
         logger.updateProgressStatus(90, "Finishing up...", frameName);
@@ -657,17 +666,22 @@ public class JVidEncoderService {
         RunLengthEncoder runLengthEncoder = new RunLengthEncoder();
         HuffmanEncoder huffmanEncoder = new HuffmanEncoder();
 
+        // a new GOP starts, the previous frames can no longer be referenced
+        blockBuffer.clear();
+
         // scale and subsample image
         logger.updateProgressStatus(2, "Subsampling Image...", frameName);
         frame.ScaleImage();
-        frame.PerformSubsampling(YCbCrImage.YUV444Sampling);
+        frame.PerformSubsampling(Globals.SAMPLING);
 
         // split frame into blocks
         logger.updateProgressStatus(5, "Performing block splitting...", frameName);
         ArrayList<Block> blocks = frame.PerformBlockSplitting();
-        RunLengthBlock rleBlock;
         stopwatch.lapFrame(0);
 
+        // the following P frames find their unchanged blocks by these hashes
+        saveSourceHashes(blocks, blockBuffer);
+
         // process each block
         logger.updateProgressStatus(10, "Processing blocks...", frameName);
 
@@ -678,20 +692,20 @@ public class JVidEncoderService {
 
             // I frame => perform DCT, quantization, inverses, push to buffer, proceed to VLC
 
-            // save a copy in the block buffer
-            Block savedBlock = block.getCopy();
-            blockBuffer.save(savedBlock);
-
             // perform DCT
             DCT.forward(block);
 
             // quantize DCT coefficients
             quantizer.quantize(block);
 
-            // VLC encode block
-            rleBlock = runLengthEncoder.encode(block);
-            huffmanEncoder.encode(internalFrameBuffer, rleBlock);
+            // save the reconstructed block in the block buffer
+            saveReconstructedBlock(block, blockBuffer);
         }
+        blockBuffer.commit();
+        recordQuality(frame, frameName, blockBuffer);
+
+        // VLC encode blocks
+        writeIBlocks(internalFrameBuffer, huffmanEncoder, runLengthEncoder, blocks);
 
         stopwatch.lapFrame(0);
         logger.updateProgressStatus(90, "Finishing up...", frameName);
@@ -730,77 +744,40 @@ public class JVidEncoderService {
 
         BufferedOutputStream tempOutputStream1 = timeGop ? tempOutputStreams.get(gopIndex) : tempOutputStream;
         InternalFrameBuffer ifb = timeGop ? internalFrameBuffers.get(gopIndex) : internalFrameBuffer;
+        BlockBuffer gopBlockBuffer = timeGop ? getBlockBuffer(gopIndex) : blockBuffer;
 
         // scale and subsample image
         logger.updateProgressStatus(2, "Subsampling Image...", frameName);
         frame.ScaleImage();
-        frame.PerformSubsampling(YCbCrImage.YUV444Sampling);
+        frame.PerformSubsampling(Globals.SAMPLING);
 
         // split frame into blocks
         logger.updateProgressStatus(5, "Performing block splitting...", frameName);
         ArrayList<Block> blocks = frame.PerformBlockSplitting();
-        RunLengthBlock rleBlock;
         stopwatch.lapFrame(timeGop ? gopIndex : frameIndex);
 
         // process each block
         logger.updateProgressStatus(10, "Processing blocks...", frameName);
 
-        // This is used to determine if we have to write a new codeword for the block
-        // pBlockCodeword = mvec => only motion vector is written
-        // pBlockCodeword = errb => motion vector and error block data is written
-        // only write the codeword once per change
-        String pBlockCodeword = "";
-        boolean codewordChanged;
+        ArrayList<FrameOpDataObject> frameOpData = new ArrayList<>();
 
-        int blockIndex = 0;
-        for (Block block: blocks) {
-            blockIndex++;
-            logger.updateProgressStatus((int) (((double) blockIndex / blocks.size() * 100 * 0.9)), "Processing blocks...", frameName);
-
-            // P frame => search in block buffer, estimate motion, subtract, perform DCT, quantization,
-            //            proceed to VLC
-            motionEstimator = new MotionEstimator();
-
-            // look through block buffer for the most similar block
-            Block similarBlock = blockBuffer.getSimilarBlock(block);
-
-            // compute motion vector
-            MotionVector motionVector = motionEstimator.computeMotionVector(block, similarBlock);
+        MotionVector globalMotion = estimateGlobalMotion(frame, gopBlockBuffer);
+        List<Block[]> macroblocks = getMacroblocks(blocks);
+        int columns = frame.getWidth() / MACROBLOCK_SIZE;
+        MotionVector[] vectors = new MotionVector[macroblocks.size()];
+        boolean[] staticMacroblocks = findStaticMacroblocks(macroblocks, gopBlockBuffer, true, frameName);
+        for (int index = 0; index < macroblocks.size(); index++) {
+            logger.updateProgressStatus((int) (((double) (index + 1) / macroblocks.size() * 100 * 0.9)), "Processing blocks...", frameName);
 
-            // subtract found block from input block
-            block.subtract(similarBlock);
-
-            // if the error is 0, don't write it
-            if (!block.isEmpty()) {
-                codewordChanged = !pBlockCodeword.equals("errb");
-                pBlockCodeword = "errb";
-
-                // perform DCT
-                DCT.forward(block);
-
-                // quantize DCT coefficients
-                quantizer.quantize(block);
-            } else {
-                codewordChanged = !pBlockCodeword.equals("mvec");
-                pBlockCodeword = "mvec";
-            }
-
-            // write motion vector to buffer
-            if (codewordChanged) {
-                // codeword changed, write it
-                ifb.write(new DWORD(pBlockCodeword).byteValue());
-            }
-            ifb.write(motionVector.byteValue());
-
-            if (!block.isEmpty()) {
-                // VLC encode block
-                rleBlock = runLengthEncoder.encode(block);
-                huffmanEncoder.encode(ifb, rleBlock);
-                // EOB
-                ifb.write(new WORD((byte) 255, (byte) 255).byteValue());
-            }
+            // P frame => search in block buffer, estimate motion, subtract, perform DCT, quantization
+            frameOpData.addAll(Arrays.asList(processPMacroblock(macroblocks, index, columns, vectors, staticMacroblocks, gopBlockBuffer, true, globalMotion)));
         }
 
+        // proceed to VLC
+        writePBlocks(ifb, huffmanEncoder, runLengthEncoder, frameOpData, columns, globalMotion);
+        gopBlockBuffer.commit();
+        recordQuality(frame, frameName, gopBlockBuffer);
+
         stopwatch.lapFrame(timeGop ? gopIndex : frameIndex);
         logger.updateProgressStatus(90, "Finishing up...", frameName);
 
@@ -841,17 +818,23 @@ public class JVidEncoderService {
         BufferedOutputStream tempOutputStream1 = tempOutputStreams.get(gopIndex);
         InternalFrameBuffer ifb = internalFrameBuffers.get(gopIndex);
 
+        // a new GOP starts, the previous frames can no longer be referenced
+        BlockBuffer gopBlockBuffer = getBlockBuffer(gopIndex);
+        gopBlockBuffer.clear();
+
         // scale and subsample image
         logger.updateProgressStatus(2, "Subsampling Image...", frameName);
         frame.ScaleImage();
-        frame.PerformSubsampling(YCbCrImage.YUV444Sampling);
+        frame.PerformSubsampling(Globals.SAMPLING);
 
         // split frame into blocks
         logger.updateProgressStatus(5, "Performing block splitting...", frameName);
         ArrayList<Block> blocks = frame.PerformBlockSplitting();
-        RunLengthBlock rleBlock;
         stopwatch.lapFrame(gopIndex);
 
+        // the following P frames find their unchanged blocks by these hashes
+        saveSourceHashes(blocks, gopBlockBuffer);
+
         // process each block
         logger.updateProgressStatus(10, "Processing blocks...", frameName);
 
@@ -862,20 +845,20 @@ public class JVidEncoderService {
 
             // I frame => perform DCT, quantization, inverses, push to buffer, proceed to VLC
 
-            // save a copy in the block buffer
-            Block savedBlock = block.getCopy();
-            blockBuffer.save(savedBlock);
-
             // perform DCT
             DCT.forward(block);
 
             // quantize DCT coefficients
             quantizer.quantize(block);
 
-            // VLC encode block
-            rleBlock = runLengthEncoder.encode(block);
-            huffmanEncoder.encode(ifb, rleBlock);
+            // save the reconstructed block in the block buffer
+            saveReconstructedBlock(block, gopBlockBuffer);
         }
+        gopBlockBuffer.commit();
+        recordQuality(frame, frameName, gopBlockBuffer);
+
+        // VLC encode blocks
+        writeIBlocks(ifb, huffmanEncoder, runLengthEncoder, blocks);
 
         stopwatch.lapFrame(gopIndex);
         logger.updateProgressStatus(90, "Finishing up...", frameName);
@@ -911,83 +894,43 @@ public class JVidEncoderService {
         logger.updateProgressStatus(0, "Initializing Encoders...", frameName);
         RunLengthEncoder runLengthEncoder = new RunLengthEncoder('P');
         HuffmanEncoder huffmanEncoder = new HuffmanEncoder();
-        internalFrameBuffers.put(frameIndex, new InternalFrameBuffer());
+        pFrameBuffers.put(frameIndex, new InternalFrameBuffer());
 
         // scale and subsample image
         logger.updateProgressStatus(2, "Subsampling Image...", frameName);
         frame.ScaleImage();
-        frame.PerformSubsampling(YCbCrImage.YUV444Sampling);
+        frame.PerformSubsampling(Globals.SAMPLING);
 
         // split frame into blocks
         logger.updateProgressStatus(5, "Performing block splitting...", frameName);
         ArrayList<Block> blocks = frame.PerformBlockSplitting();
-        RunLengthBlock rleBlock;
         stopwatch.lapFrame(frameIndex);
 
         // process each block
         logger.updateProgressStatus(10, "Processing blocks...", frameName);
 
-        // This is used to determine if we have to write a new codeword for the block
-        // pBlockCodeword = mvec => only motion vector is written
-        // pBlockCodeword = errb => motion vector and error block data is written
-        // only write the codeword once per change
-        String pBlockCodeword = "";
-        boolean codewordChanged;
-
-        int blockIndex = 0;
-        for (Block block: blocks) {
-            blockIndex++;
-            logger.updateProgressStatus((int) (((double) blockIndex / blocks.size() * 100 * 0.9)), "Processing blocks...", frameName);
-
-            // P frame => search in block buffer, estimate motion, subtract, perform DCT, quantization,
-            //            proceed to VLC
-            motionEstimator = new MotionEstimator();
-
-            // look through block buffer for the most similar block
-            Block similarBlock = blockBuffer.getSimilarBlock(block);
-
-            // compute motion vector
-            MotionVector motionVector = motionEstimator.computeMotionVector(block, similarBlock);
-
-            // subtract found block from input block
-            block.subtract(similarBlock);
-
-            // if the error is 0, don't write it
-            if (!block.isEmpty()) {
-                codewordChanged = !pBlockCodeword.equals("errb");
-                pBlockCodeword = "errb";
+        ArrayList<FrameOpDataObject> frameOpData = new ArrayList<>();
 
-                // perform DCT
-                DCT.forward(block);
+        MotionVector globalMotion = estimateGlobalMotion(frame, blockBuffer);
+        List<Block[]> macroblocks = getMacroblocks(blocks);
+        int columns = frame.getWidth() / MACROBLOCK_SIZE;
+        MotionVector[] vectors = new MotionVector[macroblocks.size()];
+        boolean[] staticMacroblocks = findStaticMacroblocks(macroblocks, blockBuffer, false, frameName);
+        for (int index = 0; index < macroblocks.size(); index++) {
+            logger.updateProgressStatus((int) (((double) (index + 1) / macroblocks.size() * 100 * 0.9)), "Processing blocks...", frameName);
 
-                // quantize DCT coefficients
-                quantizer.quantize(block);
-            } else {
-                codewordChanged = !pBlockCodeword.equals("mvec");
-                pBlockCodeword = "mvec";
-            }
-
-            // write motion vector to buffer
-            if (codewordChanged) {
-                // codeword changed, write it
-                internalFrameBuffers.get(frameIndex).write(new DWORD(pBlockCodeword).byteValue());
-            }
-            internalFrameBuffers.get(frameIndex).write(motionVector.byteValue());
-
-            if (!block.isEmpty()) {
-                // VLC encode block
-                rleBlock = runLengthEncoder.encode(block);
-                huffmanEncoder.encode(internalFrameBuffers.get(frameIndex), rleBlock);
-                // EOB
-                internalFrameBuffers.get(frameIndex).write(new WORD((byte) 255, (byte) 255).byteValue());
-            }
+            // P frame => search in block buffer, estimate motion, subtract, perform DCT, quantization
+            frameOpData.addAll(Arrays.asList(processPMacroblock(macroblocks, index, columns, vectors, staticMacroblocks, blockBuffer, false, globalMotion)));
         }
 
+        // proceed to VLC
+        writePBlocks(pFrameBuffers.get(frameIndex), huffmanEncoder, runLengthEncoder, frameOpData, columns, globalMotion);
+
         stopwatch.lapFrame(frameIndex);
         logger.updateProgressStatus(90, "Finishing up...", frameName);
 
         // flush buffers
-        huffmanEncoder.flushBuffer(internalFrameBuffers.get(frameIndex));
+        huffmanEncoder.flushBuffer(pFrameBuffers.get(frameIndex));
 
         // debug
         if (isDebug) {
@@ -1020,6 +963,11 @@ public class JVidEncoderService {
 
         // Process P frames
         for (int i = 1; i < gop.size(); i++) {
+            if (!this.compressToMjpeg && isRepeatedFrame(gop.get(i - 1), gop.get(i))) {
+                jVidWriter.writeRepeatChunk(tempOutputStreams.get(gopIndex));
+                tempOutputStreams.get(gopIndex).flush();
+                continue;
+            }
             frame = readImage(gop.get(i));
             frameName = gop.get(i).getName();
             stopwatch.startFrame(gopIndex);
@@ -1050,17 +998,23 @@ public class JVidEncoderService {
 
         BufferedOutputStream tos = gopIndex == -1 ? tempOutputStream : tempOutputStreams.get(gopIndex);
 
+        // a new GOP starts, the previous frames can no longer be referenced
+        BlockBuffer gopBlockBuffer = getBlockBuffer(gopIndex);
+        gopBlockBuffer.clear();
+
         // scale and subsample image
         logger.updateProgressStatus(2, "Subsampling Image...", frameName);
         frame.ScaleImage();
-        frame.PerformSubsampling(YCbCrImage.YUV444Sampling);
+        frame.PerformSubsampling(Globals.SAMPLING);
 
         // split frame into blocks
         logger.updateProgressStatus(5, "Performing block splitting...", frameName);
         ArrayList<Block> blocks = frame.PerformBlockSplitting();
-        RunLengthBlock rleBlock;
         stopwatch.lapFrame(gopIndex == -1 ? 0 : Globals.GOP_SIZE * gopIndex);
 
+        // the following P frames find their unchanged blocks by these hashes
+        saveSourceHashes(blocks, gopBlockBuffer);
+
         // process each block
         logger.updateProgressStatus(10, "Processing blocks...", frameName);
 
@@ -1073,12 +1027,7 @@ public class JVidEncoderService {
 //            logger.updateProgressStatus((int) (((double) blockIndex / blocks.size() * 100 * 0.9)), "Processing blocks...", frameName);
 
             // I frame => perform DCT, quantization, inverses, push to buffer, proceed to VLC
-
-            // save a copy in the block buffer
-            Block savedBlock = block.getCopy();
-            blockBuffer.save(savedBlock);
-
-            executorService.execute(runnableProcessBlockOps(blockIndex, block, blockMap, latch));
+            executorService.execute(runnableProcessBlockOps(blockIndex, block, blockMap, gopBlockBuffer, latch));
             blockIndex++;
         }
 
@@ -1088,12 +1037,15 @@ public class JVidEncoderService {
             logger.error("Error waiting for threads to finish!");
             Thread.currentThread().interrupt();
         }
+        gopBlockBuffer.commit();
+        recordQuality(frame, frameName, gopBlockBuffer);
 
+        // VLC encode blocks
+        List<Block> quantizedBlocks = new ArrayList<>(blockMap.size());
         for (int i = 0; i < blockMap.size(); i++) {
-            // VLC encode block
-            rleBlock = runLengthEncoder.encode(blockMap.get(i));
-            huffmanEncoder.encode(internalFrameBuffer, rleBlock);
+            quantizedBlocks.add(blockMap.get(i));
         }
+        writeIBlocks(internalFrameBuffer, huffmanEncoder, runLengthEncoder, quantizedBlocks);
 
         stopwatch.lapFrame(gopIndex == -1 ? 0 : Globals.GOP_SIZE * gopIndex);
         logger.updateProgressStatus(90, "Finishing up...", frameName);
@@ -1133,64 +1085,32 @@ public class JVidEncoderService {
         // scale and subsample image
         logger.updateProgressStatus(2, "Subsampling Image...", frameName);
         frame.ScaleImage();
-        frame.PerformSubsampling(YCbCrImage.YUV444Sampling);
+        frame.PerformSubsampling(Globals.SAMPLING);
 
         // split frame into blocks
         logger.updateProgressStatus(5, "Performing block splitting...", frameName);
         ArrayList<Block> blocks = frame.PerformBlockSplitting();
-        RunLengthBlock rleBlock;
         stopwatch.lapFrame(frameIndex);
 
         // process each block
         logger.updateProgressStatus(10, "Processing blocks...", frameName);
 
-        // This is used to determine if we have to write a new codeword for the block
-        // pBlockCodeword = mvec => only motion vector is written
-        // pBlockCodeword = errb => motion vector and error block data is written
-        // only write the codeword once per change
-        String pBlockCodeword = "";
-        boolean codewordChanged;
-
-        // Create a CountDownLatch for the number of blocks
-        CountDownLatch latch = new CountDownLatch(blocks.size());
+        // the macroblocks are processed in a wavefront, see wavefrontProcessMotionOps()
+        List<Block[]> macroblocks = getMacroblocks(blocks);
+        MotionVector globalMotion = estimateGlobalMotion(frame, blockBuffer);
         ConcurrentHashMap<Integer,FrameOpDataObject> frameOpData = new ConcurrentHashMap<>();
-
-        int blockIndex = 0;
-        for (Block block: blocks) {
-//            logger.updateProgressStatus((int) (((double) blockIndex / blocks.size() * 100 * 0.9)), "Processing blocks...", frameName);
-
-            executorService.execute(runnableProcessMotionOps(blockIndex, block, frameOpData, latch));
-            blockIndex++;
-        }
-
-        try {
-            latch.await();
-        } catch (InterruptedException ex) {
-            logger.error("Error waiting for threads to finish!");
-            Thread.currentThread().interrupt();
-        }
+        boolean[] staticMacroblocks = findStaticMacroblocks(macroblocks, blockBuffer, true, frameName);
+        int columns = frame.getWidth() / MACROBLOCK_SIZE;
+        wavefrontProcessMotionOps(macroblocks, columns, staticMacroblocks, frameOpData, blockBuffer, true, globalMotion);
+        blockBuffer.commit();
+        recordQuality(frame, frameName, blockBuffer);
 
         // Retrieve computed frame data and write it to buffer
+        ArrayList<FrameOpDataObject> orderedFrameOpData = new ArrayList<>();
         for (int i = 0; i < frameOpData.size(); i++) {
-            codewordChanged = !pBlockCodeword.equals(frameOpData.get(i).getCodeword());
-            MotionVector motionVector = frameOpData.get(i).getMotionVector();
-            Block block  = frameOpData.get(i).getError();
-            pBlockCodeword = frameOpData.get(i).getCodeword();
-
-            if (codewordChanged) {
-                // Codeword changed, write it
-                internalFrameBuffer.write(new DWORD(pBlockCodeword).byteValue());
-            }
-            internalFrameBuffer.write(motionVector.byteValue());
-
-            if (!block.isEmpty()) {
-                // VLC encode block
-                rleBlock = runLengthEncoder.encode(block);
-                huffmanEncoder.encode(internalFrameBuffer, rleBlock);
-                // EOB
-                internalFrameBuffer.write(new WORD((byte) 255, (byte) 255).byteValue());
-            }
+            orderedFrameOpData.add(frameOpData.get(i));
         }
+        writePBlocks(internalFrameBuffer, huffmanEncoder, runLengthEncoder, orderedFrameOpData, columns, globalMotion);
 
         stopwatch.lapFrame(frameIndex);
         logger.updateProgressStatus(90, "Finishing up...", frameName);
@@ -1229,70 +1149,36 @@ public class JVidEncoderService {
         RunLengthEncoder runLengthEncoder = new RunLengthEncoder('P');
         HuffmanEncoder huffmanEncoder = new HuffmanEncoder();
 
-        internalFrameBuffers.put(frameIndex + Globals.GOP_SIZE * gopIndex, new InternalFrameBuffer());
-        InternalFrameBuffer ifb = internalFrameBuffers.get(frameIndex + Globals.GOP_SIZE * gopIndex);
+        pFrameBuffers.put(frameIndex + Globals.GOP_SIZE * gopIndex, new InternalFrameBuffer());
+        InternalFrameBuffer ifb = pFrameBuffers.get(frameIndex + Globals.GOP_SIZE * gopIndex);
 
         // scale and subsample image
         logger.updateProgressStatus(2, "Subsampling Image...", frameName);
         frame.ScaleImage();
-        frame.PerformSubsampling(YCbCrImage.YUV444Sampling);
+        frame.PerformSubsampling(Globals.SAMPLING);
 
         // split frame into blocks
         logger.updateProgressStatus(5, "Performing block splitting...", frameName);
         ArrayList<Block> blocks = frame.PerformBlockSplitting();
-        RunLengthBlock rleBlock;
         stopwatch.lapFrame(frameIndex + Globals.GOP_SIZE * gopIndex);
 
         // process each block
         logger.updateProgressStatus(10, "Processing blocks...", frameName);
 
-        // This is used to determine if we have to write a new codeword for the block
-        // pBlockCodeword = mvec => only motion vector is written
-        // pBlockCodeword = errb => motion vector and error block data is written
-        // only write the codeword once per change
-        String pBlockCodeword = "";
-        boolean codewordChanged;
-
-        // Create a CountDownLatch for the number of blocks
-        CountDownLatch latch = new CountDownLatch(blocks.size());
+        // the macroblocks are processed in a wavefront, see wavefrontProcessMotionOps()
+        List<Block[]> macroblocks = getMacroblocks(blocks);
+        MotionVector globalMotion = estimateGlobalMotion(frame, getBlockBuffer(gopIndex));
         ConcurrentHashMap<Integer,FrameOpDataObject> frameOpData = new ConcurrentHashMap<>();
-
-        int blockIndex = 0;
-        for (Block block: blocks) {
-//            logger.updateProgressStatus((int) (((double) blockIndex / blocks.size() * 100 * 0.9)), "Processing blocks...", frameName);
-
-            executorService.execute(runnableProcessMotionOps(blockIndex, block, frameOpData, latch));
-            blockIndex++;
-        }
-
-        try {
-            latch.await();
-        } catch (InterruptedException ex) {
-            logger.error("Error waiting for threads to finish!");
-            Thread.currentThread().interrupt();
-        }
+        boolean[] staticMacroblocks = findStaticMacroblocks(macroblocks, getBlockBuffer(gopIndex), false, frameName);
+        int columns = frame.getWidth() / MACROBLOCK_SIZE;
+        wavefrontProcessMotionOps(macroblocks, columns, staticMacroblocks, frameOpData, getBlockBuffer(gopIndex), false, globalMotion);
 
         // Retrieve computed frame data and write it to buffer
+        ArrayList<FrameOpDataObject> orderedFrameOpData = new ArrayList<>();
         for (int i = 0; i < frameOpData.size(); i++) {
-            codewordChanged = !pBlockCodeword.equals(frameOpData.get(i).getCodeword());
-            MotionVector motionVector = frameOpData.get(i).getMotionVector();
-            Block block  = frameOpData.get(i).getError();
-            pBlockCodeword = frameOpData.get(i).getCodeword();
-
-            if (codewordChanged) {
-                // Codeword changed, write it
-                ifb.write(new DWORD(pBlockCodeword).byteValue());
-            }
-            ifb.write(motionVector.byteValue());
-
-            if (!block.isEmpty()) {
-                // VLC encode block
-                rleBlock = runLengthEncoder.encode(block);
-                huffmanEncoder.encode(ifb, rleBlock);
-                // EOB
-                ifb.write(new WORD((byte) 255, (byte) 255).byteValue());
-            }
+            orderedFrameOpData.add(frameOpData.get(i));
         }
+        writePBlocks(ifb, huffmanEncoder, runLengthEncoder, orderedFrameOpData, columns, globalMotion);
 
         stopwatch.lapFrame(frameIndex + Globals.GOP_SIZE * gopIndex);
         logger.updateProgressStatus(90, "Finishing up...", frameName);
@@ -1331,7 +1217,14 @@ public class JVidEncoderService {
         CountDownLatch latch = new CountDownLatch(gop.size() - 1);
 
         // Process P frames
+        boolean[] repeatedFrames = new boolean[gop.size()];
         for (int i = 1; i < gop.size(); i++) {
+            // repeated frames are not dispatched, their chunk is written in order below
+            if (isRepeatedFrame(gop.get(i - 1), gop.get(i))) {
+                repeatedFrames[i] = true;
+                latch.countDown();
+                continue;
+            }
             frame = readImage(gop.get(i));
             frameName = gop.get(i).getName();
 
@@ -1344,8 +1237,13 @@ public class JVidEncoderService {
             logger.error("Error waiting for threads to finish!");
             Thread.currentThread().interrupt();
         }
-        for(InternalFrameBuffer buffer : internalFrameBuffers.values()) {
-            jVidWriter.writeDataChunk(tempOutputStreams.get(gopIndex), buffer, 'P');
+        // the other GOPs in progress have their own frames in pFrameBuffers, only take ours out
+        for (int i = 1; i < gop.size(); i++) {
+            if (repeatedFrames[i]) {
+                jVidWriter.writeRepeatChunk(tempOutputStreams.get(gopIndex));
+            } else {
+                jVidWriter.writeDataChunk(tempOutputStreams.get(gopIndex), pFrameBuffers.remove(i + Globals.GOP_SIZE * gopIndex), 'N');
+            }
         }
         tempOutputStreams.get(gopIndex).flush();
 
@@ -1377,7 +1275,7 @@ public class JVidEncoderService {
           }
         };
     }
-    private Runnable runnableProcessBlockOps(int blockIndex, Block block, ConcurrentHashMap<Integer, Block> blockMap, CountDownLatch latch) {
+    private Runnable runnableProcessBlockOps(int blockIndex, Block block, ConcurrentHashMap<Integer, Block> blockMap, BlockBuffer blockBuffer, CountDownLatch latch) {
         return () -> {
             try {
                 // perform DCT
@@ -1386,6 +1284,9 @@ public class JVidEncoderService {
                 // quantize DCT coefficients
                 quantizer.quantize(block);
 
+                // save the reconstructed block in the block buffer
+                saveReconstructedBlock(block, blockBuffer);
+
                 blockMap.put(blockIndex, block);
             } catch (Exception e) {
                 e.printStackTrace();
@@ -1394,41 +1295,25 @@ public class JVidEncoderService {
             }
         };
     }
-    private Runnable runnableProcessMotionOps(int blockIndex, Block block, ConcurrentHashMap<Integer,FrameOpDataObject> frameOpData, CountDownLatch latch) {
-        return () -> {
-            try {
-                // P frame => search in block buffer, estimate motion, subtract, perform DCT, quantization,
-                //            proceed to VLC
-                motionEstimator = new MotionEstimator();
-                String pBlockCodeword;
-                // look through block buffer for the most similar block
-                Block similarBlock = blockBuffer.getSimilarBlock(block);
-
-                // compute motion vector
-                MotionVector motionVector = motionEstimator.computeMotionVector(block, similarBlock);
-
-                // subtract found block from input block
-                block.subtract(similarBlock);
-
-                // if the error is 0, don't write it
-                if (!block.isEmpty()) {
-                    pBlockCodeword = "errb";
-
-                    // perform DCT
-                    DCT.forward(block);
-
-                    // quantize DCT coefficients
-                    quantizer.quantize(block);
-                } else {
-                    pBlockCodeword = "mvec";
+    /* The motion search of a macroblock starts at the vector predicted from its left, top and top-right
+     * neighbours (see MotionVector.predict()), so the macroblocks cannot all run at once. They are processed
+     * in a diagonal wavefront instead, each macroblock row two macroblocks behind the row above it.
+     */
+    private void wavefrontProcessMotionOps(List<Block[]> macroblocks, int columns, boolean[] staticMacroblocks, ConcurrentHashMap<Integer,FrameOpDataObject> frameOpData, BlockBuffer blockBuffer, boolean isReference, MotionVector globalMotion) {
+        MotionVector[] vectors = new MotionVector[macroblocks.size()];
+        WavefrontScheduler wavefront = new WavefrontScheduler(macroblocks.size() / columns, columns);
+        try {
+            wavefront.run(executorService, (row, column) -> {
+                int index = row * columns + column;
+                FrameOpDataObject[] macroblockData = processPMacroblock(macroblocks, index, columns, vectors, staticMacroblocks, blockBuffer, isReference, globalMotion);
+                for (int i = 0; i < macroblockData.length; i++) {
+                    frameOpData.put(index * MACROBLOCK_BLOCKS + i, macroblockData[i]);
                 }
-                frameOpData.put(blockIndex, new FrameOpDataObject(motionVector, block, pBlockCodeword));
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                latch.countDown();
-            }
-        };
+            });
+        } catch (InterruptedException ex) {
+            logger.error("Error waiting for threads to finish!");
+            Thread.currentThread().interrupt();
+        }
     }
     private Runnable runnableProcessComboGop(int gopIndex, List<File> gop) {
         return () -> {
@@ -1454,6 +1339,656 @@ public class JVidEncoderService {
         };
     }
 
+    /* Block buffer used for the references of a GOP, -1 selects the buffer of the sequential modes. */
+    private BlockBuffer getBlockBuffer(int gopIndex) {
+        if (gopIndex == -1) {
+            return blockBuffer;
+        }
+        return blockBuffers.computeIfAbsent(gopIndex, i -> new BlockBuffer());
+    }
+
+    /* Saves the block the decoder will reconstruct from the quantized coefficients of an I frame block. */
+    private void saveReconstructedBlock(Block block, BlockBuffer blockBuffer) {
+        Block savedBlock = block.getCopy();
+        quantizer.dequantize(savedBlock);
+        DCT.inverse(savedBlock);
+        blockBuffer.save(savedBlock);
+    }
+
+    /* Macroblock `index` of a frame `columns` macroblocks wide. Its motion search starts at the vector
+     * predicted from its neighbours, its own vector is recorded in `vectors` for the macroblocks after it.
+     * Macroblocks found unchanged by findStaticMacroblocks() are skipped right away.
+     */
+    private FrameOpDataObject[] processPMacroblock(List<Block[]> macroblocks, int index, int columns, MotionVector[] vectors,
+                                                   boolean[] staticMacroblocks, BlockBuffer blockBuffer, boolean isReference,
+                                                   MotionVector globalMotion) {
+        FrameOpDataObject[] macroblockData;
+        if (staticMacroblocks[index]) {
+            macroblockData = skipMacroblock(macroblocks.get(index), blockBuffer, isReference);
+        } else {
+            MotionVector predictedMotion = MotionVector.predict(vectors, index, columns, globalMotion);
+            macroblockData = processPMacroblock(macroblocks.get(index), blockBuffer, isReference, globalMotion, predictedMotion);
+        }
+        vectors[index] = macroblockData[0].getMotionVector();
+        return macroblockData;
+    }
+
+    /* P frame => search in block buffer, estimate motion, subtract, perform DCT, quantization.
+     * Modes are decided per 16x16 macroblock (4 luma blocks followed by the U and V block, see
+     * YCbCrImage.PerformBlockSplitting): skip, mvec (prediction only), errb (prediction and residual)
+     * or intr (no prediction, the blocks are coded like those of an I frame).
+     * Only the luma blocks are searched and they share one vector, the chroma blocks use it halved.
+     * A macroblock becomes intra when its luma deviates less from its own mean than from the best
+     * prediction, e.g. in areas uncovered by motion.
+     * The global motion of the frame and the vector predicted from the neighbouring macroblocks are the
+     * first candidates of the motion search.
+     * When the frame is a reference, the blocks the decoder will reconstruct are saved in the
+     * block buffer, so that the following P frames predict from the same samples as the decoder.
+     */
+    private FrameOpDataObject[] processPMacroblock(Block[] macroblock, BlockBuffer blockBuffer, boolean isReference,
+                                                   MotionVector globalMotion, MotionVector predictedMotion) {
+        MotionEstimator motionEstimator = new MotionEstimator();
+        FrameOpDataObject[] macroblockData = new FrameOpDataObject[macroblock.length];
+
+        // skip => the co-located blocks of the previous frame are close enough that their residuals
+        //         would quantize to nothing, so neither a search nor a transform is needed
+        boolean isStatic = true;
+        for (Block block : macroblock) {
+            isStatic = isStatic && isStaticBlock(block, blockBuffer);
+        }
+        if (isStatic) {
+            return skipMacroblock(macroblock, blockBuffer, isReference);
+        }
+
+        // look through block buffer for the area most similar to the luma blocks
+        MotionVector motionVector = motionEstimator.estimate(Arrays.copyOf(macroblock, LUMA_BLOCKS), blockBuffer, globalMotion, predictedMotion);
+        MotionVector chromaVector = motionVector.getChromaVector();
+        boolean isZeroVector = motionVector.getRefIndex() == 0 && !motionVector.isSubPel()
+                && motionVector.decompress()[0] == 0 && motionVector.decompress()[1] == 0;
+
+        Block[] similarBlocks = new Block[macroblock.length];
+        int interSATD = 0;
+        int intraSATD = 0;
+        for (int i = 0; i < macroblock.length; i++) {
+            Block block = macroblock[i];
+            similarBlocks[i] = blockBuffer.getBlock(block.getPosX(), block.getPosY(),
+                    ReferencePicture.getComponent(block.getType()), i < LUMA_BLOCKS ? motionVector : chromaVector);
+            if (i < LUMA_BLOCKS) {
+                interSATD += BlockDistortion.satd(block.getData(), similarBlocks[i].getData());
+                intraSATD += BlockDistortion.satdAC(block.getData());
+            }
+        }
+        if (Globals.RD_MODE_DECISION) {
+            return processPMacroblockRD(macroblock, motionVector, similarBlocks, blockBuffer, isReference, predictedMotion);
+        }
+        if (intraSATD + INTRA_BIAS < interSATD) {
+            return processIntraMacroblock(macroblock, blockBuffer, isReference);
+        }
+
+        Block[] errors = new Block[macroblock.length];
+        // the macroblock can only be skipped if none of its residuals survive quantization
+        boolean isSkipped = isZeroVector;
+        boolean isEmpty = true;
+        for (int i = 0; i < macroblock.length; i++) {
+            Block block = macroblock[i];
+
+            // subtract found block from input block
+            block.subtract(similarBlocks[i]);
+
+            if (!block.isEmpty()) {
+                // perform DCT
+                DCT.forwardResidual(block);
+
+                // quantize DCT coefficients
+                quantizer.quantize(block);
+            }
+            isEmpty = isEmpty && block.isEmpty();
+
+            // the residual the decoder will reconstruct, needed for references and to catch skips
+            // that the check above was too conservative for
+            if (!block.isEmpty() && (isReference || isZeroVector)) {
+                errors[i] = block.getCopy();
+                quantizer.dequantize(errors[i]);
+                DCT.inverseResidual(errors[i]);
+                isSkipped = isSkipped && errors[i].isEmpty();
+            }
+        }
+
+        // if all errors are 0 (or quantize to 0), don't write them
+        String pBlockCodeword = isSkipped ? "skip" : isEmpty ? "mvec" : "errb";
+
+        for (int i = 0; i < macroblock.length; i++) {
+            Block block = macroblock[i];
+            if (isReference) {
+                Block savedBlock = similarBlocks[i];
+                if (errors[i] != null && !isSkipped) {
+                    savedBlock.add(errors[i]);
+                }
+                savedBlock.setPos(block.getPosX(), block.getPosY());
+                blockBuffer.save(savedBlock);
+            }
+
+            macroblockData[i] = new FrameOpDataObject(motionVector, block, pBlockCodeword);
+        }
+        return macroblockData;
+    }
+
+    /* Rate-distortion optimized mode decision (slow preset). Every mode of the macroblock is coded and
+     * the one with the lowest D + lambda * R wins: D is the SSD between the input and the reconstruction,
+     * R the bits written for the macroblock (Huffman code lengths, motion vector and the rest of the
+     * macroblock header). Skipped macroblocks are charged 1 bit, they are coded in runs; changes of the
+     * reference are not charged.
+     */
+    private FrameOpDataObject[] processPMacroblockRD(Block[] macroblock, MotionVector motionVector, Block[] similarBlocks,
+                                                     BlockBuffer blockBuffer, boolean isReference, MotionVector predictedMotion) {
+        RunLengthEncoder runLengthEncoder = new RunLengthEncoder('P');
+        int n = macroblock.length;
+        Block[] skipBlocks = new Block[n];
+        Block[] residuals = new Block[n];
+        Block[] interBlocks = new Block[n];
+        Block[] intraCoefficients = new Block[n];
+        Block[] intraBlocks = new Block[n];
+        long skipD = 0, mvecD = 0, errbD = 0, intrD = 0;
+        int errbR = 0, intrR = 0;
+        boolean hasResidual = false;
+
+        for (int i = 0; i < n; i++) {
+            Block block = macroblock[i];
+            int[][] data = block.getData();
+
+            // skip => co-located block of the previous frame
+            ReferencePlane previousFrame = blockBuffer.getReference(0).getPlane(block.getType());
+            skipBlocks[i] = previousFrame.getBlock(block.getPosX(), block.getPosY(), block.getType());
+            skipD += BlockDistortion.ssd(data, skipBlocks[i].getData());
+
+            // mvec => prediction only
+            mvecD += BlockDistortion.ssd(data, similarBlocks[i].getData());
+
+            // errb => prediction and quantized residual
+            residuals[i] = block.getCopy();
+            residuals[i].subtract(similarBlocks[i]);
+            interBlocks[i] = similarBlocks[i].getCopy();
+            if (!residuals[i].isEmpty()) {
+                DCT.forwardResidual(residuals[i]);
+                quantizer.quantize(residuals[i]);
+            }
+            if (!residuals[i].isEmpty()) {
+                hasResidual = true;
+                errbR += getCodedBlockBits(residuals[i], runLengthEncoder);
+                Block error = residuals[i].getCopy();
+                quantizer.dequantize(error);
+                DCT.inverseResidual(error);
+                interBlocks[i].add(error);
+            }
+            errbD += BlockDistortion.ssd(data, interBlocks[i].getData());
+
+            // intr => coded like a block of an I frame
+            intraCoefficients[i] = block.getCopy();
+            DCT.forward(intraCoefficients[i]);
+            quantizer.quantize(intraCoefficients[i]);
+            intraBlocks[i] = intraCoefficients[i].getCopy();
+            quantizer.dequantize(intraBlocks[i]);
+            DCT.inverse(intraBlocks[i]);
+            intrD += BlockDistortion.ssd(data, intraBlocks[i].getData());
+            if (!intraCoefficients[i].isEmpty()) {
+                intrR += getCodedBlockBits(intraCoefficients[i], runLengthEncoder);
+            }
+        }
+
+        // macroblock header, see writePBlocks(): skip run, type, vector difference, residual flag and
+        // coded block pattern
+        int[] difference = motionVector.getDifference(predictedMotion);
+        int vectorBits = ExponentialGolombEncoder.getSignedLength(difference[0]) + ExponentialGolombEncoder.getSignedLength(difference[1]);
+        int mvecR = 1 + 1 + vectorBits + 1;
+        errbR += 1 + 1 + vectorBits + 1 + MACROBLOCK_BLOCKS;
+        intrR += 1 + ExponentialGolombEncoder.getUnsignedLength(2) + MACROBLOCK_BLOCKS;
+
+        double lambda = quantizer.getLambda();
+        String pBlockCodeword = "skip";
+        double bestCost = skipD + lambda;
+        if (mvecD + lambda * mvecR < bestCost) {
+            pBlockCodeword = "mvec";
+            bestCost = mvecD + lambda * mvecR;
+        }
+        if (hasResidual && errbD + lambda * errbR < bestCost) {
+            pBlockCodeword = "errb";
+            bestCost = errbD + lambda * errbR;
+        }
+        if (intrD + lambda * intrR < bestCost) {
+            pBlockCodeword = "intr";
+        }
+
+        FrameOpDataObject[] macroblockData = new FrameOpDataObject[n];
+        for (int i = 0; i < n; i++) {
+            Block block = macroblock[i];
+            Block savedBlock;
+            switch (pBlockCodeword) {
+                case "skip" -> {
+                    savedBlock = skipBlocks[i];
+                    macroblockData[i] = new FrameOpDataObject(new MotionVector(0, 0), null, "skip");
+                }
+                case "mvec" -> {
+                    savedBlock = similarBlocks[i];
+                    macroblockData[i] = new FrameOpDataObject(motionVector, residuals[i], "mvec");
+                }
+                case "errb" -> {
+                    savedBlock = interBlocks[i];
+                    macroblockData[i] = new FrameOpDataObject(motionVector, residuals[i], "errb");
+                }
+                default -> {
+                    savedBlock = intraBlocks[i];
+                    macroblockData[i] = new FrameOpDataObject(null, intraCoefficients[i], "intr");
+                }
+            }
+            if (isReference) {
+                savedBlock.setPos(block.getPosX(), block.getPosY());
+                blockBuffer.save(savedBlock);
+            }
+        }
+        return macroblockData;
+    }
+
+    /* Bits written for a coded block of a P frame, its Huffman codes. */
+    private int getCodedBlockBits(Block block, RunLengthEncoder runLengthEncoder) {
+        return rateEstimator.countBits(block, runLengthEncoder);
+    }
+
+    /* Dominant translation of the frame against the previous frame, see GlobalMotionEstimator. */
+    private MotionVector estimateGlobalMotion(YCbCrImage frame, BlockBuffer blockBuffer) {
+        return new GlobalMotionEstimator().estimate(frame.Y, frame.getWidth(), frame.getHeight(),
+                blockBuffer.getReference(0).getPlane(0));
+    }
+
+    /* Luma squared error of the frame just committed to the block buffer, i.e. of the frame the
+     * decoder will reconstruct, against the source frame; the benchmark reports it as PSNR.
+     */
+    private void recordQuality(YCbCrImage frame, String frameName, BlockBuffer blockBuffer) {
+        if (!logger.isBenchmarking()) {
+            return;
+        }
+        ReferencePlane plane = blockBuffer.getReference(0).getPlane(0);
+        short[] data = plane.getData();
+        long squaredError = 0;
+        for (int y = 0; y < frame.getHeight(); y++) {
+            int[] row = frame.Y[y];
+            int base = plane.offset(0, y);
+            for (int x = 0; x < frame.getWidth(); x++) {
+                int diff = row[x] - data[base + x];
+                squaredError += diff * diff;
+            }
+        }
+        logger.recordQuality(frameName, squaredError, (long) frame.getWidth() * frame.getHeight());
+    }
+
+    /* Intra macroblock of a P frame => perform DCT, quantization, like the blocks of an I frame. */
+    private FrameOpDataObject[] processIntraMacroblock(Block[] macroblock, BlockBuffer blockBuffer, boolean isReference) {
+        FrameOpDataObject[] macroblockData = new FrameOpDataObject[macroblock.length];
+        for (int i = 0; i < macroblock.length; i++) {
+            Block block = macroblock[i];
+
+            // perform DCT
+            DCT.forward(block);
+
+            // quantize DCT coefficients
+            quantizer.quantize(block);
+
+            if (isReference) {
+                // save the reconstructed block in the block buffer
+                saveReconstructedBlock(block, blockBuffer);
+            }
+
+            macroblockData[i] = new FrameOpDataObject(null, block, "intr");
+        }
+        return macroblockData;
+    }
+
+    /* Skipped macroblock => the co-located blocks of the previous frame are copied. */
+    private FrameOpDataObject[] skipMacroblock(Block[] macroblock, BlockBuffer blockBuffer, boolean isReference) {
+        FrameOpDataObject[] macroblockData = new FrameOpDataObject[macroblock.length];
+        for (int i = 0; i < macroblock.length; i++) {
+            Block block = macroblock[i];
+            if (isReference) {
+                ReferencePlane previousFrame = blockBuffer.getReference(0).getPlane(block.getType());
+                blockBuffer.save(previousFrame.getBlock(block.getPosX(), block.getPosY(), block.getType()));
+            }
+            macroblockData[i] = new FrameOpDataObject(new MotionVector(0, 0), null, "skip");
+        }
+        return macroblockData;
+    }
+
+    /* A P frame whose file has the same content as the previous frame (slates, paused captures) is neither
+     * decoded nor coded, a repeat chunk without payload tells the decoder to show the previous frame again.
+     * The references stay as they are, just like in the decoder. The file length works as the hash of the
+     * file, only files of equal length are compared, and then byte by byte, so a collision cannot drop a frame.
+     */
+    private static boolean isRepeatedFrame(File previous, File current) throws IOException {
+        return previous.length() == current.length()
+                && Arrays.equals(Files.readAllBytes(previous.toPath()), Files.readAllBytes(current.toPath()));
+    }
+
+    private static void saveSourceHashes(List<Block> blocks, BlockBuffer blockBuffer) {
+        for (Block block : blocks) {
+            blockBuffer.saveSourceHash(block, BlockHash.hash(block.getData()));
+        }
+    }
+
+    /* A macroblock whose blocks all hash like the co-located source blocks of the previous frame has
+     * not changed since then (screen recordings, surveillance footage), it is skipped without motion
+     * search or transform. The ratio of such macroblocks is reported by the benchmark.
+     * For references, the hashes are saved for the following frames; this has to happen before any
+     * block is processed, as processing overwrites the source samples with the residual.
+     */
+    private boolean[] findStaticMacroblocks(List<Block[]> macroblocks, BlockBuffer blockBuffer, boolean isReference, String frameName) {
+        ReferencePicture previousFrame = blockBuffer.getReference(0);
+        boolean[] staticMacroblocks = new boolean[macroblocks.size()];
+        int staticCount = 0;
+        for (int index = 0; index < macroblocks.size(); index++) {
+            boolean isStatic = true;
+            for (Block block : macroblocks.get(index)) {
+                long hash = BlockHash.hash(block.getData());
+                isStatic = isStatic && hash == previousFrame.getSourceHash(block);
+                if (isReference) {
+                    blockBuffer.saveSourceHash(block, hash);
+                }
+            }
+            staticMacroblocks[index] = isStatic;
+            staticCount += isStatic ? 1 : 0;
+        }
+        logger.recordStaticMacroblocks(frameName, staticCount, macroblocks.size());
+        return staticMacroblocks;
+    }
+
+    /* Checks whether the residual against the co-located block of the previous frame would quantize to nothing. */
+    private boolean isStaticBlock(Block block, BlockBuffer blockBuffer) {
+        ReferencePlane previousFrame = blockBuffer.getReference(0).getPlane(block.getType());
+        int offset = previousFrame.offset(block.getPosX(), block.getPosY());
+        int staticSAD = BlockDistortion.sad(block.getData(), previousFrame.getData(), offset, previousFrame.getStride());
+        int staticSSD = BlockDistortion.ssd(block.getData(), previousFrame.getData(), offset, previousFrame.getStride());
+        return quantizer.quantizesToZero(staticSAD, staticSSD, block.getType());
+    }
+
+    /* Splits the blocks of a frame into macroblocks, they are already in macroblock order. */
+    private static List<Block[]> getMacroblocks(List<Block> blocks) {
+        List<Block[]> macroblocks = new ArrayList<>();
+        for (int i = 0; i + MACROBLOCK_BLOCKS <= blocks.size(); i += MACROBLOCK_BLOCKS) {
+            macroblocks.add(blocks.subList(i, i + MACROBLOCK_BLOCKS).toArray(new Block[0]));
+        }
+        return macroblocks;
+    }
+
+    /* Writes the macroblocks of a P frame as a single bitstream of Exponential-Golomb and Huffman codes,
+     * it is only padded to a byte border at the end of the frame:
+     * frame header => se(x) se(y) of the global motion vector
+     * every coded macroblock => ue(number of skipped macroblocks before it), then ue(macroblock type):
+     *      0 => inter macroblock predicted from the reference of the previous inter macroblock
+     *           (reference 0 for the first one)
+     *      1 => inter macroblock predicted from another reference, followed by ue(reference index)
+     *      2 => intra macroblock, coded like the blocks of an I frame
+     *   inter macroblocks continue with se(x) se(y) of the difference to the vector predicted from the
+     *   left, top and top-right macroblocks (see MotionVector.predict()) and a flag whether they have
+     *   residual blocks (errb) or not (mvec); errb and intra macroblocks then have the coded block pattern,
+     *   one bit per block (MSB first, Y0 Y1 Y2 Y3 U V) in 6 bits, and the Huffman codes of the coded blocks.
+     * end of frame => ue(number of skipped macroblocks) if the frame ends with skipped macroblocks.
+     * Skipped macroblocks copy the co-located blocks of reference 0 and don't change the current reference.
+     * A block ends with its EOB code, or with its last coefficient if that is the 64th.
+     */
+    private void writePBlocks(InternalFrameBuffer ifb, HuffmanEncoder huffmanEncoder, RunLengthEncoder runLengthEncoder,
+                              List<FrameOpDataObject> frameOpData, int columns, MotionVector globalMotion) {
+        if (Globals.ARITHMETIC_CODING) {
+            writeArithmeticPBlocks(ifb, runLengthEncoder, frameOpData, columns, globalMotion);
+            return;
+        }
+        int refIndex = 0;
+        MotionVector[] vectors = new MotionVector[frameOpData.size() / MACROBLOCK_BLOCKS];
+
+        if (Globals.OPTIMIZED_HUFFMAN_TABLES) {
+            List<Block> codedBlocks = new ArrayList<>();
+            for (int i = 0; i < frameOpData.size(); i += MACROBLOCK_BLOCKS) {
+                String codeword = frameOpData.get(i).getCodeword();
+                if (codeword.equals("errb") || codeword.equals("intr")) {
+                    for (int k = 0; k < MACROBLOCK_BLOCKS; k++) {
+                        if (!frameOpData.get(i + k).getError().isEmpty()) {
+                            codedBlocks.add(frameOpData.get(i + k).getError());
+                        }
+                    }
+                }
+            }
+            writeHuffmanTables(ifb, huffmanEncoder, codedBlocks, 'P', 0);
+        }
+
+        // the Exponential-Golomb codes go into the bitstream of the Huffman codes
+        ExponentialGolombEncoder expGolombEncoder = new ExponentialGolombEncoder(huffmanEncoder.getBitWriter());
+        expGolombEncoder.encodeSigned(ifb, globalMotion.decompress()[0]);
+        expGolombEncoder.encodeSigned(ifb, globalMotion.decompress()[1]);
+
+        int skipRun = 0;
+        for (int index = 0; index < vectors.length; index++) {
+            int i = index * MACROBLOCK_BLOCKS;
+            String codeword = frameOpData.get(i).getCodeword();
+            if (codeword.equals("skip")) {
+                vectors[index] = new MotionVector(0, 0);
+                skipRun++;
+                continue;
+            }
+            expGolombEncoder.encodeUnsigned(ifb, skipRun);
+            skipRun = 0;
+
+            if (codeword.equals("intr")) {
+                expGolombEncoder.encodeUnsigned(ifb, 2);
+            } else {
+                MotionVector motionVector = frameOpData.get(i).getMotionVector();
+                if (motionVector.getRefIndex() == refIndex) {
+                    expGolombEncoder.encodeUnsigned(ifb, 0);
+                } else {
+                    refIndex = motionVector.getRefIndex();
+                    expGolombEncoder.encodeUnsigned(ifb, 1);
+                    expGolombEncoder.encodeUnsigned(ifb, refIndex);
+                }
+                vectors[index] = motionVector;
+                int[] difference = motionVector.getDifference(MotionVector.predict(vectors, index, columns, globalMotion));
+                expGolombEncoder.encodeSigned(ifb, difference[0]);
+                expGolombEncoder.encodeSigned(ifb, difference[1]);
+                expGolombEncoder.encodeFixed(ifb, codeword.equals("errb") ? 1 : 0, 1);
+                if (codeword.equals("mvec")) {
+                    continue;
+                }
+            }
+
+            int codedBlockPattern = 0;
+            for (int k = 0; k < MACROBLOCK_BLOCKS; k++) {
+                if (!frameOpData.get(i + k).getError().isEmpty()) {
+                    codedBlockPattern |= 1 << (MACROBLOCK_BLOCKS - 1 - k);
+                }
+            }
+            expGolombEncoder.encodeFixed(ifb, codedBlockPattern, MACROBLOCK_BLOCKS);
+
+            for (int k = 0; k < MACROBLOCK_BLOCKS; k++) {
+                if ((codedBlockPattern & (1 << (MACROBLOCK_BLOCKS - 1 - k))) != 0) {
+                    // VLC encode block
+                    huffmanEncoder.encode(ifb, frameOpData.get(i + k).getError(), runLengthEncoder);
+                }
+            }
+        }
+        if (skipRun > 0) {
+            expGolombEncoder.encodeUnsigned(ifb, skipRun);
+        }
+    }
+
+    /* Arithmetic codes the macroblocks of a P frame (see ArithmeticEncoder), in place of the Exponential-
+     * Golomb and Huffman codes of writePBlocks(). The frame starts with the global motion vector, then
+     * every macroblock has a skip flag; the others an intra flag, inter macroblocks the reference index
+     * and the difference to the predicted motion vector, and all of them the coded block pattern and the
+     * coded blocks. mvec and errb macroblocks are both inter macroblocks, an mvec one has no coded blocks.
+     */
+    private void writeArithmeticPBlocks(InternalFrameBuffer ifb, RunLengthEncoder runLengthEncoder,
+                                        List<FrameOpDataObject> frameOpData, int columns, MotionVector globalMotion) {
+        ArithmeticWriter writer = new ArithmeticWriter(ifb);
+        ArithmeticEncoder arithmeticEncoder = new ArithmeticEncoder();
+        RunLengthBuffer rleBlock = RunLengthBuffer.local();
+        MotionVector[] vectors = new MotionVector[frameOpData.size() / MACROBLOCK_BLOCKS];
+        boolean[] skipped = new boolean[vectors.length];
+
+        arithmeticEncoder.encodeVector(writer, globalMotion.decompress());
+        for (int index = 0; index < vectors.length; index++) {
+            int i = index * MACROBLOCK_BLOCKS;
+            String codeword = frameOpData.get(i).getCodeword();
+            skipped[index] = codeword.equals("skip");
+            arithmeticEncoder.encodeSkip(writer, skipped[index], ArithmeticEncoder.getSkippedNeighbours(skipped, index, columns));
+            if (skipped[index]) {
+                vectors[index] = new MotionVector(0, 0);
+                continue;
+            }
+
+            boolean intra = codeword.equals("intr");
+            arithmeticEncoder.encodeIntra(writer, intra);
+            if (!intra) {
+                MotionVector motionVector = frameOpData.get(i).getMotionVector();
+                arithmeticEncoder.encodeReference(writer, motionVector.getRefIndex());
+                vectors[index] = motionVector;
+                arithmeticEncoder.encodeVector(writer, motionVector.getDifference(MotionVector.predict(vectors, index, columns, globalMotion)));
+            }
+
+            int codedBlockPattern = 0;
+            if (!codeword.equals("mvec")) {
+                for (int k = 0; k < MACROBLOCK_BLOCKS; k++) {
+                    if (!frameOpData.get(i + k).getError().isEmpty()) {
+                        codedBlockPattern |= 1 << (MACROBLOCK_BLOCKS - 1 - k);
+                    }
+                }
+            }
+            arithmeticEncoder.encodeCodedBlockPattern(writer, codedBlockPattern, MACROBLOCK_BLOCKS, intra);
+            for (int k = 0; k < MACROBLOCK_BLOCKS; k++) {
+                if ((codedBlockPattern & (1 << (MACROBLOCK_BLOCKS - 1 - k))) != 0) {
+                    arithmeticEncoder.encodeBlock(writer, runLengthEncoder.encode(frameOpData.get(i + k).getError(), rleBlock));
+                }
+            }
+        }
+        writer.finish();
+    }
+
+    /* VLC encodes the quantized blocks of an I frame, in restart segments unless Globals.RESTART_INTERVAL is 0,
+     * or arithmetic codes them (see ArithmeticEncoder). */
+    private void writeIBlocks(InternalFrameBuffer ifb, HuffmanEncoder huffmanEncoder, RunLengthEncoder runLengthEncoder,
+                              List<Block> blocks) {
+        if (Globals.ARITHMETIC_CODING) {
+            ArithmeticWriter writer = new ArithmeticWriter(ifb);
+            ArithmeticEncoder arithmeticEncoder = new ArithmeticEncoder();
+            RunLengthBuffer rleBlock = RunLengthBuffer.local();
+            for (Block block : blocks) {
+                arithmeticEncoder.encodeBlock(writer, runLengthEncoder.encode(block, rleBlock));
+            }
+            writer.finish();
+            return;
+        }
+        int restartInterval = RestartSegments.getInterval(Globals.RESTART_INTERVAL, Globals.MAX_WIDTH, Globals.SAMPLING);
+        int blocksPerSegment = restartInterval * RestartSegments.getBlocksPerMCU(Globals.SAMPLING);
+        if (Globals.OPTIMIZED_HUFFMAN_TABLES) {
+            writeHuffmanTables(ifb, huffmanEncoder, blocks, 'I', blocksPerSegment);
+        }
+        if (restartInterval > 0) {
+            ifb.write(RestartSegments.toDRISegment(restartInterval));
+            writeRestartSegments(ifb, huffmanEncoder, blocks, blocksPerSegment);
+            return;
+        }
+        for (Block block : blocks) {
+            huffmanEncoder.encode(ifb, block, runLengthEncoder);
+        }
+    }
+
+    /* Huffman codes the blocks of an I frame in restart segments, in parallel when parallelization is on. */
+    private void writeRestartSegments(InternalFrameBuffer ifb, HuffmanEncoder huffmanEncoder, List<Block> blocks, int blocksPerSegment) {
+        try {
+            RestartSegments.encode(ifb, blocks, blocksPerSegment, huffmanEncoder, segmentService);
+        } catch (InterruptedException ex) {
+            logger.error("Error waiting for threads to finish!");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Two pass entropy coding: the blocks a frame codes are run length encoded once more to count their
+     * symbols, and if the Huffman tables built from these counts save more bits than their DHT segment
+     * takes, the segment is written at the start of the frame data and `huffmanEncoder` switches to them.
+     * The decoder uses the tables of a DHT segment for that frame only.
+     */
+    private void writeHuffmanTables(InternalFrameBuffer ifb, HuffmanEncoder huffmanEncoder, List<Block> blocks, char frameType,
+                                    int blocksPerSegment) {
+        // the DC predictions of the counting pass must match those of the encoding pass, restart
+        // segments (if `blocksPerSegment` is not 0) start with predictions of 0
+        RunLengthEncoder runLengthEncoder = new RunLengthEncoder(frameType);
+        RunLengthBuffer rleBlock = RunLengthBuffer.local();
+        HuffmanStatistics statistics = new HuffmanStatistics();
+        for (int i = 0; i < blocks.size(); i++) {
+            if (blocksPerSegment > 0 && i > 0 && i % blocksPerSegment == 0) {
+                runLengthEncoder = new RunLengthEncoder(frameType);
+            }
+            statistics.add(runLengthEncoder.encode(blocks.get(i), rleBlock));
+        }
+
+        HuffmanTables tables = statistics.buildTables();
+        byte[] segment = tables.toDHTSegment();
+        if (statistics.countCodeBits(tables) + 8L * segment.length < statistics.countCodeBits(HuffmanTables.standard())) {
+            ifb.write(segment);
+            huffmanEncoder.setHuffmanTables(tables);
+        }
+    }
+
+    /* Splits the input frames into GOPs. A GOP ends after Globals.GOP_SIZE frames or right
+     * before a scene cut, the frame after the cut can't be predicted anyway.
+     */
+    private List<List<File>> splitIntoGops() throws IOException {
+        // the thumbnails have every SUBSAMPLING-th sample of a row, starting with the first
+        SceneChangeDetector sceneChangeDetector = new SceneChangeDetector(
+                (Globals.MAX_WIDTH + SceneChangeDetector.SUBSAMPLING - 1) / SceneChangeDetector.SUBSAMPLING);
+        List<List<File>> gops = new ArrayList<>();
+        List<File> gop = new ArrayList<>();
+        int[] previousThumbnail = null;
+
+        for (File file : this.files) {
+            // MJPEG has no P frames, there is nothing to analyse
+            int[] thumbnail = this.compressToMjpeg ? null : readThumbnail(file);
+            boolean sceneChange = previousThumbnail != null && sceneChangeDetector.isSceneChange(previousThumbnail, thumbnail);
+            if (sceneChange) {
+                logger.log("Scene change detected at " + file.getName());
+            }
+
+            if (gop.size() == Globals.GOP_SIZE || (sceneChange && !gop.isEmpty())) {
+                gops.add(gop);
+                gop = new ArrayList<>();
+            }
+            gop.add(file);
+            previousThumbnail = thumbnail;
+        }
+        if (!gop.isEmpty()) {
+            gops.add(gop);
+        }
+
+        return gops;
+    }
+
+    /* Luma of every SceneChangeDetector.SUBSAMPLING-th pixel, read without decoding the whole image into memory. */
+    private int[] readThumbnail(File file) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = ImageIO.getImageReaders(stream).next();
+            reader.setInput(stream);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(SceneChangeDetector.SUBSAMPLING, SceneChangeDetector.SUBSAMPLING, 0, 0);
+            BufferedImage img = reader.read(0, param);
+            reader.dispose();
+
+            int[] luma = new int[img.getWidth() * img.getHeight()];
+            for (int i = 0; i < img.getHeight(); i++) {
+                for (int j = 0; j < img.getWidth(); j++) {
+                    int rgb = img.getRGB(j, i);
+                    int r = (rgb >> 16) & 0xFF;
+                    int g = (rgb >> 8) & 0xFF;
+                    int b = rgb & 0xFF;
+                    luma[i * img.getWidth() + j] = (299 * r + 587 * g + 114 * b) / 1000;
+                }
+            }
+            return luma;
+        }
+    }
+
     private static String getOutputFile(String filePath) {
         String[] parts = filePath.split("[/\\\\]");
         if (parts.length < 2) {
@@ -27,12 +27,13 @@ public class JVidWriter {
         );
         this.jVidStreamHeader = new JVidStreamHeader(
                 new DWORD("jvih"),
-                new DWORD(28),
+                new DWORD(32),
                 new DWORD(40000),
                 new DWORD(7000),
                 new DWORD(-1),
                 new DWORD(-1),
-                new DWORD(-1)
+                new DWORD(-1),
+                new DWORD("huff")
         );
 
         frameLengthBuffer = new ArrayList<>();
@@ -44,6 +45,7 @@ public class JVidWriter {
         jVidStreamHeader.dwTotalFrames = new DWORD(frameCount);
         jVidStreamHeader.dwWidth = width;
         jVidStreamHeader.dwHeight = height;
+        jVidStreamHeader.dwEntropyCoding = new DWORD(Globals.ARITHMETIC_CODING ? "arit" : "huff");
 
         // Write JVID Header
         outputStream.write(jVidHeader.dwFourCc.byteValue());
@@ -57,13 +59,18 @@ public class JVidWriter {
         outputStream.write(jVidStreamHeader.dwTotalFrames.byteValue());
         outputStream.write(jVidStreamHeader.dwWidth.byteValue());
         outputStream.write(jVidStreamHeader.dwHeight.byteValue());
+        outputStream.write(jVidStreamHeader.dwEntropyCoding.byteValue());
     }
 
     public void writeDataChunk(BufferedOutputStream outputStream, InternalFrameBuffer buffer, char frameType) throws IOException {
         DWORD type;
 
+        // non-reference P frames are never used to predict other frames,
+        // so the decoder does not have to keep them in its block buffer
         if (frameType == 'I') {
             type = new DWORD("comp");
+        } else if (frameType == 'N') {
+            type = new DWORD("nref");
         } else {
             type = new DWORD("inte");
         }
@@ -82,10 +89,26 @@ public class JVidWriter {
         buffer.dumpBufferToStream(outputStream);
     }
 
+    /* A frame identical to the previous one, the chunk has no payload and the decoder shows the previous frame again. */
+    public void writeRepeatChunk(BufferedOutputStream outputStream) throws IOException {
+        StreamDataChunk data = new StreamDataChunk(
+                new DWORD("sdat"),
+                new DWORD(0),
+                new DWORD("rept")
+        );
+
+        frameLengthBuffer.add(12);
+
+        outputStream.write(data.dwFourCc.byteValue());
+        outputStream.write(data.dwSize.byteValue());
+        outputStream.write(data.dwType.byteValue());
+    }
+
     public int[] readHeader(RandomAccessFile file) {
         byte[] buffer = new byte[4];
         int bitstreamSize = -1;
         int fps = -1, frameCount = -1, bitrate = -1, width = -1, height = -1;
+        int arithmeticCoding = 0;
 
         try {
             // Read JVID Header
@@ -104,7 +127,8 @@ public class JVidWriter {
             int jvihSize = ByteConverter.readInt(file, buffer);
             System.out.println("JVid Stream Header Size: " + jvihSize);
 
-            if (jvihSize != 28) {
+            // streams without the entropy coding field (28 bytes) are Huffman coded
+            if (jvihSize != 28 && jvihSize != 32) {
                 throw new IOException("Error: Invalid JVid Stream Header Size");
             }
 
@@ -123,21 +147,30 @@ public class JVidWriter {
             height = ByteConverter.readInt(file, buffer);
             System.out.println("Height: " + height);
 
+            if (jvihSize == 32) {
+                String entropyCoding = ByteConverter.readString(file, buffer);
+                System.out.println("Entropy Coding: " + entropyCoding);
+                if (!entropyCoding.equals("huff") && !entropyCoding.equals("arit")) {
+                    throw new IOException("Error: Invalid JVid Entropy Coding");
+                }
+                arithmeticCoding = entropyCoding.equals("arit") ? 1 : 0;
+            }
+
         } catch (IOException e) {
             System.out.println("Error: " + e.getMessage());
         }
-        return new int[]{bitstreamSize, fps, frameCount, bitrate, width, height};
+        return new int[]{bitstreamSize, fps, frameCount, bitrate, width, height, arithmeticCoding};
     }
 
     private DWORD getJvidSize() {
         // Jvid Header should have the full stream size (file size - 8)
-        // jvih size = 7 * 4 = 28 Bytes
+        // jvih size = 8 * 4 = 32 Bytes
         // sdat size = 3 * 4 + frame size = 12 + frame size Bytes
         // frame sizes are stored in frameLengthBuffer
-        // total size = 28 + (12 + frame size) * frameCount = 28 + size + 12 * frameCount
+        // total size = 32 + (12 + frame size) * frameCount = 32 + size + 12 * frameCount
 
         int size = frameLengthBuffer.stream().reduce(0, Integer::sum);
-        return new DWORD(28 + size);
+        return new DWORD(32 + size);
     }
 }
 
@@ -159,8 +192,9 @@ class JVidStreamHeader {
     public DWORD dwTotalFrames;
     public DWORD dwWidth;
     public DWORD dwHeight;
+    public DWORD dwEntropyCoding; // "huff" or "arit"
 
-    public JVidStreamHeader(DWORD dwFourCc, DWORD dwSize, DWORD dwMicroSecPerFrame, DWORD dwMaxBytesPerSec, DWORD dwTotalFrames, DWORD dwWidth, DWORD dwHeight) {
+    public JVidStreamHeader(DWORD dwFourCc, DWORD dwSize, DWORD dwMicroSecPerFrame, DWORD dwMaxBytesPerSec, DWORD dwTotalFrames, DWORD dwWidth, DWORD dwHeight, DWORD dwEntropyCoding) {
         this.dwFourCc = dwFourCc;
         this.dwSize = dwSize;
         this.dwMicroSecPerFrame = dwMicroSecPerFrame;
@@ -168,6 +202,7 @@ class JVidStreamHeader {
         this.dwTotalFrames = dwTotalFrames;
         this.dwWidth = dwWidth;
         this.dwHeight = dwHeight;
+        this.dwEntropyCoding = dwEntropyCoding;
     }
 }
 
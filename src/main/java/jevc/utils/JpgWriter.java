@@ -4,6 +4,7 @@ import jevc.entities.InternalFrameBuffer;
 import jevc.entities.YCbCrImage;
 import jevc.operations.HuffmanEncoder;
 import jevc.operations.Quantizer;
+import jevc.operations.RestartSegments;
 import jevc.operations.RunLengthEncoder;
 
 import java.util.Vector;
@@ -38,13 +39,17 @@ public class JpgWriter {
         this.quantizer = quantizer;
     }
 
-    public void writeHeaderSections(InternalFrameBuffer internalFrameBuffer, YCbCrImage frame) {
+    /* The DRI segment is only written if `restartInterval` (in MCUs) is not 0, see RestartSegments. */
+    public void writeHeaderSections(InternalFrameBuffer internalFrameBuffer, YCbCrImage frame, int restartInterval) {
         internalFrameBuffer.write(SOI);
         writeAPP0Segment(internalFrameBuffer);
         writeCOMSegment(internalFrameBuffer);
         writeDQTSegment(internalFrameBuffer);
         writeSOF0Segment(internalFrameBuffer, frame);
         writeDHTSegment(internalFrameBuffer);
+        if (restartInterval > 0) {
+            writeDRISegment(internalFrameBuffer, restartInterval);
+        }
         writeSOSSegment(internalFrameBuffer);
     }
 
@@ -183,6 +188,17 @@ public class JpgWriter {
         internalFrameBuffer.write(SOSSegment);
     }
 
+    /**
+     * the structure of the DRI segment is:
+     * -the DRI marker (0xff,0xdd) - 2 bytes
+     * -length (2 bytes) of the DRI segment without the DRI marker, but including the bytes
+     *   for this field - always 4
+     * -restart interval (2 bytes) - the number of MCUs between two RSTn markers in the scan
+     */
+    private void writeDRISegment(InternalFrameBuffer internalFrameBuffer, int restartInterval) {
+        internalFrameBuffer.write(RestartSegments.toDRISegment(restartInterval));
+    }
+
     /**
      * the structure of the DQT segment is:
      * -the DQT marker (0xff,0xdb) - 2 bytes (buffer doesn't contain 0xff, it starts with 0xdb)
@@ -1,11 +1,15 @@
 package jevc.utils;
 
+import jevc.entities.Globals;
+
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Logger {
     private final StringBuilder progressBar;
@@ -14,6 +18,14 @@ public class Logger {
     private final boolean isParallel;
     private final String exportLocation;
     private FileOutputStream stream;
+    // luma PSNR of the reconstructed frames, reported next to the timings
+    private final Map<String, Double> quality;
+    private long totalSquaredError;
+    private long totalSamples;
+    // share of the P frame macroblocks found unchanged since the previous frame
+    private final Map<String, Double> staticRatio;
+    private long totalStaticMacroblocks;
+    private long totalMacroblocks;
 
     public Logger(boolean isQuiet, boolean isPrinting, String exportLocation, boolean isParallel) {
         this.progressBar = new StringBuilder();
@@ -21,6 +33,8 @@ public class Logger {
         this.isPrinting = isPrinting;
         this.isParallel = isParallel;
         this.exportLocation = exportLocation;
+        this.quality = new ConcurrentHashMap<>();
+        this.staticRatio = new ConcurrentHashMap<>();
 
         if (Objects.equals(exportLocation, "")) {
             return;
@@ -42,6 +56,23 @@ public class Logger {
         System.out.println(message);
     }
 
+    public boolean isBenchmarking() {
+        return isPrinting || !Objects.equals(exportLocation, "");
+    }
+
+    /* Records the luma squared error of a reconstructed frame, benchmark() reports it as PSNR. */
+    public synchronized void recordQuality(String frameName, long squaredError, long samples) {
+        quality.put(frameName, psnr(squaredError, samples));
+        totalSquaredError += squaredError;
+        totalSamples += samples;
+    }
+
+    public synchronized void recordStaticMacroblocks(String frameName, int staticMacroblocks, int macroblocks) {
+        staticRatio.put(frameName, 100.0 * staticMacroblocks / macroblocks);
+        totalStaticMacroblocks += staticMacroblocks;
+        totalMacroblocks += macroblocks;
+    }
+
     public void benchmark(LapStopwatch stopwatch, String frameName, Integer frameIndex) throws IOException {
         // Benchmarking disabled
         if (!isPrinting && Objects.equals(exportLocation, "")) {
@@ -62,6 +93,18 @@ public class Logger {
         String table =
                 "Pre Split ---------- Block Processing ---------- Frame Writing ---------- Total\n" +
                         String.format("%-10s %20s %25s %20s\n", times.get(0), times.get(1), times.get(2), times.get(3));
+        // frames that are not reconstructed by the encoder (non-reference frames) have no quality
+        Double psnr = quality.remove(frameName);
+        String quality = psnr != null ? String.format(" %.2fdB", psnr) : "";
+        if (psnr != null) {
+            table += String.format("Y-PSNR: %.2fdB\n", psnr);
+        }
+        // only P frames look for static macroblocks
+        Double staticShare = staticRatio.remove(frameName);
+        String staticMacroblocks = staticShare != null ? String.format(" %.2f%%", staticShare) : "";
+        if (staticShare != null) {
+            table += String.format("Static macroblocks: %.2f%%\n", staticShare);
+        }
 
         if (isPrinting) {
             if (isQuiet || isParallel) {
@@ -77,7 +120,9 @@ public class Logger {
                             times.get(0) +
                             times.get(1) +
                             times.get(2) +
-                            times.get(3) + "\n"
+                            times.get(3) +
+                            quality +
+                            staticMacroblocks + "\n"
             ).getBytes());
         }
     }
@@ -92,14 +137,31 @@ public class Logger {
         Long totalTime = stopwatch.getTime();
         String time = totalTime + "ms\n";
 
+        // preset and overall quality, to weigh the speedup of a preset against its quality loss
+        String summary = "preset " + Globals.PRESET + "\n";
+        if (totalSamples > 0) {
+            summary += String.format("psnr %.2fdB\n", psnr(totalSquaredError, totalSamples));
+        }
+        if (totalMacroblocks > 0) {
+            summary += String.format("static %.2f%%\n", 100.0 * totalStaticMacroblocks / totalMacroblocks);
+        }
+
         if (isPrinting) {
             System.out.print("Total: " + time);
+            System.out.print(summary);
         }
 
         if (!Objects.equals(exportLocation, "")) {
             // Export to file
-            stream.write(("total " + time).getBytes());
+            stream.write(("total " + time + summary).getBytes());
+        }
+    }
+
+    private static double psnr(long squaredError, long samples) {
+        if (squaredError == 0) {
+            return 99.99;
         }
+        return 10 * Math.log10(255.0 * 255.0 * samples / squaredError);
     }
 
     public void error(String message) {
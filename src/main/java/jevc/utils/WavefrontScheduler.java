@@ -0,0 +1,73 @@
+package jevc.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+/*
+ * Runs a task for every cell of a rows x columns grid, e.g. the macroblocks of a frame, in a
+ * diagonal wavefront: cell [row, column] only starts once its left neighbour [row, column - 1]
+ * and its top-right neighbour [row - 1, column + 1] are done, and with them every cell above and
+ * to the left. These are the neighbours a motion vector prediction reads.
+ * Every row is one task that walks its columns from left to right and waits whenever the row
+ * above is not yet two columns ahead, so up to min(rows, columns / 2) cells run at once.
+ * The rows are submitted in order and a row only waits for the row submitted right before it,
+ * which has already been started, so it works with any number of threads.
+ */
+public class WavefrontScheduler {
+    public interface CellTask {
+        void run(int row, int column);
+    }
+
+    private final int rows;
+    private final int columns;
+    private final int[] progress; // number of finished cells per row
+
+    public WavefrontScheduler(int rows, int columns) {
+        this.rows = rows;
+        this.columns = columns;
+        this.progress = new int[rows];
+    }
+
+    /* Blocks until every cell has been processed. */
+    public void run(ExecutorService executor, CellTask task) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(rows);
+        for (int row = 0; row < rows; row++) {
+            int currentRow = row;
+            executor.execute(() -> {
+                try {
+                    runRow(currentRow, task);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    // a failed row must not leave the rows below waiting forever
+                    finish(currentRow, columns);
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+    }
+
+    private void runRow(int row, CellTask task) throws InterruptedException {
+        for (int column = 0; column < columns; column++) {
+            if (row > 0) {
+                awaitProgress(row - 1, Math.min(column + 2, columns));
+            }
+            task.run(row, column);
+            finish(row, column + 1);
+        }
+    }
+
+    private synchronized void awaitProgress(int row, int cells) throws InterruptedException {
+        while (progress[row] < cells) {
+            wait();
+        }
+    }
+
+    private synchronized void finish(int row, int cells) {
+        progress[row] = cells;
+        notifyAll();
+    }
+}
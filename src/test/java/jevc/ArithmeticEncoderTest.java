@@ -0,0 +1,97 @@
+import jevc.entities.Block;
+import jevc.entities.InternalFrameBuffer;
+import jevc.entities.RunLengthBuffer;
+import jevc.operations.ArithmeticEncoder;
+import jevc.operations.ArithmeticReader;
+import jevc.operations.ArithmeticWriter;
+import jevc.operations.RunLengthEncoder;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class ArithmeticEncoderTest extends TestCase {
+    public void testBitsRoundTrip() {
+        // skewed bits in a few contexts, mixed with direct bits
+        Random random = new Random(7);
+        int count = 100000;
+        int[] bits = new int[count];
+        int[] contexts = new int[count];
+        for (int i = 0; i < count; i++) {
+            contexts[i] = random.nextInt(4);
+            bits[i] = random.nextInt(100) < 10 * (contexts[i] + 1) ? 1 : 0;
+        }
+
+        InternalFrameBuffer buffer = new InternalFrameBuffer();
+        ArithmeticWriter writer = new ArithmeticWriter(buffer);
+        short[] writerContexts = ArithmeticWriter.newContexts(4);
+        for (int i = 0; i < count; i++) {
+            writer.encodeBit(writerContexts, contexts[i], bits[i]);
+            if (i % 100 == 0) {
+                writer.encodeDirectBits(i, 17);
+            }
+        }
+        writer.finish();
+        byte[] data = buffer.dumpStreamToBuffer();
+        // about 0.76 bits per context coded bit, plus the direct bits
+        assertTrue(data.length < (count * 0.8 + count / 100 * 17) / 8);
+
+        ArithmeticReader reader = new ArithmeticReader(data);
+        short[] readerContexts = ArithmeticWriter.newContexts(4);
+        for (int i = 0; i < count; i++) {
+            assertEquals(bits[i], reader.decodeBit(readerContexts, contexts[i]));
+            if (i % 100 == 0) {
+                assertEquals(i & 0x1FFFF, reader.decodeDirectBits(17));
+            }
+        }
+    }
+
+    public void testBlocksRoundTrip() {
+        Random random = new Random(11);
+        RunLengthEncoder runLengthEncoder = new RunLengthEncoder('P');
+        int count = 500;
+        int[][][] blocks = new int[count][][];
+        for (int n = 0; n < count; n++) {
+            int[][] data = new int[8][8];
+            data[0][0] = random.nextInt(2001) - 1000;
+            for (int i = 0; i < random.nextInt(12); i++) {
+                data[random.nextInt(8)][random.nextInt(8)] = random.nextInt(41) - 20;
+            }
+            if (n % 10 == 0) {
+                // last coefficient and large levels
+                data[7][7] = -1;
+                data[0][1] = 2047;
+            }
+            blocks[n] = data;
+        }
+
+        InternalFrameBuffer buffer = new InternalFrameBuffer();
+        ArithmeticWriter writer = new ArithmeticWriter(buffer);
+        ArithmeticEncoder encoder = new ArithmeticEncoder();
+        RunLengthBuffer rleBlock = new RunLengthBuffer();
+        for (int n = 0; n < count; n++) {
+            encoder.encodeBlock(writer, runLengthEncoder.encode(new Block(blocks[n], n % 3 == 0 ? 'Y' : 'U'), rleBlock));
+            encoder.encodeVector(writer, new int[]{n - 250, 3});
+            encoder.encodeCodedBlockPattern(writer, n % 64, 6, n % 2 == 0);
+            encoder.encodeReference(writer, n % 3);
+        }
+        writer.finish();
+
+        ArithmeticReader reader = new ArithmeticReader(buffer.dumpStreamToBuffer());
+        ArithmeticEncoder decoder = new ArithmeticEncoder();
+        for (int n = 0; n < count; n++) {
+            rleBlock.clear(n % 3 == 0 ? 'Y' : 'U');
+            decoder.decodeBlock(reader, rleBlock);
+            Block block = runLengthEncoder.decode(rleBlock);
+            for (int line = 0; line < 8; line++) {
+                for (int col = 0; col < 8; col++) {
+                    assertEquals(blocks[n][line][col], block.getData()[line][col]);
+                }
+            }
+            int[] vector = decoder.decodeVector(reader);
+            assertEquals(n - 250, vector[0]);
+            assertEquals(3, vector[1]);
+            assertEquals(n % 64, decoder.decodeCodedBlockPattern(reader, 6, n % 2 == 0));
+            assertEquals(n % 3, decoder.decodeReference(reader));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import jevc.entities.InternalFrameBuffer;
+import jevc.operations.BitReader;
+import jevc.operations.BitWriter;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class BitReaderTest extends TestCase {
+    public void testUnstuffing() {
+        byte[] data = {(byte) 0xff, 0x00, (byte) 0xa5, (byte) 0xff, 0x00};
+        byte[] original = data.clone();
+        BitReader reader = new BitReader(data);
+
+        assertEquals(24, reader.remainingBits());
+        assertEquals(0xf, reader.readBits(4));
+        assertEquals(0xfa, reader.readBits(8));
+        assertEquals(12, reader.bitPosition());
+        assertEquals(0x5ff, reader.readBits(12));
+        assertEquals(0, reader.remainingBits());
+        // past the end there are zero bits
+        assertEquals(0, reader.readBits(16));
+        assertTrue(Arrays.equals(original, data));
+    }
+
+    public void testAlignToByte() {
+        BitReader reader = new BitReader(new byte[]{(byte) 0xc0, 0x3c});
+        assertEquals(3, reader.readBits(2));
+        reader.alignToByte();
+        assertEquals(8, reader.bitPosition());
+        assertEquals(0x3c, reader.readBits(8));
+        reader.alignToByte();
+        assertEquals(16, reader.bitPosition());
+    }
+
+    public void testReadersShareBuffer() {
+        // two readers over different parts of one buffer do not disturb each other
+        ByteBuffer shared = ByteBuffer.wrap(new byte[]{0x12, 0x34, 0x56, 0x78});
+        BitReader first = new BitReader(shared, 0, 2);
+        BitReader second = new BitReader(shared, 2, 2);
+
+        assertEquals(0x1, first.readBits(4));
+        assertEquals(0x56, second.readBits(8));
+        assertEquals(0x234, first.readBits(12));
+        assertEquals(0x78, second.readBits(8));
+        assertEquals(0, first.remainingBits());
+        assertEquals(0, second.remainingBits());
+        assertEquals(0, shared.position());
+    }
+
+    public void testWriterRoundTrip() {
+        // words with and without 0xFF bytes, writes of 0 to 32 bits
+        BitWriter writer = new BitWriter();
+        InternalFrameBuffer buffer = new InternalFrameBuffer();
+        int[] lengths = {3, 32, 0, 17, 8, 8, 1, 31, 5};
+        int[] values = {0x5, 0xffffffff, 0, 0x1ffff, 0xff, 0x12, 0x1, 0x7f00ff00, 0x1f};
+        for (int i = 0; i < lengths.length; i++) {
+            writer.write(buffer, values[i], lengths[i]);
+        }
+        writer.flush(buffer);
+
+        byte[] data = buffer.dumpStreamToBuffer();
+        for (int i = 0; i + 1 < data.length; i++) {
+            if (data[i] == (byte) 0xff) {
+                assertEquals(0, data[++i]);
+            }
+        }
+        BitReader reader = new BitReader(data);
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] > 0) {
+                assertEquals(values[i], reader.readBits(lengths[i]));
+            }
+        }
+        assertTrue(reader.remainingBits() < 8);
+    }
+}
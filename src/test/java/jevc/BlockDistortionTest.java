@@ -0,0 +1,131 @@
+import jevc.operations.BlockDistortion;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class BlockDistortionTest extends TestCase {
+    private static final int STRIDE = 40;
+
+    public void testBlockKernels() {
+        Random random = new Random(26);
+        int[][] a = randomBlock(random);
+        int[][] b = randomBlock(random);
+
+        int sad = 0, ssd = 0;
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 8; j++) {
+                sad += Math.abs(a[i][j] - b[i][j]);
+                ssd += (a[i][j] - b[i][j]) * (a[i][j] - b[i][j]);
+            }
+        }
+        assertEquals(sad, BlockDistortion.sad(a, b));
+        assertEquals(ssd, BlockDistortion.ssd(a, b));
+        assertEquals(0, BlockDistortion.satd(a, a));
+    }
+
+    public void testSatd() {
+        // a flat difference only has a DC coefficient: 64 * 3 / 8
+        int[][] a = new int[8][8];
+        int[][] b = new int[8][8];
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 8; j++) {
+                a[i][j] = 103;
+                b[i][j] = 100;
+            }
+        }
+        assertEquals(24, BlockDistortion.satd(a, b));
+
+        // a single impulse spreads evenly over all 64 coefficients: 64 * 8 / 8
+        a = new int[8][8];
+        b = new int[8][8];
+        a[3][5] = 8;
+        assertEquals(64, BlockDistortion.satd(a, b));
+    }
+
+    public void testSatdAC() {
+        // flat blocks only have a DC coefficient, whatever their level
+        int[][] block = new int[8][8];
+        for (int[] row : block) {
+            Arrays.fill(row, 77);
+        }
+        assertEquals(0, BlockDistortion.satdAC(block));
+
+        // otherwise it is the SATD against the mean, here a whole number so the difference has no DC
+        Random random = new Random(28);
+        block = randomBlock(random);
+        int sum = 0;
+        for (int[] row : block) {
+            for (int value : row) {
+                sum += value;
+            }
+        }
+        block[0][0] -= sum % 64;
+        int[][] mean = new int[8][8];
+        for (int[] row : mean) {
+            Arrays.fill(row, (sum - sum % 64) / 64);
+        }
+        assertEquals(BlockDistortion.satd(block, mean), BlockDistortion.satdAC(block));
+    }
+
+    public void testSadSubsampled() {
+        // odd rows are ignored, the even row SAD is doubled
+        int[][] a = new int[8][8];
+        int[][] b = new int[8][8];
+        for (int j = 0; j < 8; j++) {
+            a[0][j] = 3;
+            a[1][j] = 50;
+        }
+        assertEquals(48, BlockDistortion.sadSubsampled(a, b));
+
+        // blocks whose odd rows repeat the even rows give the exact SAD
+        Random random = new Random(37);
+        a = randomBlock(random);
+        b = randomBlock(random);
+        for (int i = 1; i < 8; i += 2) {
+            a[i] = a[i - 1].clone();
+            b[i] = b[i - 1].clone();
+        }
+        assertEquals(BlockDistortion.sad(a, b), BlockDistortion.sadSubsampled(a, b));
+    }
+
+    public void testPlaneKernelsMatchBlockKernels() {
+        Random random = new Random(27);
+        short[] plane = new short[STRIDE * 24];
+        for (int i = 0; i < plane.length; i++) {
+            plane[i] = (short) random.nextInt(256);
+        }
+        int[][] block = randomBlock(random);
+
+        int[] sads = new int[16];
+        int[] subsampledSads = new int[16];
+        int offset = 3 * STRIDE + 2;
+        BlockDistortion.sadRow(block, plane, offset, STRIDE, 16, sads);
+        BlockDistortion.sadRowSubsampled(block, plane, offset, STRIDE, 16, subsampledSads);
+
+        for (int c = 0; c < 16; c++) {
+            int[][] candidate = new int[8][8];
+            for (int i = 0; i < 8; i++) {
+                for (int j = 0; j < 8; j++) {
+                    candidate[i][j] = plane[offset + c + i * STRIDE + j];
+                }
+            }
+            assertEquals(BlockDistortion.sad(block, candidate), sads[c]);
+            assertEquals(BlockDistortion.sad(block, candidate), BlockDistortion.sad(block, plane, offset + c, STRIDE));
+            assertEquals(BlockDistortion.ssd(block, candidate), BlockDistortion.ssd(block, plane, offset + c, STRIDE));
+            assertEquals(BlockDistortion.satd(block, candidate), BlockDistortion.satd(block, plane, offset + c, STRIDE));
+            assertEquals(BlockDistortion.sadSubsampled(block, candidate), BlockDistortion.sadSubsampled(block, plane, offset + c, STRIDE));
+            assertEquals(BlockDistortion.sadSubsampled(block, candidate), subsampledSads[c]);
+        }
+    }
+
+    private int[][] randomBlock(Random random) {
+        int[][] block = new int[8][8];
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 8; j++) {
+                block[i][j] = random.nextInt(256);
+            }
+        }
+        return block;
+    }
+}
@@ -0,0 +1,38 @@
+import jevc.operations.BlockHash;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class BlockHashTest extends TestCase {
+    public void testEqualBlocksHashEqual() {
+        Random random = new Random(39);
+        int[][] a = new int[8][8];
+        int[][] b = new int[8][8];
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 8; j++) {
+                a[i][j] = random.nextInt(256);
+                b[i][j] = a[i][j];
+            }
+        }
+        assertEquals(BlockHash.hash(a), BlockHash.hash(b));
+    }
+
+    public void testEverySampleChangesHash() {
+        int[][] block = new int[8][8];
+        long hash = BlockHash.hash(block);
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 8; j++) {
+                block[i][j] = 1;
+                assertFalse(hash == BlockHash.hash(block));
+                block[i][j] = 0;
+            }
+        }
+
+        // swapped samples keep the sum of the block, but not its hash
+        block[0][0] = 5;
+        long swapped = BlockHash.hash(block);
+        block[0][0] = 0;
+        block[0][1] = 5;
+        assertFalse(swapped == BlockHash.hash(block));
+    }
+}
@@ -0,0 +1,96 @@
+import jevc.entities.Block;
+import jevc.entities.InternalFrameBuffer;
+import jevc.entities.RunLengthBuffer;
+import jevc.operations.BitReader;
+import jevc.operations.ExponentialGolombEncoder;
+import jevc.operations.HuffmanEncoder;
+import jevc.operations.RunLengthEncoder;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class ExponentialGolombEncoderTest extends TestCase {
+    public void testCodes() {
+        // 1 | 010 | 011 | 00100 | 011 (-1) | 00101 (-2), then zero padding
+        ExponentialGolombEncoder encoder = new ExponentialGolombEncoder();
+        InternalFrameBuffer buffer = new InternalFrameBuffer();
+        encoder.encodeUnsigned(buffer, 0);
+        encoder.encodeUnsigned(buffer, 1);
+        encoder.encodeUnsigned(buffer, 2);
+        encoder.encodeUnsigned(buffer, 3);
+        encoder.encodeSigned(buffer, -1);
+        encoder.encodeSigned(buffer, 2);
+        encoder.flushBuffer(buffer);
+
+        byte[] data = buffer.dumpStreamToBuffer();
+        assertEquals(3, data.length);
+        assertEquals((byte) 0b10100110, data[0]);
+        assertEquals((byte) 0b01000110, data[1]);
+        assertEquals((byte) 0b01000000, data[2]);
+
+        assertEquals(1, ExponentialGolombEncoder.getUnsignedLength(0));
+        assertEquals(5, ExponentialGolombEncoder.getUnsignedLength(3));
+        assertEquals(3, ExponentialGolombEncoder.getSignedLength(-1));
+        assertEquals(5, ExponentialGolombEncoder.getSignedLength(2));
+    }
+
+    public void testRoundTrip() {
+        ExponentialGolombEncoder encoder = new ExponentialGolombEncoder();
+        InternalFrameBuffer buffer = new InternalFrameBuffer();
+        int[] values = {0, 1, -1, 7, -128, 255, -255, 63, 8160, 1 << 20, -(1 << 20)};
+        for (int value : values) {
+            encoder.encodeSigned(buffer, value);
+            encoder.encodeUnsigned(buffer, Math.abs(value));
+        }
+        encoder.flushBuffer(buffer);
+
+        int bits = 0;
+        for (int value : values) {
+            bits += ExponentialGolombEncoder.getSignedLength(value) + ExponentialGolombEncoder.getUnsignedLength(Math.abs(value));
+        }
+        BitReader reader = new BitReader(buffer.dumpStreamToBuffer());
+        assertEquals((bits + 7) / 8 * 8, reader.remainingBits());
+        for (int value : values) {
+            assertEquals(value, encoder.decodeSigned(reader));
+            assertEquals(Math.abs(value), encoder.decodeUnsigned(reader));
+        }
+        assertEquals(bits, reader.bitPosition());
+    }
+
+    public void testSharedBitstream() {
+        // macroblock headers and Huffman coded blocks of a P frame share one bitstream
+        HuffmanEncoder huffmanEncoder = new HuffmanEncoder();
+        ExponentialGolombEncoder encoder = new ExponentialGolombEncoder(huffmanEncoder.getBitWriter());
+        RunLengthEncoder runLengthEncoder = new RunLengthEncoder('P');
+        InternalFrameBuffer buffer = new InternalFrameBuffer();
+        int[][] data = new int[8][8];
+        data[0][0] = -37;
+        data[2][1] = 5;
+        data[7][7] = -1; // no EOB, the block ends with its 64th coefficient
+        for (int i = 0; i < 3; i++) {
+            encoder.encodeUnsigned(buffer, i);
+            encoder.encodeSigned(buffer, -i);
+            encoder.encodeFixed(buffer, 0b101010, 6);
+            huffmanEncoder.encode(buffer, new Block(data, 'U'), runLengthEncoder);
+        }
+        encoder.encodeUnsigned(buffer, 255);
+        huffmanEncoder.flushBuffer(buffer);
+
+        BitReader reader = new BitReader(buffer.dumpStreamToBuffer());
+        HuffmanEncoder decoder = new HuffmanEncoder();
+        RunLengthBuffer rleBlock = new RunLengthBuffer();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, encoder.decodeUnsigned(reader));
+            assertEquals(-i, encoder.decodeSigned(reader));
+            assertEquals(0b101010, encoder.decodeFixed(reader, 6));
+            rleBlock.clear('U');
+            decoder.decodeBlock(reader, rleBlock);
+            int[][] decoded = runLengthEncoder.decode(rleBlock).getData();
+            for (int line = 0; line < 8; line++) {
+                assertTrue(Arrays.equals(data[line], decoded[line]));
+            }
+        }
+        assertEquals(255, encoder.decodeUnsigned(reader));
+        assertTrue(reader.remainingBits() < 8);
+    }
+}
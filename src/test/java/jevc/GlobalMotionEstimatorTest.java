@@ -0,0 +1,47 @@
+import jevc.entities.Block;
+import jevc.entities.MotionVector;
+import jevc.entities.ReferencePlane;
+import jevc.operations.GlobalMotionEstimator;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class GlobalMotionEstimatorTest extends TestCase {
+    private static final int SIZE = 96;
+
+    public void testFindsPan() {
+        Random random = new Random(36);
+        int[][] scene = new int[SIZE + 32][SIZE + 32];
+        for (int[] row : scene) {
+            for (int j = 0; j < row.length; j++) {
+                row[j] = random.nextInt(256);
+            }
+        }
+
+        // the camera moved 8 pixels right and 4 pixels up between the frames
+        ReferencePlane previousFrame = new ReferencePlane(SIZE, SIZE);
+        for (int y = 0; y < SIZE; y += 8) {
+            for (int x = 0; x < SIZE; x += 8) {
+                int[][] data = new int[8][8];
+                for (int i = 0; i < 8; i++) {
+                    for (int j = 0; j < 8; j++) {
+                        data[i][j] = scene[16 + y + i][16 + x + j];
+                    }
+                }
+                previousFrame.save(new Block(data, 'Y', x, y));
+            }
+        }
+        previousFrame.extendEdges();
+
+        int[][] current = new int[SIZE][SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            for (int j = 0; j < SIZE; j++) {
+                current[i][j] = scene[16 - 4 + i][16 + 8 + j];
+            }
+        }
+
+        MotionVector globalMotion = new GlobalMotionEstimator().estimate(current, SIZE, SIZE, previousFrame);
+        assertEquals(8 * 4, globalMotion.decompress()[0]);
+        assertEquals(-4 * 4, globalMotion.decompress()[1]);
+    }
+}
@@ -1,5 +1,9 @@
 import jevc.entities.*;
+import jevc.operations.BitReader;
 import jevc.operations.HuffmanEncoder;
+import jevc.operations.HuffmanStatistics;
+import jevc.operations.HuffmanTables;
+import jevc.operations.RunLengthEncoder;
 import junit.framework.TestCase;
 
 import java.io.ByteArrayOutputStream;
@@ -8,6 +12,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 public class HuffmanEncoderTest extends TestCase {
     private HuffmanEncoder huffmanEncoder;
@@ -66,7 +71,6 @@ public class HuffmanEncoderTest extends TestCase {
 
         huffmanEncoder = new HuffmanEncoder();
         huffmanEncoder.setSamplingFactors(new int[]{1, 1, 1}, new int[]{1, 1, 1});
-        huffmanEncoder.resetIndices();
         RunLengthBlock block = new RunLengthBlock();
         block.setType('Y');
         ArrayList<RunLengthBlock> blocks = huffmanEncoder.decode(data, Globals.SAMPLING, Globals.MAX_WIDTH, Globals.MAX_HEIGHT);
@@ -89,7 +93,6 @@ public class HuffmanEncoderTest extends TestCase {
 
         huffmanEncoder = new HuffmanEncoder();
         huffmanEncoder.setSamplingFactors(new int[]{1, 1, 1}, new int[]{1, 1, 1});
-        huffmanEncoder.resetIndices();
         block = new RunLengthBlock();
         block.setType('Y');
         blocks = huffmanEncoder.decode(data2, Globals.SAMPLING, Globals.MAX_WIDTH, Globals.MAX_HEIGHT);
@@ -97,4 +100,181 @@ public class HuffmanEncoderTest extends TestCase {
             b.print();
         }
     }
+
+    public void testDecodeRoundTrip() {
+        // short codewords, codewords longer than the lookup table (e.g. (14,3), (0,10)) and 0xFF stuffing
+        List<RunLengthBlock> blocks = new ArrayList<>();
+        blocks.add(block('Y', new RunLength(-1, 3, 5), new RunLength(0, 1, 1), new RunLength(14, 3, -6),
+                new RunLength(0, 10, 600), new RunLength(0, 0, 0)));
+        blocks.add(block('U', new RunLength(-1, 11, -1500), new RunLength(2, 2, -2), new RunLength(10, 4, 9),
+                new RunLength(0, 0, 0)));
+        blocks.add(block('V', new RunLength(-1, 0, 0), new RunLength(0, 0, 0)));
+        for (int i = 0; i < 20; i++) {
+            blocks.add(block('Y', new RunLength(-1, 8, 255), new RunLength(0, 8, -255), new RunLength(0, 0, 0)));
+        }
+
+        huffmanEncoder = new HuffmanEncoder();
+        InternalFrameBuffer outputBuffer = new InternalFrameBuffer();
+        for (RunLengthBlock block : blocks) {
+            huffmanEncoder.encode(outputBuffer, block);
+        }
+        huffmanEncoder.flushBuffer(outputBuffer);
+        byte[] data = outputBuffer.dumpStreamToBuffer();
+        byte[] original = data.clone();
+
+        HuffmanEncoder decoder = new HuffmanEncoder();
+        BitReader reader = new BitReader(data);
+        for (RunLengthBlock expected : blocks) {
+            RunLengthBlock decoded = new RunLengthBlock();
+            decoded.setType(expected.getType());
+            decoder.decodeBlock(reader, decoded);
+            assertEquals(expected.getSize(), decoded.getSize());
+            for (int i = 0; i < expected.getSize(); i++) {
+                assertEquals(expected.getData().get(i).getRunlength(), decoded.getData().get(i).getRunlength());
+                assertEquals(expected.getData().get(i).getSize(), decoded.getData().get(i).getSize());
+                assertEquals(expected.getData().get(i).getAmplitude(), decoded.getData().get(i).getAmplitude());
+            }
+        }
+        // decoding leaves the bitstream untouched
+        assertTrue(Arrays.equals(original, data));
+    }
+
+    public void testFusedEncodeMatchesRunLengthPath() {
+        // sparse blocks with long zero runs (ZRL) and blocks ending in a non-zero coefficient 63
+        Random random = new Random(45);
+        List<Block> blocks = new ArrayList<>();
+        for (int b = 0; b < 300; b++) {
+            int[][] data = new int[8][8];
+            data[0][0] = random.nextInt(201) - 100;
+            for (int n = random.nextInt(6); n > 0; n--) {
+                data[random.nextInt(8)][random.nextInt(8)] = random.nextInt(61) - 30;
+            }
+            if (b % 7 == 0) {
+                data[7][7] = random.nextBoolean() ? 3 : -1;
+            }
+            blocks.add(new Block(data, "YYYYUV".charAt(b % 6)));
+        }
+
+        InternalFrameBuffer expected = new InternalFrameBuffer();
+        HuffmanEncoder encoder = new HuffmanEncoder();
+        RunLengthEncoder runLengthEncoder = new RunLengthEncoder();
+        RunLengthBuffer buffer = new RunLengthBuffer();
+        for (Block block : blocks) {
+            encoder.encode(expected, runLengthEncoder.encode(block, buffer));
+        }
+        encoder.flushBuffer(expected);
+
+        InternalFrameBuffer fused = new InternalFrameBuffer();
+        encoder = new HuffmanEncoder();
+        runLengthEncoder = new RunLengthEncoder();
+        RunLengthEncoder estimator = new RunLengthEncoder('P');
+        for (Block block : blocks) {
+            assertEquals(encoder.countBits(estimator.encode(block, buffer)), encoder.countBits(block, estimator));
+            encoder.encode(fused, block, runLengthEncoder);
+        }
+        encoder.flushBuffer(fused);
+
+        assertTrue(Arrays.equals(expected.dumpStreamToBuffer(), fused.dumpStreamToBuffer()));
+
+        // the amplitude of a non-zero coefficient 63 is written as well, the blocks decode back
+        BitReader reader = new BitReader(fused.dumpStreamToBuffer());
+        RunLengthEncoder runLengthDecoder = new RunLengthEncoder();
+        for (Block block : blocks) {
+            buffer.clear(block.getType());
+            encoder.decodeBlock(reader, buffer);
+            Block decoded = runLengthDecoder.decode(buffer);
+            for (int i = 0; i < 8; i++) {
+                assertTrue(Arrays.equals(block.getData()[i], decoded.getData()[i]));
+            }
+        }
+    }
+
+    public void testOptimizedTablesRoundTrip() {
+        // DC values close to each other and short runs, far from what the standard tables expect
+        Random random = new Random(46);
+        List<Block> blocks = new ArrayList<>();
+        for (int b = 0; b < 600; b++) {
+            int[][] data = new int[8][8];
+            data[0][0] = 40 + random.nextInt(3);
+            data[0][1] = random.nextInt(7) - 3;
+            data[3][4] = random.nextBoolean() ? 9 : 0;
+            blocks.add(new Block(data, "YYYYUV".charAt(b % 6)));
+        }
+
+        HuffmanStatistics statistics = new HuffmanStatistics();
+        RunLengthEncoder runLengthEncoder = new RunLengthEncoder();
+        RunLengthBuffer buffer = new RunLengthBuffer();
+        for (Block block : blocks) {
+            statistics.add(runLengthEncoder.encode(block, buffer));
+        }
+        HuffmanTables tables = HuffmanTables.fromDHTSegment(statistics.buildTables().toDHTSegment(), 0);
+        assertTrue(statistics.countCodeBits(tables) < statistics.countCodeBits(HuffmanTables.standard()));
+
+        HuffmanEncoder encoder = new HuffmanEncoder();
+        encoder.setHuffmanTables(tables);
+        InternalFrameBuffer output = new InternalFrameBuffer();
+        runLengthEncoder = new RunLengthEncoder();
+        for (Block block : blocks) {
+            encoder.encode(output, block, runLengthEncoder);
+        }
+        encoder.flushBuffer(output);
+
+        BitReader reader = new BitReader(output.dumpStreamToBuffer());
+        RunLengthEncoder runLengthDecoder = new RunLengthEncoder();
+        for (Block block : blocks) {
+            buffer.clear(block.getType());
+            encoder.decodeBlock(reader, buffer);
+            Block decoded = runLengthDecoder.decode(buffer);
+            for (int i = 0; i < 8; i++) {
+                assertTrue(Arrays.equals(block.getData()[i], decoded.getData()[i]));
+            }
+        }
+    }
+
+    public void testOptimizedTablesLengthLimit() {
+        // Fibonacci frequencies give the most unbalanced Huffman tree, up to 30 bit codes before the limit
+        HuffmanStatistics statistics = new HuffmanStatistics();
+        RunLengthBuffer buffer = new RunLengthBuffer();
+        int a = 1, b = 1;
+        for (int size = 1; size <= 10; size++) {
+            for (int run = 0; run < 3; run++) {
+                for (int n = 0; n < a; n++) {
+                    buffer.clear('Y');
+                    buffer.add(-1, 0, 0);
+                    buffer.add(run, size, 1);
+                    statistics.add(buffer);
+                }
+                int next = a + b;
+                a = b;
+                b = next;
+            }
+        }
+
+        HuffmanTables tables = statistics.buildTables();
+        int[] bits = tables.getBits(HuffmanTables.AC_LUMA);
+        assertEquals(17, bits.length);
+        assertEquals(0x10, bits[0]);
+
+        // all 30 symbols are coded, the code is complete but for the unused all ones codeword
+        int[] lengths = tables.getCodeLengths(HuffmanTables.AC_LUMA);
+        double kraft = 0;
+        int coded = 0;
+        for (int length : lengths) {
+            if (length > 0) {
+                assertTrue(length <= 16);
+                kraft += Math.pow(2, -length);
+                coded++;
+            }
+        }
+        assertEquals(30, coded);
+        assertEquals(1.0 - Math.pow(2, -16), kraft, 1e-12);
+        assertTrue(statistics.countCodeBits(tables) < Long.MAX_VALUE);
+    }
+
+    private RunLengthBlock block(char type, RunLength... runLengths) {
+        RunLengthBlock block = new RunLengthBlock();
+        block.setType(type);
+        block.setData(new ArrayList<>(List.of(runLengths)));
+        return block;
+    }
 }
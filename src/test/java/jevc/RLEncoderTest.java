@@ -1,6 +1,7 @@
 import jevc.entities.Block;
 import jevc.entities.RunLength;
 import jevc.entities.RunLengthBlock;
+import jevc.entities.RunLengthBuffer;
 import jevc.operations.RunLengthEncoder;
 import junit.framework.TestCase;
 
@@ -94,4 +95,28 @@ public class RLEncoderTest extends TestCase {
         assertEquals(8, block1.getData().length);
         assertEquals(8, block1.getData()[0].length);
     }
-}
\ No newline at end of file
+
+    public void testPackedRoundTrip() {
+        int[][] data = new int[8][8];
+        data[0][0] = -1500;
+        data[0][1] = 300;
+        data[1][0] = -1;
+        data[3][4] = 7;
+        data[6][7] = -2;
+        RunLengthBuffer buffer = new RunLengthBuffer();
+        new RunLengthEncoder('P').encode(new Block(data, 'U'), buffer);
+
+        assertEquals(6, buffer.getSize());
+        assertEquals(-1, RunLengthBuffer.runlength(buffer.get(0)));
+        assertEquals(11, RunLengthBuffer.size(buffer.get(0)));
+        assertEquals(-1500, RunLengthBuffer.amplitude(buffer.get(0)));
+        assertEquals(-2, RunLengthBuffer.amplitude(buffer.get(4)));
+        assertEquals(0, buffer.get(5)); // EOB
+
+        Block decoded = new RunLengthEncoder('P').decode(buffer);
+        assertEquals('U', decoded.getType());
+        for (int i = 0; i < 8; i++) {
+            assertTrue(Arrays.equals(data[i], decoded.getData()[i]));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import jevc.entities.Block;
+import jevc.entities.ReferencePicture;
+import jevc.entities.ReferencePlane;
+import jevc.entities.YCbCrImage;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class ReferencePictureTest extends TestCase {
+    public void testChromaEdgesAreExtended() {
+        // 4:2:0 at 1280x720: the chroma planes are 640x360, not a multiple of 16 high
+        ReferencePicture picture = new ReferencePicture(1280, 720, YCbCrImage.YUV411Sampling);
+        ReferencePlane chroma = picture.getPlane('U');
+        assertEquals(640, chroma.getWidth());
+        assertEquals(360, chroma.getHeight());
+        assertFilledEdges(chroma, 'U');
+    }
+
+    public void testPaddedFrameSize() {
+        // 203x117 is coded as 208x128, its 4:2:0 chroma as 104x64
+        ReferencePicture picture = new ReferencePicture(203, 117, YCbCrImage.YUV411Sampling);
+        assertEquals(208, picture.getPlane('Y').getWidth());
+        assertEquals(128, picture.getPlane('Y').getHeight());
+        assertEquals(104, picture.getPlane('V').getWidth());
+        assertEquals(64, picture.getPlane('V').getHeight());
+        assertFilledEdges(picture.getPlane('V'), 'V');
+    }
+
+    /* Fills the plane with 100, except for 200 in the bottom right block, and checks the border after extendEdges(). */
+    private void assertFilledEdges(ReferencePlane plane, char type) {
+        int width = plane.getWidth();
+        int height = plane.getHeight();
+        for (int y = 0; y < height; y += 8) {
+            for (int x = 0; x < width; x += 8) {
+                int value = (x == width - 8 && y == height - 8) ? 200 : 100;
+                int[][] data = new int[8][8];
+                for (int[] row : data) {
+                    Arrays.fill(row, value);
+                }
+                plane.save(new Block(data, type, x, y));
+            }
+        }
+        plane.extendEdges();
+
+        short[] data = plane.getData();
+        for (int d = 1; d <= 20; d++) {
+            assertEquals(100, data[plane.offset(0, height - 1 + d)]);
+            assertEquals(100, data[plane.offset(width - 1 + d, 0)]);
+            assertEquals(100, data[plane.offset(-d, height / 2)]);
+            assertEquals(200, data[plane.offset(width - 1 + d, height - 1 + d)]);
+        }
+    }
+}
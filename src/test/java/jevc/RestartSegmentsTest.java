@@ -0,0 +1,90 @@
+import jevc.entities.Block;
+import jevc.entities.InternalFrameBuffer;
+import jevc.entities.YCbCrImage;
+import jevc.operations.HuffmanEncoder;
+import jevc.operations.RestartSegments;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class RestartSegmentsTest extends TestCase {
+    private static final int BLOCKS_PER_SEGMENT = 6 * 5; // 5 4:2:0 MCUs
+
+    public void testParallelRoundTrip() throws InterruptedException {
+        HuffmanEncoder huffmanEncoder = newHuffmanEncoder();
+        List<Block> blocks = randomBlocks(6 * 53);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        InternalFrameBuffer buffer = new InternalFrameBuffer();
+        RestartSegments.encode(buffer, blocks, BLOCKS_PER_SEGMENT, huffmanEncoder, executor);
+        byte[] data = buffer.dumpStreamToBuffer();
+
+        // the parallel encoder writes what a single thread writes
+        InternalFrameBuffer sequential = new InternalFrameBuffer();
+        RestartSegments.encode(sequential, blocks, BLOCKS_PER_SEGMENT, huffmanEncoder, null);
+        assertTrue(Arrays.equals(data, sequential.dumpStreamToBuffer()));
+
+        // 11 segments, separated by RST0 .. RST7, RST0, RST1
+        List<int[]> segments = RestartSegments.split(data, 0, data.length);
+        assertEquals(11, segments.size());
+        for (int s = 1; s < segments.size(); s++) {
+            assertEquals((byte) 0xFF, data[segments.get(s)[0] - 2]);
+            assertEquals((byte) (0xD0 + (s - 1) % 8), data[segments.get(s)[0] - 1]);
+        }
+
+        Block[] decoded = RestartSegments.decode(data, 0, data.length, blocks.size(), BLOCKS_PER_SEGMENT,
+                huffmanEncoder, block -> {}, executor);
+        executor.shutdown();
+        for (int n = 0; n < blocks.size(); n++) {
+            assertEquals(blocks.get(n).getType(), decoded[n].getType());
+            for (int line = 0; line < 8; line++) {
+                for (int col = 0; col < 8; col++) {
+                    assertEquals(blocks.get(n).getData()[line][col], decoded[n].getData()[line][col]);
+                }
+            }
+        }
+    }
+
+    public void testDRISegment() {
+        byte[] data = new byte[8];
+        System.arraycopy(RestartSegments.toDRISegment(300), 0, data, 2, RestartSegments.DRI_SEGMENT_LENGTH);
+        assertFalse(RestartSegments.startsWithDRISegment(data, 0));
+        assertTrue(RestartSegments.startsWithDRISegment(data, 2));
+        assertEquals(300, RestartSegments.getInterval(data, 2));
+
+        // one row of 16x16 4:2:0 MCUs and of 8x8 4:4:4 MCUs
+        assertEquals(20, RestartSegments.getInterval(1, 320, YCbCrImage.YUV411Sampling));
+        assertEquals(78, RestartSegments.getInterval(2, 312, YCbCrImage.YUV444Sampling));
+        assertEquals(6, RestartSegments.getBlocksPerMCU(YCbCrImage.YUV411Sampling));
+        assertEquals(3, RestartSegments.getBlocksPerMCU(YCbCrImage.YUV444Sampling));
+    }
+
+    private static HuffmanEncoder newHuffmanEncoder() {
+        int[] horizSamplingFactors = new int[3];
+        int[] vertSamplingFactors = new int[3];
+        YCbCrImage.computeSamplingFactors(YCbCrImage.YUV411Sampling, horizSamplingFactors, vertSamplingFactors);
+        HuffmanEncoder huffmanEncoder = new HuffmanEncoder();
+        huffmanEncoder.setSamplingFactors(horizSamplingFactors, vertSamplingFactors);
+        return huffmanEncoder;
+    }
+
+    /* Quantized blocks in the order of 4:2:0 MCUs, Y0 Y1 Y2 Y3 U V. */
+    private static List<Block> randomBlocks(int count) {
+        Random random = new Random(5);
+        List<Block> blocks = new ArrayList<>();
+        for (int n = 0; n < count; n++) {
+            int[][] data = new int[8][8];
+            data[0][0] = random.nextInt(401) - 200;
+            for (int i = 0; i < random.nextInt(20); i++) {
+                data[random.nextInt(8)][random.nextInt(8)] = random.nextInt(61) - 30;
+            }
+            blocks.add(new Block(data, n % 6 < 4 ? 'Y' : n % 6 == 4 ? 'U' : 'V'));
+        }
+        return blocks;
+    }
+}
@@ -0,0 +1,163 @@
+import jevc.entities.Globals;
+import jevc.service.JVidDecoderService;
+import jevc.service.JVidEncoderService;
+import jevc.utils.ByteConverter;
+import jevc.utils.JVidWriter;
+import junit.framework.TestCase;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RoundTripTest extends TestCase {
+    // not a multiple of the 16x16 macroblocks, the frames are coded padded
+    private static final int WIDTH = 203;
+    private static final int HEIGHT = 117;
+    private static final int FRAMES = 6;
+    private static final String FOLDER = "target/roundtrip/";
+
+    private int maxWidth, maxHeight, gopSize;
+    private boolean arithmeticCoding;
+
+    protected void setUp() throws IOException {
+        maxWidth = Globals.MAX_WIDTH;
+        maxHeight = Globals.MAX_HEIGHT;
+        gopSize = Globals.GOP_SIZE;
+        arithmeticCoding = Globals.ARITHMETIC_CODING;
+
+        new File(FOLDER + "temp").mkdirs();
+        new File(FOLDER + "src").mkdirs();
+        for (int t = 0; t < FRAMES; t++) {
+            ImageIO.write(zoomedFrame(t), "png", new File(String.format("%ssrc/f%02d.png", FOLDER, t)));
+        }
+    }
+
+    protected void tearDown() {
+        Globals.MAX_WIDTH = maxWidth;
+        Globals.MAX_HEIGHT = maxHeight;
+        Globals.GOP_SIZE = gopSize;
+        Globals.ARITHMETIC_CODING = arithmeticCoding;
+    }
+
+    public void testNonAlignedFrameSize() throws IOException, InterruptedException {
+        Globals.ARITHMETIC_CODING = false;
+        assertDecodesEveryFrame("");
+    }
+
+    public void testNonAlignedFrameSizeArithmeticCoding() throws IOException, InterruptedException {
+        Globals.ARITHMETIC_CODING = true;
+        assertDecodesEveryFrame("");
+    }
+
+    /* The fourth frame shows the same as the third one. Sequentially and with the P frames coded in
+     * parallel, it has to be sent as a repeat chunk without payload, in its place, and decode as the third one.
+     */
+    public void testRepeatedFrame() throws IOException, InterruptedException {
+        Globals.ARITHMETIC_CODING = false;
+        Files.copy(new File(FOLDER + "src/f02.png").toPath(), new File(FOLDER + "src/f03.png").toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+
+        for (String parallelization : new String[]{"", "f", "c"}) {
+            assertDecodesEveryFrame(parallelization);
+
+            List<String> chunkTypes = readChunkTypes(new File(FOLDER + "out.jvd"));
+            assertEquals(parallelization, FRAMES, chunkTypes.size());
+            for (int t = 0; t < FRAMES; t++) {
+                assertEquals(parallelization + " frame " + t, t == 3, chunkTypes.get(t).equals("rept"));
+            }
+            assertTrue(parallelization, Arrays.equals(Files.readAllBytes(new File(FOLDER + "frame003.png").toPath()),
+                    Files.readAllBytes(new File(FOLDER + "frame004.png").toPath())));
+        }
+    }
+
+    /* Encodes and decodes the frames in one GOP. Every P frame must decode about as well as the I frame,
+     * which fails as soon as the decoder predicts a motion vector from other neighbours than the encoder.
+     */
+    private void assertDecodesEveryFrame(String parallelization) throws IOException, InterruptedException {
+        File[] files = new File(FOLDER + "src").listFiles();
+        Arrays.sort(files);
+        Globals.MAX_WIDTH = WIDTH;
+        Globals.MAX_HEIGHT = HEIGHT;
+        Globals.GOP_SIZE = FRAMES;
+        new JVidEncoderService(files, FOLDER + "out.jvd", parallelization, false, false, "", false, true).compress();
+
+        try {
+            new JVidDecoderService(new File("/" + FOLDER + "out.jvd"), FOLDER).decompress();
+        } catch (IOException ex) {
+            // the decoder plays the frames with ffplay through cmd.exe when it is done
+        }
+
+        double intraPsnr = psnr(files[0], new File(FOLDER + "frame001.png"));
+        assertTrue("I frame at " + intraPsnr + " dB", intraPsnr > 28);
+        for (int t = 1; t < FRAMES; t++) {
+            double psnr = psnr(files[t], new File(String.format("%sframe%03d.png", FOLDER, t + 1)));
+            assertTrue("frame " + t + " at " + psnr + " dB", psnr > intraPsnr - 3);
+        }
+    }
+
+    /* Types of the data chunks of a stream, repeat chunks must not have a payload. */
+    private static List<String> readChunkTypes(File stream) throws IOException {
+        List<String> types = new ArrayList<>();
+        byte[] buffer = new byte[4];
+        try (RandomAccessFile file = new RandomAccessFile(stream, "r")) {
+            new JVidWriter().readHeader(file);
+            while (file.getFilePointer() < file.length()) {
+                assertTrue(ByteConverter.checkString(file, buffer, "sdat"));
+                int chunkSize = ByteConverter.readInt(file, buffer);
+                String type = ByteConverter.readString(file, buffer);
+                if (type.equals("rept")) {
+                    assertEquals(0, chunkSize);
+                }
+                types.add(type);
+                file.skipBytes(chunkSize);
+            }
+        }
+        return types;
+    }
+
+    /* A zoom in, so that every macroblock moves by a different vector. */
+    private static BufferedImage zoomedFrame(int t) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        double scale = 1 + 0.04 * t;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                double u = (x - WIDTH / 2.0) / scale;
+                double v = (y - HEIGHT / 2.0) / scale;
+                int r = clamp(128 + 60 * Math.sin(u / 7) + 50 * Math.cos(v / 5));
+                int g = clamp(128 + 70 * Math.sin((u + v) / 9));
+                int b = clamp(128 + 60 * Math.cos(u / 11) * Math.sin(v / 6));
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, value));
+    }
+
+    private static double psnr(File source, File decoded) throws IOException {
+        BufferedImage original = ImageIO.read(source);
+        BufferedImage image = ImageIO.read(decoded);
+        assertEquals(original.getWidth(), image.getWidth());
+        assertEquals(original.getHeight(), image.getHeight());
+        double error = 0;
+        for (int y = 0; y < original.getHeight(); y++) {
+            for (int x = 0; x < original.getWidth(); x++) {
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int d = ((original.getRGB(x, y) >> shift) & 0xFF) - ((image.getRGB(x, y) >> shift) & 0xFF);
+                    error += d * d;
+                }
+            }
+        }
+        double mse = error / (3.0 * original.getWidth() * original.getHeight());
+        return 10 * Math.log10(255 * 255 / mse);
+    }
+}
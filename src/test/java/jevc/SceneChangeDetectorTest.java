@@ -0,0 +1,65 @@
+import jevc.operations.SceneChangeDetector;
+import junit.framework.TestCase;
+
+public class SceneChangeDetectorTest extends TestCase {
+    // thumbnails of a 320x176 frame
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 22;
+
+    private final SceneChangeDetector detector = new SceneChangeDetector(WIDTH);
+
+    public void testHardCut() {
+        // the same texture turned by 90 degrees: same exposure, similar histogram, but nothing matches
+        int[] previous = scene(0, 1);
+        int[] current = turnedScene();
+        assertTrue(detector.isSceneChange(previous, current));
+    }
+
+    public void testGradualFade() {
+        int[] previous = scene(0, 1);
+        for (int step = 1; step <= 10; step++) {
+            int[] current = scene(0, 1 - 0.08 * step);
+            assertFalse("step " + step, detector.isSceneChange(previous, current));
+            previous = current;
+        }
+    }
+
+    public void testStaticPair() {
+        assertFalse(detector.isSceneChange(scene(0, 1), scene(0, 1)));
+    }
+
+    public void testPan() {
+        int[] previous = scene(0, 1);
+        for (int shift = 1; shift <= 4; shift++) {
+            int[] current = scene(shift, 1);
+            assertFalse("shift " + shift, detector.isSceneChange(previous, current));
+            previous = current;
+        }
+    }
+
+    /* Textured luma, moved left by shift samples and scaled by brightness. */
+    private static int[] scene(int shift, double brightness) {
+        int[] plane = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                plane[y * WIDTH + x] = texture(x + shift, y, brightness);
+            }
+        }
+        return plane;
+    }
+
+    private static int[] turnedScene() {
+        int[] plane = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                plane[y * WIDTH + x] = texture(y, x, 1);
+            }
+        }
+        return plane;
+    }
+
+    private static int texture(int u, int v, double brightness) {
+        double value = 128 + 50 * Math.sin(u * 1.3 + v * 0.4) + 40 * Math.cos(v * 1.7 - u * 0.5);
+        return (int) Math.max(0, Math.min(255, value * brightness));
+    }
+}
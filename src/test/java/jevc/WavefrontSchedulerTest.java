@@ -0,0 +1,44 @@
+import jevc.utils.WavefrontScheduler;
+import junit.framework.TestCase;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WavefrontSchedulerTest extends TestCase {
+    public void testNeighboursFinishFirst() throws InterruptedException {
+        int rows = 9;
+        int columns = 20;
+        int[][] order = new int[rows][columns];
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        new WavefrontScheduler(rows, columns).run(executor, (row, column) -> order[row][column] = counter.incrementAndGet());
+        executor.shutdown();
+
+        assertEquals(rows * columns, counter.get());
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int current = order[row][column];
+                if (column > 0) {
+                    assertTrue(order[row][column - 1] < current);
+                }
+                if (row > 0 && column + 1 < columns) {
+                    assertTrue(order[row - 1][column + 1] < current);
+                }
+                if (row > 0) {
+                    assertTrue(order[row - 1][column] < current);
+                }
+            }
+        }
+    }
+
+    public void testSingleThread() throws InterruptedException {
+        // the rows wait for each other, a single worker must still get through all of them
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        new WavefrontScheduler(5, 3).run(executor, (row, column) -> counter.incrementAndGet());
+        executor.shutdown();
+        assertEquals(15, counter.get());
+    }
+}